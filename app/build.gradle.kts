@@ -29,6 +29,10 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    testOptions {
+        // Lets classes that log or read SystemClock run in local unit tests
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -0,0 +1,273 @@
+package com.smartmedicine.dispenser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+// Adherence statistics maintained incrementally as doses are recorded.
+// Every query is a hash lookup; rebuild() replays the journal in one pass.
+public class AdherenceTracker {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    // Upper bounds (minutes late) of the late-dose histogram buckets; the last bucket is open ended
+    public static final int[] LATE_BUCKET_LIMITS = {5, 15, 30, 60};
+
+    private final Map<Integer, int[]> schedules = new HashMap<>(); // sorted minutes of day
+    private final Map<Long, Integer> dailyCounts = new HashMap<>();
+    private final Map<Long, Integer> weeklyCounts = new HashMap<>();
+    private final Map<Integer, Streak> streaks = new HashMap<>();
+    private final Map<Integer, int[]> lateHistograms = new HashMap<>();
+
+    private static class Streak {
+        long lastCompleteDay = Long.MIN_VALUE;
+        int current;
+        int best;
+    }
+
+    // ==================== UPDATES ====================
+
+    // alarmTimes are "HH:mm" strings as stored in Medicine
+    public void setSchedule(int medicineId, List<String> alarmTimes) {
+        int[] minutes = new int[alarmTimes != null ? alarmTimes.size() : 0];
+        int count = 0;
+        if (alarmTimes != null) {
+            for (String time : alarmTimes) {
+                int minute = parseMinuteOfDay(time);
+                if (minute >= 0) {
+                    minutes[count++] = minute;
+                }
+            }
+        }
+        minutes = Arrays.copyOf(minutes, count);
+        Arrays.sort(minutes);
+        int previous = getScheduledPerDay(medicineId);
+        schedules.put(medicineId, minutes);
+
+        // Which days were fully taken depends on how many doses are scheduled
+        if (minutes.length != previous) {
+            recomputeStreak(medicineId);
+        }
+    }
+
+    public void clearSchedules() {
+        schedules.clear();
+        streaks.clear();
+    }
+
+    public void record(int medicineId, long timestamp) {
+        long day = epochDay(timestamp);
+        addDoses(medicineId, day, 1);
+
+        int[] schedule = schedules.get(medicineId);
+        if (schedule == null || schedule.length == 0) {
+            return;
+        }
+
+        int[] histogram = lateHistograms.get(medicineId);
+        if (histogram == null) {
+            histogram = new int[LATE_BUCKET_LIMITS.length + 1];
+            lateHistograms.put(medicineId, histogram);
+        }
+        histogram[lateBucket(minutesLate(schedule, minuteOfDay(timestamp)))]++;
+    }
+
+    // Doses known only as a daily total (rolled-up history); no lateness information
+    public void recordDay(int medicineId, long epochDay, int doses) {
+        if (doses > 0) {
+            addDoses(medicineId, epochDay, doses);
+        }
+    }
+
+    private void addDoses(int medicineId, long day, int doses) {
+        int dayCount = add(dailyCounts, key(medicineId, day), doses);
+        add(weeklyCounts, key(medicineId, epochWeek(day)), doses);
+
+        // A day counts towards the streak once all of its scheduled doses are recorded
+        int scheduled = getScheduledPerDay(medicineId);
+        if (scheduled == 0 || dayCount - doses >= scheduled || dayCount < scheduled) {
+            return;
+        }
+
+        Streak streak = streaks.get(medicineId);
+        if (streak == null) {
+            streak = new Streak();
+            streaks.put(medicineId, streak);
+        }
+        if (streak.lastCompleteDay == day - 1) {
+            streak.current++;
+        } else if (streak.lastCompleteDay != day) {
+            streak.current = 1;
+        }
+        streak.lastCompleteDay = Math.max(streak.lastCompleteDay, day);
+        streak.best = Math.max(streak.best, streak.current);
+    }
+
+    // Rebuilds one medicine's streak from its daily counts under the current schedule
+    private void recomputeStreak(int medicineId) {
+        streaks.remove(medicineId);
+        int scheduled = getScheduledPerDay(medicineId);
+        if (scheduled == 0) {
+            return;
+        }
+
+        List<Long> completeDays = new ArrayList<>();
+        for (Map.Entry<Long, Integer> count : dailyCounts.entrySet()) {
+            if ((int) (count.getKey() >>> 32) == medicineId && count.getValue() >= scheduled) {
+                completeDays.add((long) count.getKey().intValue());
+            }
+        }
+        if (completeDays.isEmpty()) {
+            return;
+        }
+        Collections.sort(completeDays);
+
+        Streak streak = new Streak();
+        for (long day : completeDays) {
+            streak.current = streak.lastCompleteDay == day - 1 ? streak.current + 1 : 1;
+            streak.lastCompleteDay = day;
+            streak.best = Math.max(streak.best, streak.current);
+        }
+        streaks.put(medicineId, streak);
+    }
+
+    public void clearRecords() {
+        dailyCounts.clear();
+        weeklyCounts.clear();
+        streaks.clear();
+        lateHistograms.clear();
+    }
+
+    // Single pass over the journal in chronological order; schedules must be set first.
+    // Rollups hold the days before the raw entries.
+    public void rebuild(List<DailyDoseRollup> rollups, List<MedicineLogEntry> chronologicalEntries) {
+        clearRecords();
+        for (DailyDoseRollup rollup : rollups) {
+            recordDay(rollup.getMedicineId(), rollup.getEpochDay(), rollup.getCount());
+        }
+        for (MedicineLogEntry entry : chronologicalEntries) {
+            record(entry.getMedicineId(), entry.getTimestamp());
+        }
+    }
+
+    // ==================== QUERIES ====================
+
+    public int getScheduledPerDay(int medicineId) {
+        int[] schedule = schedules.get(medicineId);
+        return schedule != null ? schedule.length : 0;
+    }
+
+    public int getRecordedForDay(int medicineId, long epochDay) {
+        Integer count = dailyCounts.get(key(medicineId, epochDay));
+        return count != null ? count : 0;
+    }
+
+    public int getScheduledPerWeek(int medicineId) {
+        return getScheduledPerDay(medicineId) * 7;
+    }
+
+    public int getRecordedForWeek(int medicineId, long epochWeek) {
+        Integer count = weeklyCounts.get(key(medicineId, epochWeek));
+        return count != null ? count : 0;
+    }
+
+    // Fraction of scheduled doses recorded, capped at 1; -1 when nothing is scheduled
+    public float getDailyAdherence(int medicineId, long epochDay) {
+        int scheduled = getScheduledPerDay(medicineId);
+        if (scheduled == 0) {
+            return -1f;
+        }
+        return Math.min(1f, getRecordedForDay(medicineId, epochDay) / (float) scheduled);
+    }
+
+    public float getWeeklyAdherence(int medicineId, long epochWeek) {
+        int scheduled = getScheduledPerWeek(medicineId);
+        if (scheduled == 0) {
+            return -1f;
+        }
+        return Math.min(1f, getRecordedForWeek(medicineId, epochWeek) / (float) scheduled);
+    }
+
+    // Consecutive fully taken days ending today or yesterday (today may still be in progress)
+    public int getCurrentStreak(int medicineId, long today) {
+        Streak streak = streaks.get(medicineId);
+        if (streak == null || streak.lastCompleteDay < today - 1) {
+            return 0;
+        }
+        return streak.current;
+    }
+
+    public int getBestStreak(int medicineId) {
+        Streak streak = streaks.get(medicineId);
+        return streak != null ? streak.best : 0;
+    }
+
+    // Counts per bucket of LATE_BUCKET_LIMITS, plus a final bucket for later doses
+    public int[] getLateDoseHistogram(int medicineId) {
+        int[] histogram = lateHistograms.get(medicineId);
+        return histogram != null ? histogram.clone() : new int[LATE_BUCKET_LIMITS.length + 1];
+    }
+
+    // ==================== HELPERS ====================
+
+    public static long epochDay(long millis) {
+        return DoseHistoryIndex.epochDay(millis);
+    }
+
+    // Weeks start on Monday; epoch day 0 was a Thursday
+    public static long epochWeek(long epochDay) {
+        return Math.floorDiv(epochDay + 3, 7);
+    }
+
+    private static int minuteOfDay(long millis) {
+        long local = millis + TimeZone.getDefault().getOffset(millis);
+        return (int) (Math.floorMod(local, MILLIS_PER_DAY) / 60000);
+    }
+
+    // Minutes after the closest scheduled time at or before the dose, wrapping to yesterday's last alarm.
+    // Doses taken up to an hour early count as on time.
+    private static int minutesLate(int[] schedule, int minute) {
+        int late = Integer.MAX_VALUE;
+        for (int scheduled : schedule) {
+            int diff = minute - scheduled;
+            if (diff < 0) {
+                diff = diff >= -60 ? 0 : diff + MINUTES_PER_DAY;
+            }
+            late = Math.min(late, diff);
+        }
+        return late;
+    }
+
+    private static int lateBucket(int minutesLate) {
+        for (int i = 0; i < LATE_BUCKET_LIMITS.length; i++) {
+            if (minutesLate <= LATE_BUCKET_LIMITS[i]) {
+                return i;
+            }
+        }
+        return LATE_BUCKET_LIMITS.length;
+    }
+
+    private static int parseMinuteOfDay(String time) {
+        try {
+            String[] parts = time.split(":");
+            return Integer.parseInt(parts[0].trim()) * 60 + Integer.parseInt(parts[1].trim());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static long key(int medicineId, long period) {
+        return ((long) medicineId << 32) | (period & 0xffffffffL);
+    }
+
+    private static int add(Map<Long, Integer> counts, long key, int amount) {
+        Integer count = counts.get(key);
+        int updated = count != null ? count + amount : amount;
+        counts.put(key, updated);
+        return updated;
+    }
+}
@@ -0,0 +1,156 @@
+package com.smartmedicine.dispenser;
+
+import java.util.Locale;
+
+// A medicine's daily alarm set as a 1440-bit minute-of-day bitmap (bit m is byte m / 8,
+// mask 1 << (m % 8)), sent in one SET_ALARM_MAP frame whatever the number of alarms:
+//
+//   SET_ALARM_MAP:Name:CRC:encoding    answered by ALARM_MAP_OK:CRC or ALARM_MAP_BAD
+//
+// CRC is the CRC-16/CCITT-FALSE of the 180-byte bitmap in 4 hex digits. The encoding is the
+// shorter of
+//   S + 3 hex digits per set minute            (sparse, few alarms)
+//   R + comma-separated hex run lengths        (run-length, alternating clear/set, starting clear)
+// A frame longer than the device's line buffer is not built; the caller sends those alarms
+// another way.
+public final class AlarmBitmapCodec {
+    public static final int MINUTES_PER_DAY = 1440;
+    public static final int BITMAP_BYTES = MINUTES_PER_DAY / 8;
+    public static final String FRAME_PREFIX = "SET_ALARM_MAP:";
+
+    private AlarmBitmapCodec() {
+    }
+
+    public static byte[] newBitmap() {
+        return new byte[BITMAP_BYTES];
+    }
+
+    public static void setMinute(byte[] bitmap, int minuteOfDay) {
+        if (minuteOfDay >= 0 && minuteOfDay < MINUTES_PER_DAY) {
+            bitmap[minuteOfDay >> 3] |= (byte) (1 << (minuteOfDay & 7));
+        }
+    }
+
+    public static boolean isSet(byte[] bitmap, int minuteOfDay) {
+        return (bitmap[minuteOfDay >> 3] & (1 << (minuteOfDay & 7))) != 0;
+    }
+
+    // null if the frame would be longer than maxLength characters, newline not counted
+    public static String toFrame(String medicineName, byte[] bitmap, int maxLength) {
+        String frame = FRAME_PREFIX + medicineName + ":" + crcHex(bitmap) + ":" + encode(bitmap);
+        return frame.length() <= maxLength ? frame : null;
+    }
+
+    public static String crcHex(byte[] bitmap) {
+        return String.format(Locale.US, "%04X", crc16(bitmap));
+    }
+
+    // CRC-16/CCITT-FALSE: polynomial 0x1021, initial value 0xFFFF
+    public static int crc16(byte[] data) {
+        int crc = 0xFFFF;
+        for (byte b : data) {
+            crc ^= (b & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xFFFF;
+    }
+
+    // ==================== ENCODING ====================
+
+    public static String encode(byte[] bitmap) {
+        String sparse = encodeSparse(bitmap);
+        String runs = encodeRuns(bitmap);
+        return sparse.length() <= runs.length() ? sparse : runs;
+    }
+
+    private static String encodeSparse(byte[] bitmap) {
+        StringBuilder out = new StringBuilder("S");
+        for (int minute = 0; minute < MINUTES_PER_DAY; minute++) {
+            if (isSet(bitmap, minute)) {
+                appendHex(out, minute, 3);
+            }
+        }
+        return out.toString();
+    }
+
+    // A trailing clear run is left out
+    private static String encodeRuns(byte[] bitmap) {
+        StringBuilder out = new StringBuilder("R");
+        boolean current = false;
+        int run = 0;
+        for (int minute = 0; minute < MINUTES_PER_DAY; minute++) {
+            boolean set = isSet(bitmap, minute);
+            if (set != current) {
+                appendRun(out, run);
+                current = set;
+                run = 0;
+            }
+            run++;
+        }
+        if (current) {
+            appendRun(out, run);
+        }
+        return out.toString();
+    }
+
+    private static void appendRun(StringBuilder out, int run) {
+        if (out.length() > 1) {
+            out.append(',');
+        }
+        out.append(Integer.toHexString(run).toUpperCase(Locale.US));
+    }
+
+    private static void appendHex(StringBuilder out, int value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            out.append(Character.toUpperCase(Character.forDigit((value >> shift) & 0xF, 16)));
+        }
+    }
+
+    // ==================== DECODING ====================
+
+    // Inverse of encode(), for checking a frame; null if the encoding is malformed
+    public static byte[] decode(String encoded) {
+        if (encoded == null || encoded.isEmpty()) {
+            return null;
+        }
+        try {
+            byte[] bitmap = newBitmap();
+            String body = encoded.substring(1);
+            switch (encoded.charAt(0)) {
+                case 'S':
+                    if (body.length() % 3 != 0) {
+                        return null;
+                    }
+                    for (int i = 0; i < body.length(); i += 3) {
+                        int minute = Integer.parseInt(body.substring(i, i + 3), 16);
+                        if (minute >= MINUTES_PER_DAY) {
+                            return null;
+                        }
+                        setMinute(bitmap, minute);
+                    }
+                    return bitmap;
+                case 'R':
+                    int minute = 0;
+                    boolean set = false;
+                    for (String run : body.isEmpty() ? new String[0] : body.split(",")) {
+                        int length = Integer.parseInt(run, 16);
+                        if (minute + length > MINUTES_PER_DAY) {
+                            return null;
+                        }
+                        for (int i = 0; set && i < length; i++) {
+                            setMinute(bitmap, minute + i);
+                        }
+                        minute += length;
+                        set = !set;
+                    }
+                    return bitmap;
+                default:
+                    return null;
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
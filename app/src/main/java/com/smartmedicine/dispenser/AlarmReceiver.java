@@ -16,6 +16,9 @@ public class AlarmReceiver extends BroadcastReceiver {
     private static final String CHANNEL_ID = "medicine_alarm_channel";
     private static final int NOTIFICATION_ID = 1001;
 
+    // Budget for reconnecting to the dispenser; a receiver may run for about 10 s after goAsync()
+    private static final long CONNECT_DEADLINE_MS = 4000;
+
     @Override
     public void onReceive(Context context, Intent intent) {
         try {
@@ -29,18 +32,17 @@ public class AlarmReceiver extends BroadcastReceiver {
                 // Get medicine manager instance
                 MedicineManager medicineManager = MedicineManager.getInstance(context);
 
-                // Send Bluetooth command to Arduino FIRST (before recording)
+                // Queue the dispense; the dose is recorded as taken once the device acks it
                 sendDispenseCommand(context, medicineName, quantity);
 
-                // Record that medicine was taken (this will decrease quantity and add log entry)
-                medicineManager.recordMedicineTaken(medicineName);
-
                 // Check remaining quantity
                 Medicine medicine = medicineManager.getMedicineByName(medicineName);
                 int remainingQuantity = medicine != null ? medicine.getQuantity() : 0;
 
+                boolean lowStock = medicineManager.isMedicineRunningLow(medicineName);
+
                 // Create notification
-                createNotification(context, medicineName, quantity, remainingQuantity);
+                createNotification(context, medicineName, quantity, remainingQuantity, lowStock);
 
                 Log.d(TAG, "Medicine alarm processed: " + medicineName + ", Remaining quantity: " + remainingQuantity);
             }
@@ -51,21 +53,27 @@ public class AlarmReceiver extends BroadcastReceiver {
 
     private void sendDispenseCommand(Context context, String medicineName, int quantity) {
         try {
-            // Get BluetoothManager instance and send dispense command
-            BluetoothManager bluetoothManager = BluetoothManager.getInstance();
-            if (bluetoothManager != null && bluetoothManager.isConnected()) {
-                String command = "DISPENSE:" + medicineName + ":" + quantity;
-                bluetoothManager.sendData(command);
-                Log.d(TAG, "Dispense command sent to Arduino: " + command);
-            } else {
-                Log.w(TAG, "Bluetooth not connected - cannot send dispense command");
+            // Goes through the outbox, so a dispense is not lost while Bluetooth is down
+            BluetoothManager bluetoothManager = BluetoothManager.getInstance(context);
+            bluetoothManager.queueDispense(medicineName, quantity);
+            Log.d(TAG, "Dispense queued for " + medicineName + " (" + quantity + ")");
+
+            // No link (e.g. after process death): reconnect to the last device, which flushes the
+            // outbox. Keep the receiver alive until the attempt finishes.
+            if (!bluetoothManager.isConnected()) {
+                PendingResult pendingResult = goAsync();
+                bluetoothManager.connectToRememberedDevice(CONNECT_DEADLINE_MS, connected -> {
+                    Log.d(TAG, connected ? "Reconnected for dispense" : "Could not reconnect - dispense stays queued");
+                    pendingResult.finish();
+                });
             }
         } catch (Exception e) {
             Log.e(TAG, "Error sending dispense command: " + e.getMessage(), e);
         }
     }
 
-    private void createNotification(Context context, String medicineName, int dosage, int remainingQuantity) {
+    private void createNotification(Context context, String medicineName, int dosage, int remainingQuantity,
+                                    boolean lowStock) {
         try {
             NotificationManager notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
 
@@ -94,7 +102,7 @@ public class AlarmReceiver extends BroadcastReceiver {
             String message = "Take " + dosage + " pill(s). Remaining: " + remainingQuantity + " pills";
 
             // Add low stock warning if needed
-            if (remainingQuantity <= 5 && remainingQuantity > 0) {
+            if (lowStock && remainingQuantity > 0) {
                 message += " (Low stock!)";
             } else if (remainingQuantity == 0) {
                 message += " (Out of stock!)";
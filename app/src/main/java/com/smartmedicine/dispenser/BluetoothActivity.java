@@ -42,6 +42,7 @@ public class BluetoothActivity extends AppCompatActivity {
     private TextView emptyDevicesText;
     private TextView logTextView;
     private ScrollView logScrollView;
+    private boolean scrollPending; // one scroll per batch of log lines; main thread only
 
     // Managers
     private BluetoothManager bluetoothManager;
@@ -62,14 +63,38 @@ public class BluetoothActivity extends AppCompatActivity {
 
         @Override
         public void onDataReceived(String data) {
-            runOnUiThread(() -> {
-                try {
-                    addToLog("Received: " + data);
-                    processReceivedData(data);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error processing received data: " + e.getMessage(), e);
-                }
-            });
+            addToLog("Received: " + data);
+        }
+
+        @Override
+        public void onStatusReceived(String medicineName, int quantity) {
+            addToLog("Medicine status: " + medicineName + " - " + quantity + " pills left");
+            showToast("Status: " + medicineName + " - " + quantity + " pills");
+        }
+
+        @Override
+        public void onHistoryIngested(int inserted, int skipped) {
+            String summary = "History: " + inserted + " new, " + skipped + " already known";
+            addToLog(summary);
+            showToast(summary);
+        }
+
+        @Override
+        public void onDeviceAck(String ack) {
+            if (ack.equals("SYNC_COMPLETE")) {
+                addToLog("Alarm synchronization completed successfully");
+                showToast("Alarms synchronized successfully");
+            } else if (ack.equals("ALARM_SET")) {
+                addToLog("Alarm set on device");
+            } else if (ack.equals("ALARMS_SET")) {
+                addToLog("Alarm batch set on device");
+            } else if (ack.equals("ALARM_MAP_OK")) {
+                addToLog("Alarm map verified by device");
+            } else if (ack.equals("SUBSCRIBED")) {
+                addToLog("Device will push quantity changes");
+            } else if (ack.equals("DISPENSED")) {
+                addToLog("Dispense confirmed by device");
+            }
         }
 
         @Override
@@ -207,7 +232,7 @@ public class BluetoothActivity extends AppCompatActivity {
 
     private void initializeManagers() {
         try {
-            bluetoothManager = BluetoothManager.getInstance();
+            bluetoothManager = BluetoothManager.getInstance(this);
             bluetoothManager.setConnectionListener(connectionListener);
 
             medicineManager = MedicineManager.getInstance(this);
@@ -540,8 +565,12 @@ public class BluetoothActivity extends AppCompatActivity {
                         logTextView.append(logEntry);
 
                         // Scroll to bottom
-                        if (logScrollView != null) {
-                            logScrollView.post(() -> logScrollView.fullScroll(View.FOCUS_DOWN));
+                        if (logScrollView != null && !scrollPending) {
+                            scrollPending = true;
+                            logScrollView.post(() -> {
+                                scrollPending = false;
+                                logScrollView.fullScroll(View.FOCUS_DOWN);
+                            });
                         }
                     }
                 } catch (Exception e) {
@@ -553,43 +582,6 @@ public class BluetoothActivity extends AppCompatActivity {
         }
     }
 
-    private void processReceivedData(String data) {
-        try {
-            if (data.startsWith("STATUS:")) {
-                String[] parts = data.split(":");
-                if (parts.length >= 3) {
-                    String medicineName = parts[1];
-                    String quantity = parts[2];
-                    addToLog("Medicine status: " + medicineName + " - " + quantity + " pills left");
-                    showToast("Status: " + medicineName + " - " + quantity + " pills");
-                }
-            } else if (data.startsWith("HISTORY:")) {
-                String[] parts = data.split(":");
-                if (parts.length >= 4) {
-                    String medicineName = parts[1];
-                    String time = parts[2];
-                    String date = parts[3];
-                    addToLog("Medicine taken: " + medicineName + " at " + time + " on " + date);
-
-                    MedicineLogEntry entry = new MedicineLogEntry(medicineName, time, date);
-                    medicineManager.addLogEntry(entry);
-                    showToast("History: " + medicineName + " taken at " + time);
-                }
-            } else if (data.equals("SYNC_COMPLETE")) {
-                addToLog("Alarm synchronization completed successfully");
-                showToast("Alarms synchronized successfully");
-            } else if (data.equals("ALARM_SET")) {
-                addToLog("Alarm set on device");
-                showToast("Alarm set successfully");
-            } else {
-                addToLog("Device response: " + data);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error processing received data: " + e.getMessage(), e);
-            addToLog("Error processing data: " + e.getMessage());
-        }
-    }
-
     private void showToast(String message) {
         try {
             Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
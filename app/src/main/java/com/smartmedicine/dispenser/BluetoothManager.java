@@ -1,11 +1,14 @@
 package com.smartmedicine.dispenser;
 
 import android.Manifest;
+import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
-import android.os.Handler;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Looper;
 import android.util.Log;
 import androidx.annotation.RequiresPermission;
@@ -13,11 +16,18 @@ import androidx.annotation.RequiresPermission;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BluetoothManager {
@@ -28,34 +38,196 @@ public class BluetoothManager {
     private static final int ACK_TIMEOUT = 5000;
     private static final int SYNC_DELAY = 500;
     private static final int KEEP_ALIVE_INTERVAL = 10000;
+    // A dispense still unacked after this long is taken to have been dispensed, its ack lost
+    private static final long DISPENSE_ACK_TIMEOUT_MS = 60000;
+    // Longest the outbox and an interrupted session wait after CONNECT for the device's CAPS and,
+    // if CAPS announces flow control, its CREDITS window. Firmware without CAPS sends neither.
+    private static final long NEGOTIATION_TIMEOUT_MS = 1500;
+
+    // Keep-alive: the interval doubles while the link is idle, up to the maximum
+    private static final long KEEP_ALIVE_MAX_INTERVAL = 120000;
+    private static final long PONG_TIMEOUT_MS = 5000;
+    private static final int MAX_MISSED_PONGS = 2;
+    private static final byte[] PONG = "PONG".getBytes();
+
+    // SET_ALARMS and SET_ALARM_MAP frame size when the device's CAPS gives none; sized for the
+    // Arduino's line buffer
+    private static final int DEFAULT_FRAME_LIMIT = 120;
+    private static final String PACKED_ALARMS_PREFIX = "SET_ALARMS:";
+
+    // Longest a blocking send waits for its line to be written
+    private static final long WRITE_TIMEOUT_MS = 10000;
+
+    // Device clock checks: at connect, then as often as the measured drift requires
+    private static final long CLOCK_SYNC_MIN_INTERVAL_MS = 30 * 60 * 1000;
+    private static final long CLOCK_SYNC_MAX_INTERVAL_MS = 6 * 60 * 60 * 1000;
+    // A round asked for while another is still finishing is retried after this long
+    private static final long CLOCK_SYNC_RETRY_MS = 1000;
+
+    // Reconnect backoff
+    private static final long BACKOFF_BASE_MS = 1000;
+    private static final long BACKOFF_MAX_MS = 60000;
+    private static final long RECONNECT_TIMEOUT_MS = 8000;
+
+    // An unanswered history request is re-sent after a reconnect within this window
+    private static final long HISTORY_RESUME_WINDOW_MS = 10 * 60 * 1000;
+
+    private static final String PREFS_NAME = "BluetoothPrefs";
+    private static final String HISTORY_CURSOR_KEY_PREFIX = "history_cursor_";
+    private static final String LAST_DEVICE_KEY = "last_device_address";
 
     private static BluetoothManager instance;
     private BluetoothAdapter bluetoothAdapter;
-    private BluetoothSocket bluetoothSocket;
-    private OutputStream outputStream;
-    private InputStream inputStream;
-    private boolean isConnected = false;
+    // Replaced as a whole by the connect and close paths; readers take a local copy
+    private volatile LinkSocket bluetoothSocket;
+    private volatile OutputStream outputStream;
+    private volatile InputStream inputStream;
+    private final ConnectionStateMachine state = new ConnectionStateMachine();
     private BluetoothConnectionListener connectionListener;
     private Thread readThread;
     private Thread keepAliveThread;
-    private Handler mainHandler;
+    private final MainThread mainHandler;
+    private final Clock clock;
+    private final LinkConnector connector;
+    private final UiEventCoalescer uiEvents; // listener callbacks, batched per frame tick
+    private SharedPreferences sharedPreferences;
+    private Context context;
+    private String deviceAddress;
+
+    // Connect latency, measured up to the first byte the device sends
+    private long connectStartedAt;
+    private volatile boolean awaitingFirstByte;
+    private volatile long lastTimeToFirstByteMs = -1;
+
+    // Keep-alive state. Real traffic is anything but PING/PONG and makes a keep-alive unnecessary.
+    private volatile long lastTrafficAt;
+    private volatile long pongDueBy;         // 0 when no PING is outstanding
+    private volatile boolean pongSupported;  // firmware has answered a PING on this link
+    private volatile int missedPongs;
+
+    // Reconnect supervisor
+    private final ConnectionMetrics metrics;
+    private final OutboundScheduler scheduler;
+    private final ClockSync clockSync = new ClockSync(this::writeLine);
+    private final Runnable clockSyncRunnable = this::startClockSync;
+    private String clockSyncDevice; // device the drift history belongs to
+    private final AtomicBoolean clockSyncRunning = new AtomicBoolean(false);
+    private volatile Thread clockSyncThread;
+    private final Random random = new Random();
+    private final Runnable reconnectRunnable = this::attemptReconnect;
+    private volatile boolean autoReconnect = false;
+    private int reconnectAttempt = 0;
+
+    // Session state resumed after a reconnect
+    private List<Medicine> interruptedSync;
+    private int interruptedSyncIndex;
+    private volatile long historyRequestedAt;
     private String lastReceivedData = "";
     private final AtomicBoolean isAcknowledgmentReceived = new AtomicBoolean(false);
     private final Object syncLock = new Object();
 
-    private boolean isSyncing = false;
     private int syncRetryCount = 0;
-    private boolean isReconnecting = false;
+
+    // Set once the device acknowledges SUBSCRIBE_STATUS and starts pushing QTY events
+    private volatile boolean statusSubscribed = false;
+
+    // Longest packed SET_ALARMS frame the device accepts; 0 if it only understands SET_ALARM
+    private volatile int packedAlarmLimit = 0;
+    // Longest SET_ALARM_MAP frame the device accepts; 0 if it has no alarm maps
+    private volatile int alarmMapLimit = 0;
+
+    // Per link, from CAPS: the device answers dispenses with DISPENSED, and it will send CREDITS
+    private volatile boolean dispenseAcks = false;
+    private volatile boolean creditsAdvertised = false;
+    private volatile CountDownLatch capsReceived = new CountDownLatch(0);
+    private volatile CountDownLatch creditsReceived = new CountDownLatch(0);
+
+    // Incoming frames, parsed on the read thread
+    private final ProtocolDispatcher dispatcher = new ProtocolDispatcher();
+    private HistoryReceiver historyReceiver;
+    private CommandOutbox outbox;
+    private final Object outboxLock = new Object();
+    // One sender for the outbox, so flushes run in order without a thread per dispense
+    private final ExecutorService outboxExecutor = Executors.newSingleThreadExecutor();
+
+    // The RFCOMM socket behind an interface, so tests can drive the connect paths with a fake
+    interface LinkSocket {
+        void connect() throws IOException;
+
+        boolean isConnected();
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    interface LinkConnector {
+        LinkSocket create(String address) throws IOException;
+
+        // False while the radio is off or the connect permission is missing
+        default boolean isAvailable() {
+            return true;
+        }
+    }
+
+    // Every change goes through a compare-and-set in ConnectionStateMachine, so only one thread
+    // wins a connect, a close or the start of a sync
+    public enum ConnectionState {
+        DISCONNECTED,
+        CONNECTING,  // socket connect in progress
+        CANCELLING,  // connect being aborted; the connect thread takes it back to DISCONNECTED
+        HANDSHAKING, // streams open, handshake being sent
+        READY,
+        SYNCING,     // alarm sync owns the link
+        CLOSING
+    }
+
+    // Callbacks arrive on the main thread
+    public interface ConnectCallback {
+        void onResult(boolean connected);
+    }
 
     public interface BluetoothConnectionListener {
         void onConnectionStatusChanged(boolean connected, String deviceName);
-        void onDataReceived(String data);
+        void onDataReceived(String data); // every received line, for display
         void onError(String error);
+        void onStatusReceived(String medicineName, int quantity);
+        void onHistoryIngested(int inserted, int skipped);
+        void onDeviceAck(String ack); // ALARM_SET, ALARMS_SET, ALARM_MAP_OK, SYNC_COMPLETE, SUBSCRIBED, DISPENSED
     }
 
     private BluetoothManager() {
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        mainHandler = new Handler(Looper.getMainLooper());
+        mainHandler = MainThread.forLooper(Looper.getMainLooper());
+        clock = Clock.SYSTEM;
+        metrics = new ConnectionMetrics(clock);
+        scheduler = new OutboundScheduler(clock);
+        uiEvents = new UiEventCoalescer(mainHandler, this::deliverEvents);
+        connector = new LinkConnector() {
+            @Override
+            public LinkSocket create(String address) throws IOException {
+                return createRfcommSocket(address);
+            }
+
+            @Override
+            public boolean isAvailable() {
+                return isBluetoothEnabled() && hasConnectPermission();
+            }
+        };
+        registerFrameHandlers();
+    }
+
+    // For tests: no adapter, context or outbox, and a fake link
+    BluetoothManager(LinkConnector connector, MainThread mainThread, Clock clock) {
+        this.connector = connector;
+        this.mainHandler = mainThread;
+        this.clock = clock;
+        metrics = new ConnectionMetrics(clock);
+        scheduler = new OutboundScheduler(clock);
+        uiEvents = new UiEventCoalescer(mainThread, this::deliverEvents);
+        registerFrameHandlers();
     }
 
     public static synchronized BluetoothManager getInstance() {
@@ -65,6 +237,24 @@ public class BluetoothManager {
         return instance;
     }
 
+    // Gives the manager storage for per-device state such as the history cursor
+    public static synchronized BluetoothManager getInstance(Context context) {
+        BluetoothManager manager = getInstance();
+        if (manager.context == null && context != null) {
+            manager.context = context.getApplicationContext();
+            manager.sharedPreferences = manager.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            MedicineManager medicineManager = MedicineManager.getInstance(manager.context);
+            medicineManager.setQuantityListener(manager::pushQuantity);
+            manager.outbox = new CommandOutbox(manager.context);
+            manager.historyReceiver = new HistoryReceiver(manager, medicineManager, manager.mainHandler, result -> {
+                if (manager.connectionListener != null) {
+                    manager.connectionListener.onHistoryIngested(result.getInserted(), result.getSkipped());
+                }
+            });
+        }
+        return manager;
+    }
+
     public void setConnectionListener(BluetoothConnectionListener listener) {
         this.connectionListener = listener;
     }
@@ -99,30 +289,50 @@ public class BluetoothManager {
     }
 
     public boolean isConnected() {
-        return isConnected && bluetoothSocket != null && bluetoothSocket.isConnected();
+        LinkSocket socket = bluetoothSocket;
+        return isLinkUp() && socket != null && socket.isConnected();
+    }
+
+    public ConnectionState getConnectionState() {
+        return state.get();
+    }
+
+    // Streams are open and writable
+    private boolean isLinkUp() {
+        return state.isLinkUp();
+    }
+
+    private boolean transition(ConnectionState from, ConnectionState to) {
+        return state.transition(from, to);
     }
 
     @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
     public void connectToDevice(BluetoothDevice device) {
+        connect(device.getAddress(), device.getName() != null ? device.getName() : "Unknown Device");
+    }
+
+    void connect(String address, String deviceName) {
+        // Switching devices drops the current link first
+        if (isLinkUp()) {
+            closeConnection(false);
+        }
+
         // Prevent multiple connection attempts
-        if (isReconnecting) {
-            Log.d(TAG, "Already attempting to reconnect");
+        if (!transition(ConnectionState.DISCONNECTED, ConnectionState.CONNECTING)) {
+            Log.d(TAG, "Connection already in progress (" + state.get() + ")");
             return;
         }
 
-        isReconnecting = true;
+        long connectStartedAt = clock.elapsedRealtime();
 
         new Thread(() -> {
             try {
-                if (bluetoothSocket != null) {
-                    disconnect();
-                }
-
                 // Log connection attempt
-                Log.d(TAG, "Attempting to connect to " + device.getAddress());
+                Log.d(TAG, "Attempting to connect to " + address);
+                deviceAddress = address;
 
                 // Create socket and connect with timeout
-                bluetoothSocket = device.createRfcommSocketToServiceRecord(HC05_UUID);
+                bluetoothSocket = connector.create(address);
 
                 // Connect with retry logic
                 boolean connected = false;
@@ -130,6 +340,10 @@ public class BluetoothManager {
                 Exception lastException = null;
 
                 while (!connected && retries < 3) {
+                    // A disconnect() meanwhile closed the socket; don't open another
+                    if (state.get() != ConnectionState.CONNECTING) {
+                        throw new IOException("Connect cancelled");
+                    }
                     try {
                         bluetoothSocket.connect();
                         connected = true;
@@ -138,7 +352,7 @@ public class BluetoothManager {
                         Log.w(TAG, "Connection attempt " + (retries + 1) + " failed: " + e.getMessage());
                         retries++;
 
-                        if (retries < 3) {
+                        if (retries < 3 && state.get() == ConnectionState.CONNECTING) {
                             // Close and recreate socket for retry
                             try {
                                 bluetoothSocket.close();
@@ -146,8 +360,8 @@ public class BluetoothManager {
                                 Log.e(TAG, "Error closing socket for retry: " + closeEx.getMessage());
                             }
 
-                            bluetoothSocket = device.createRfcommSocketToServiceRecord(HC05_UUID);
-                            Thread.sleep(1000); // Wait before retry
+                            bluetoothSocket = connector.create(address);
+                            Thread.sleep(backoffDelay(retries - 1)); // Wait before retry
                         }
                     }
                 }
@@ -157,50 +371,311 @@ public class BluetoothManager {
                             (lastException != null ? lastException.getMessage() : "Unknown error"));
                 }
 
-                // Get streams
-                outputStream = bluetoothSocket.getOutputStream();
-                inputStream = bluetoothSocket.getInputStream();
-                isConnected = true;
+                if (!onSocketConnected(address, deviceName, bluetoothSocket, connectStartedAt)) {
+                    Log.w(TAG, "Link lost during handshake with " + deviceName);
+                }
 
-                String deviceName = device.getName() != null ? device.getName() : "Unknown Device";
+            } catch (IOException | InterruptedException e) {
+                Log.e(TAG, "Connection failed: " + e.getMessage(), e);
+                abortConnect();
 
-                // Update UI
-                mainHandler.post(() -> {
-                    if (connectionListener != null) {
-                        connectionListener.onConnectionStatusChanged(true, deviceName);
-                    }
-                });
+                uiEvents.postError("Connection failed: " + e.getMessage());
+                uiEvents.postConnection(false, "");
+            }
+        }).start();
+    }
 
-                // Start read thread
-                startReadThread();
+    // Connects to the last device that connected successfully, with a single attempt bounded by
+    // timeoutMs, for callers with a deadline such as an alarm. The callback runs on the main thread.
+    @SuppressLint("MissingPermission") // checked by connector.isAvailable()
+    public void connectToRememberedDevice(long timeoutMs, ConnectCallback callback) {
+        if (isConnected()) {
+            mainHandler.post(() -> callback.onResult(true));
+            return;
+        }
 
-                // Start keep-alive thread
-                startKeepAliveThread();
+        String address = getRememberedDeviceAddress();
+        if (address == null || !connector.isAvailable()) {
+            Log.d(TAG, "Remembered device connect skipped");
+            mainHandler.post(() -> callback.onResult(false));
+            return;
+        }
 
-                Log.d(TAG, "Successfully connected to " + deviceName);
+        connectWithDeadline(address, remoteDeviceName(address), timeoutMs, callback);
+    }
 
-                // Send initial handshake
-                sendData("CONNECT");
+    // One connect attempt that a watchdog aborts after timeoutMs. The watchdog cancels only from
+    // CONNECTING, so a socket that connected just as the deadline passed is kept open rather
+    // than closed under the new session.
+    void connectWithDeadline(String address, String deviceName, long timeoutMs, ConnectCallback callback) {
+        if (!transition(ConnectionState.DISCONNECTED, ConnectionState.CONNECTING)) {
+            Log.d(TAG, "Remembered device connect skipped (" + state.get() + ")");
+            mainHandler.post(() -> callback.onResult(false));
+            return;
+        }
 
-            } catch (IOException | InterruptedException e) {
-                Log.e(TAG, "Connection failed: " + e.getMessage(), e);
-                isConnected = false;
+        long connectStartedAt = clock.elapsedRealtime();
+
+        new Thread(() -> {
+            boolean connected = false;
+            LinkSocket socket = null;
+            Runnable watchdog = null;
+            try {
+                if (bluetoothAdapter != null) {
+                    bluetoothAdapter.cancelDiscovery(); // discovery slows connects down considerably
+                }
+                socket = connector.create(address);
+                bluetoothSocket = socket; // lets disconnect() abort the attempt
+
+                // connect() can block for over ten seconds; closing the socket aborts it
+                LinkSocket attempt = socket;
+                watchdog = () -> {
+                    if (bluetoothSocket != attempt
+                            || !transition(ConnectionState.CONNECTING, ConnectionState.CANCELLING)) {
+                        return;
+                    }
+                    try {
+                        attempt.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error closing timed out socket: " + e.getMessage());
+                    }
+                };
+                mainHandler.postDelayed(watchdog, timeoutMs);
+
+                socket.connect();
+                mainHandler.removeCallbacks(watchdog);
 
-                mainHandler.post(() -> {
-                    if (connectionListener != null) {
-                        connectionListener.onError("Connection failed: " + e.getMessage());
-                        connectionListener.onConnectionStatusChanged(false, "");
+                connected = onSocketConnected(address, deviceName, socket, connectStartedAt);
+                if (connected) {
+                    Log.d(TAG, "Remembered device connected in " + (clock.elapsedRealtime() - connectStartedAt) + " ms");
+                }
+
+            } catch (IOException | IllegalArgumentException | SecurityException e) {
+                Log.w(TAG, "Remembered device connect failed after " +
+                        (clock.elapsedRealtime() - connectStartedAt) + " ms: " + e.getMessage());
+                if (watchdog != null) {
+                    mainHandler.removeCallbacks(watchdog);
+                }
+                if (socket != null && !connected) {
+                    try {
+                        socket.close();
+                    } catch (IOException closeEx) {
+                        Log.e(TAG, "Error closing socket: " + closeEx.getMessage());
                     }
-                });
+                }
+                abortConnect();
             } finally {
-                isReconnecting = false;
+                boolean result = connected;
+                mainHandler.post(() -> callback.onResult(result));
             }
         }).start();
     }
 
+    @SuppressLint("MissingPermission") // callers hold BLUETOOTH_CONNECT
+    private String remoteDeviceName(String address) {
+        String name = bluetoothAdapter != null ? bluetoothAdapter.getRemoteDevice(address).getName() : null;
+        return name != null ? name : "Unknown Device";
+    }
+
+    @SuppressLint("MissingPermission") // callers hold BLUETOOTH_CONNECT
+    private LinkSocket createRfcommSocket(String address) throws IOException {
+        BluetoothSocket socket = bluetoothAdapter.getRemoteDevice(address).createRfcommSocketToServiceRecord(HC05_UUID);
+        return new LinkSocket() {
+            @Override
+            public void connect() throws IOException {
+                socket.connect();
+            }
+
+            @Override
+            public boolean isConnected() {
+                return socket.isConnected();
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    // Shared tail of every successful connect: streams, threads, handshake and outbox flush.
+    // Throws while the connect still owns the CONNECTING state, so the caller aborts it; once the
+    // link is up, a failed handshake is torn down here as a drop and false returned.
+    private boolean onSocketConnected(String address, String deviceName, LinkSocket socket, long connectStartedAt)
+            throws IOException {
+        OutputStream out = socket.getOutputStream();
+        outputStream = out;
+        inputStream = socket.getInputStream();
+        this.connectStartedAt = connectStartedAt;
+        awaitingFirstByte = true;
+
+        // Fails if disconnect() closed the socket while it was connecting
+        if (!transition(ConnectionState.CONNECTING, ConnectionState.HANDSHAKING)) {
+            throw new IOException("Connect cancelled");
+        }
+        scheduler.start(line -> writeTo(out, line), this::handleConnectionError);
+        deviceAddress = address;
+        rememberDevice(deviceAddress);
+
+        // From here on a dropped link is reconnected automatically
+        autoReconnect = true;
+        reconnectAttempt = 0;
+        mainHandler.removeCallbacks(reconnectRunnable);
+        metrics.onConnected();
+
+        // Update UI
+        uiEvents.postConnection(true, deviceName);
+
+        // Armed before the read thread starts, so an early CAPS is not missed
+        capsReceived = new CountDownLatch(1);
+        creditsReceived = new CountDownLatch(1);
+
+        // Start read thread
+        startReadThread();
+
+        // Start keep-alive thread
+        startKeepAliveThread();
+
+        Log.d(TAG, "Successfully connected to " + deviceName);
+
+        // Send initial handshake, then ask the device to push quantity changes
+        if (!writeLine("CONNECT") || !writeLine("SUBSCRIBE_STATUS")
+                || !transition(ConnectionState.HANDSHAKING, ConnectionState.READY)) {
+            // Reported once and reconnected like any other drop. A close that got here first,
+            // including one from a failed write, has done both already.
+            if (outputStream == out && closeConnection(true)) {
+                scheduleReconnect();
+            }
+            return false;
+        }
+
+        // Deliver commands queued while the link was down and resume interrupted work, once the
+        // device has said what it supports
+        outboxExecutor.execute(() -> {
+            awaitNegotiation();
+            if (outputStream != out) {
+                return;
+            }
+            flushOutbox();
+            resumeSession();
+
+            // Drift history only carries over for the same device
+            if (!address.equals(clockSyncDevice)) {
+                clockSync.reset();
+                clockSyncDevice = address;
+            }
+            mainHandler.removeCallbacks(clockSyncRunnable);
+            startClockSync();
+        });
+        return true;
+    }
+
+    // ==================== REMEMBERED DEVICE ====================
+
+    // Without storage, falls back to the device connected last in this process
+    public String getRememberedDeviceAddress() {
+        return sharedPreferences != null ? sharedPreferences.getString(LAST_DEVICE_KEY, null) : deviceAddress;
+    }
+
+    private void rememberDevice(String address) {
+        if (sharedPreferences != null && !address.equals(getRememberedDeviceAddress())) {
+            sharedPreferences.edit().putString(LAST_DEVICE_KEY, address).apply();
+        }
+    }
+
+    private boolean hasConnectPermission() {
+        if (context == null) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            return context.checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED;
+        }
+        return true;
+    }
+
+    // Milliseconds from starting the connect to the first byte from the device; -1 until measured
+    public long getLastTimeToFirstByteMs() {
+        return lastTimeToFirstByteMs;
+    }
+
+    // User-initiated: also stops automatic reconnection
     public void disconnect() {
+        autoReconnect = false;
+        mainHandler.removeCallbacks(reconnectRunnable);
+        closeConnection(false);
+    }
+
+    // A connect that failed or was cancelled before its link came up; drops its half-open socket
+    // and frees the CONNECTING or CANCELLING state it still owns
+    private void abortConnect() {
+
+        LinkSocket socket = bluetoothSocket;
+        if (socket != null && !isLinkUp()) {
+            bluetoothSocket = null;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing socket: " + e.getMessage());
+            }
+        }
+        if (!transition(ConnectionState.CONNECTING, ConnectionState.DISCONNECTED)) {
+            transition(ConnectionState.CANCELLING, ConnectionState.DISCONNECTED);
+        }
+    }
+
+    // dropped: the link failed rather than being closed on purpose. Returns false if another
+    // thread is already closing it or there was no link, so the close runs exactly once.
+    private boolean closeConnection(boolean dropped) {
+        ConnectionState previous = state.beginClose();
+        if (previous == null) {
+            return false;
+        }
+        if (previous == ConnectionState.CONNECTING) {
+            // Now CANCELLING. Closing the socket makes the blocked connect() fail, and the
+            // connect thread resets the state
+            LinkSocket socket = bluetoothSocket;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing socket: " + e.getMessage());
+                }
+            }
+            return false;
+        }
+
         try {
-            isConnected = false;
+            metrics.onDisconnected(dropped);
+            statusSubscribed = false;
+            mainHandler.removeCallbacks(clockSyncRunnable);
+            Thread clockSyncRound = clockSyncThread;
+            if (clockSyncRound != null) {
+                clockSyncRound.interrupt();
+            }
+            packedAlarmLimit = 0;
+            dispenseAcks = false;
+            creditsAdvertised = false;
+            capsReceived.countDown();
+            creditsReceived.countDown();
+            alarmMapLimit = 0;
+            scheduler.stop();
+
+            // Keep whatever part of a history dump arrived before the link dropped
+            uiEvents.postTask(() -> {
+                if (historyReceiver != null) {
+                    historyReceiver.flush();
+                }
+            });
 
             // Stop threads
             if (readThread != null) {
@@ -214,198 +689,332 @@ public class BluetoothManager {
             }
 
             // Close streams
-            if (outputStream != null) {
-                try {
-                    outputStream.close();
-                } catch (IOException e) {
-                    Log.e(TAG, "Error closing output stream: " + e.getMessage());
+            // Under the write lock, so a write that saw the link up finishes first
+            OutputStream out = outputStream;
+            outputStream = null;
+            if (out != null) {
+                synchronized (out) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error closing output stream: " + e.getMessage());
+                    }
                 }
-                outputStream = null;
             }
 
-            if (inputStream != null) {
+            InputStream in = inputStream;
+            inputStream = null;
+            if (in != null) {
                 try {
-                    inputStream.close();
+                    in.close();
                 } catch (IOException e) {
                     Log.e(TAG, "Error closing input stream: " + e.getMessage());
                 }
-                inputStream = null;
             }
 
             // Close socket
-            if (bluetoothSocket != null) {
+            LinkSocket socket = bluetoothSocket;
+            bluetoothSocket = null;
+            if (socket != null) {
                 try {
-                    bluetoothSocket.close();
+                    socket.close();
                 } catch (IOException e) {
                     Log.e(TAG, "Error closing socket: " + e.getMessage());
                 }
-                bluetoothSocket = null;
             }
 
             // Update UI
-            mainHandler.post(() -> {
-                if (connectionListener != null) {
-                    connectionListener.onConnectionStatusChanged(false, "");
-                }
-            });
+            uiEvents.postConnection(false, "");
 
             Log.d(TAG, "Disconnected from device");
 
         } catch (Exception e) {
             Log.e(TAG, "Error during disconnect: " + e.getMessage(), e);
+        } finally {
+            transition(ConnectionState.CLOSING, ConnectionState.DISCONNECTED);
         }
+        return true;
     }
 
     private void handleConnectionError(Exception e) {
         Log.e(TAG, "Connection error: " + e.getMessage(), e);
 
-        // Only report error if we're still connected (avoid duplicate errors)
-        if (isConnected) {
-            isConnected = false;
+        // Only the thread that wins the close reports it (avoid duplicate errors), then lets the
+        // supervisor bring the link back
+        if (closeConnection(true)) {
+            uiEvents.postError("Connection error: " + e.getMessage());
+            scheduleReconnect();
+        }
+    }
 
-            mainHandler.post(() -> {
-                if (connectionListener != null) {
-                    connectionListener.onError("Connection error: " + e.getMessage());
-                    connectionListener.onConnectionStatusChanged(false, "");
+    // ==================== CLOCK SYNC ====================
+
+    // Checks the device clock and sets it if it is off; repeats while connected, sooner for a
+    // clock that drifts fast. Firmware that does not answer TIME_REQ is left alone. One round
+    // runs at a time, since ClockSync matches responses to a single outstanding request; a
+    // close interrupts it.
+    void startClockSync() {
+        if (!isConnected()) {
+            return;
+        }
+        if (!clockSyncRunning.compareAndSet(false, true)) {
+            // Most likely a round from the previous link still unwinding
+            mainHandler.removeCallbacks(clockSyncRunnable);
+            mainHandler.postDelayed(clockSyncRunnable, CLOCK_SYNC_RETRY_MS);
+            return;
+        }
+        Thread round = new Thread(() -> {
+            try {
+                if (clockSync.run() && isConnected()) {
+                    long delay = clockSync.nextInterval(CLOCK_SYNC_MIN_INTERVAL_MS, CLOCK_SYNC_MAX_INTERVAL_MS);
+                    mainHandler.removeCallbacks(clockSyncRunnable);
+                    mainHandler.postDelayed(clockSyncRunnable, delay);
                 }
-            });
+            } catch (InterruptedException e) {
+                Log.d(TAG, "Clock sync interrupted");
+            } finally {
+                clockSyncRunning.set(false);
+            }
+        });
+        clockSyncThread = round;
+        round.start();
+    }
 
-            // Clean disconnect
-            disconnect();
+    // ==================== RECONNECT SUPERVISOR ====================
+
+    // Full jitter on the upper half: attempt n waits between 2^n / 2 and 2^n seconds, capped
+    private long backoffDelay(int attempt) {
+        long ceiling = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(attempt, 16));
+        return ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2));
+    }
+
+    private void scheduleReconnect() {
+        if (!autoReconnect) {
+            return;
         }
+        long delay = backoffDelay(reconnectAttempt);
+        Log.d(TAG, "Reconnecting in " + delay + " ms (attempt " + (reconnectAttempt + 1) + ")");
+        mainHandler.removeCallbacks(reconnectRunnable);
+        mainHandler.postDelayed(reconnectRunnable, delay);
     }
 
-    public void syncAllAlarms(List<Medicine> medicines) {
-        if (!isConnected) {
-            if (connectionListener != null) {
-                mainHandler.post(() -> connectionListener.onError("Not connected to device"));
-            }
+    private void attemptReconnect() {
+        if (!autoReconnect || isConnected()) {
             return;
         }
+        reconnectAttempt++;
+        metrics.onReconnectAttempt();
+        connectToRememberedDevice(RECONNECT_TIMEOUT_MS, connected -> {
+            if (!connected) {
+                scheduleReconnect();
+            } else {
+                Log.d(TAG, "Link recovered: " + metrics);
+            }
+        });
+    }
 
-        // Prevent multiple sync attempts
-        if (isSyncing) {
-            if (connectionListener != null) {
-                mainHandler.post(() -> connectionListener.onError("Sync already in progress"));
+    // Blocks until CAPS has arrived, and the CREDITS window too if CAPS announced one, or until
+    // NEGOTIATION_TIMEOUT_MS has passed. Until then a flush could not tell whether to pace for
+    // credits or whether the device will ack dispenses.
+    private void awaitNegotiation() {
+        long deadline = System.currentTimeMillis() + NEGOTIATION_TIMEOUT_MS;
+        try {
+            if (!capsReceived.await(NEGOTIATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.d(TAG, "No CAPS from device, treating it as legacy firmware");
+                return;
+            }
+            if (creditsAdvertised && !creditsReceived.await(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Device announced flow control but sent no CREDITS");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Picks up work the drop interrupted: the outbox is flushed by the caller, an alarm sync
+    // continues after its last acknowledged alarm and an unfinished history fetch is re-sent
+    // from the stored cursor
+    private void resumeSession() {
+        List<Medicine> medicines;
+        int resumeFrom;
+        synchronized (syncLock) {
+            medicines = interruptedSync;
+            resumeFrom = interruptedSyncIndex;
+            interruptedSync = null;
+        }
+        if (medicines != null) {
+            Log.d(TAG, "Resuming alarm sync at alarm " + (resumeFrom + 1));
+            startAlarmSync(medicines, resumeFrom);
+        }
+
+        long requestedAt = historyRequestedAt;
+        if (requestedAt > 0 && clock.elapsedRealtime() - requestedAt < HISTORY_RESUME_WINDOW_MS) {
+            Log.d(TAG, "Resuming interrupted history fetch");
+            requestMedicineHistory();
+        }
+    }
+
+    public ConnectionMetrics getConnectionMetrics() {
+        return metrics;
+    }
+
+    // Per-class send counts and latencies
+    public OutboundScheduler getOutboundScheduler() {
+        return scheduler;
+    }
+
+    // Measured offset and drift of the device's clock
+    public ClockSync getClockSync() {
+        return clockSync;
+    }
+
+    public boolean isAutoReconnectEnabled() {
+        return autoReconnect;
+    }
+
+    public void syncAllAlarms(List<Medicine> medicines) {
+        synchronized (syncLock) {
+            interruptedSync = null;
+        }
+        startAlarmSync(medicines, 0);
+    }
+
+    // resumeFrom > 0 continues an interrupted sync after its last acknowledged alarm, keeping the
+    // alarms the device already has
+    private void startAlarmSync(List<Medicine> medicines, int resumeFrom) {
+        // Prevent multiple sync attempts: only one caller moves READY to SYNCING
+        if (!transition(ConnectionState.READY, ConnectionState.SYNCING)) {
+            String error = state.get() == ConnectionState.SYNCING ? "Sync already in progress" : "Not connected to device";
+            uiEvents.postError(error);
             return;
         }
 
-        isSyncing = true;
         syncRetryCount = 0;
 
         new Thread(() -> {
+            // Index of the first alarm the device has not acknowledged
+            int acknowledged = resumeFrom;
             try {
                 // Notify UI
-                mainHandler.post(() -> {
-                    if (connectionListener != null) {
-                        connectionListener.onDataReceived("SYNC_STARTING");
-                    }
-                });
+                uiEvents.postData("SYNC_STARTING");
 
                 Log.d(TAG, "Starting alarm synchronization...");
 
-                // Count total alarms
-                int totalAlarms = countTotalAlarms(medicines);
-                final int finalTotalAlarms = totalAlarms;
+                List<AlarmSlot> alarms = buildAlarmSlots(medicines);
+                final int finalTotalAlarms = alarms.size();
 
                 // Prepare device for sync with longer delay
+                clearLastReceived();
                 sendData("SYNC_START");
-                Thread.sleep(1000);
+                pace();
 
                 // Wait for SYNC_STARTED response
-                long startTime = System.currentTimeMillis();
-                boolean syncStarted = false;
-
-                while (System.currentTimeMillis() - startTime < 5000) {
-                    synchronized (syncLock) {
-                        if (lastReceivedData.contains("SYNC_STARTED")) {
-                            syncStarted = true;
-                            break;
-                        }
-                    }
-                    Thread.sleep(100);
-                }
-
-                if (!syncStarted) {
+                if (!awaitReply("SYNC_STARTED", 5000)) {
                     throw new RuntimeException("Failed to start sync - no acknowledgment received");
                 }
 
                 // Tell Arduino how many alarms to expect
-                sendData("EXPECT_ALARMS:" + totalAlarms);
-                Thread.sleep(1000);
-
-                // Clear existing alarms
-                sendData("CLEAR_ALARMS");
-                Thread.sleep(1000);
-
-                Log.d(TAG, "Sending " + totalAlarms + " alarms to device");
-
-                // Send all alarms with proper delays
-                int currentAlarmCount = 0;
-
-                for (Medicine medicine : medicines) {
-                    List<String> alarmTimes = medicine.getAlarmTimes();
-                    if (alarmTimes != null) {
-                        for (String time : alarmTimes) {
-                            String[] timeParts = time.split(":");
-                            if (timeParts.length >= 2) {
-                                String hour = timeParts[0];
-                                String minute = timeParts[1];
-
-                                // Format: SET_ALARM:MedicineName:Hour:Minute(Quantity)
-                                String command = "SET_ALARM:" + medicine.getName() + ":" +
-                                        hour + ":" + minute + "(1)";
-
-                                // Send command and wait for response
-                                sendData(command);
-
-                                // Wait for ALARM_SET response with timeout
-                                startTime = System.currentTimeMillis();
-                                boolean alarmSet = false;
-
-                                while (System.currentTimeMillis() - startTime < 5000) {
-                                    synchronized (syncLock) {
-                                        if (lastReceivedData.contains("ALARM_SET")) {
-                                            alarmSet = true;
-                                            break;
-                                        }
-                                    }
-                                    Thread.sleep(100);
-                                }
-
-                                if (!alarmSet) {
-                                    Log.w(TAG, "No ALARM_SET confirmation received for: " + command);
-                                    // Continue anyway - Arduino might have received it
-                                }
-
-                                // Update counter and UI
-                                currentAlarmCount++;
-                                final int finalCurrentCount = currentAlarmCount;
-
-                                mainHandler.post(() -> {
-                                    if (connectionListener != null) {
-                                        connectionListener.onDataReceived("SYNC_PROGRESS:" +
-                                                finalCurrentCount + ":" +
-                                                finalTotalAlarms);
-                                    }
-                                });
-
-                                Log.d(TAG, "Sent alarm " + finalCurrentCount + "/" + finalTotalAlarms +
-                                        ": " + command);
-
-                                // Longer delay between alarms
-                                Thread.sleep(1000);
-                            }
+                sendData("EXPECT_ALARMS:" + (finalTotalAlarms - resumeFrom));
+                pace();
+
+                // Clear existing alarms, unless resuming onto the ones already sent
+                if (resumeFrom == 0) {
+                    sendData("CLEAR_ALARMS");
+                    pace();
+                }
+
+                Log.d(TAG, "Sending " + (finalTotalAlarms - resumeFrom) + " alarms to device");
+
+                // Send all alarms with proper delays. Devices that announced ALARM_MAP take each
+                // medicine's alarm set as one checksummed bitmap; those that announced SET_ALARMS get
+                // as many alarms per frame as fit, answered by a single ALARMS_SET.
+                int mapLimit = alarmMapLimit;
+                boolean useMaps = mapLimit > 0;
+                boolean mapRetried = false;
+                int packLimit = packedAlarmLimit;
+                int i = resumeFrom;
+                while (i < finalTotalAlarms) {
+                    String command = null;
+                    String ack = null;
+                    int count = 0;
+                    if (useMaps) {
+                        // A map replaces the medicine's whole set, so a resumed sync resends it all
+                        int start = startOfMedicine(alarms, i);
+                        int end = endOfMedicine(alarms, i);
+                        byte[] bitmap = AlarmBitmapCodec.newBitmap();
+                        for (int k = start; k < end; k++) {
+                            AlarmBitmapCodec.setMinute(bitmap, alarms.get(k).hour * 60 + alarms.get(k).minute);
+                        }
+                        command = AlarmBitmapCodec.toFrame(alarms.get(i).medicineName, bitmap, mapLimit);
+                        if (command != null) {
+                            ack = "ALARM_MAP_OK:" + AlarmBitmapCodec.crcHex(bitmap);
+                            count = end - i;
+                        } else {
+                            Log.d(TAG, "Alarm map for " + alarms.get(i).medicineName + " too long, sending alarm lines");
+                        }
+                    }
+                    boolean mapFrame = command != null;
+                    if (!mapFrame) {
+                        StringBuilder packed = new StringBuilder(PACKED_ALARMS_PREFIX);
+                        count = packLimit > 0 ? packAlarms(alarms, i, packLimit, packed) : 0;
+                        command = count > 1 ? packed.toString() : alarms.get(i).toCommand();
+                        ack = count > 1 ? "ALARMS_SET" : "ALARM_SET";
+                        count = Math.max(count, 1);
+                    }
+
+                    // Send command and wait for response
+                    ensureConnected();
+                    clearLastReceived();
+                    sendData(command);
+
+                    String reply = mapFrame ? awaitAnyReply(5000, ack, "ALARM_MAP_") : awaitAnyReply(5000, ack);
+                    if (ack.equals(reply)) {
+                        acknowledged = i + count;
+                        mapRetried = false;
+                    } else if (mapFrame) {
+                        // ALARM_MAP_BAD or a different CRC is retried once; otherwise fall back for the
+                        // rest of this sync
+                        if (reply != null && !mapRetried) {
+                            Log.w(TAG, "Alarm map checksum mismatch, resending: " + command);
+                            mapRetried = true;
+                        } else {
+                            Log.w(TAG, "Alarm map not confirmed, falling back to alarm lines");
+                            useMaps = false;
                         }
+                        continue;
+                    } else if (count > 1) {
+                        // Resend these alarms one by one and stop packing for this sync
+                        Log.w(TAG, "No ALARMS_SET confirmation, falling back to single alarms");
+                        packLimit = 0;
+                        continue;
+                    } else {
+                        Log.w(TAG, "No ALARM_SET confirmation received for: " + command);
+                        // Continue anyway - Arduino might have received it
                     }
+                    i += count;
+
+                    // Update counter and UI
+                    final int finalCurrentCount = i;
+
+                    uiEvents.postData("SYNC_PROGRESS:" +
+                            finalCurrentCount + ":" +
+                            finalTotalAlarms);
+
+                    Log.d(TAG, "Sent alarm " + finalCurrentCount + "/" + finalTotalAlarms +
+                            ": " + command);
+
+                    // Longer delay between alarms
+                    pace();
                 }
 
                 // End sync
+                ensureConnected();
+                clearLastReceived();
                 sendData("SYNC_END");
 
                 // Wait for SYNC_COMPLETE response
-                startTime = System.currentTimeMillis();
+                long startTime = System.currentTimeMillis();
                 boolean syncCompleted = false;
 
                 while (System.currentTimeMillis() - startTime < 10000) {
@@ -422,72 +1031,213 @@ public class BluetoothManager {
                     Log.w(TAG, "No SYNC_COMPLETE confirmation received, but sync may have succeeded");
                 }
 
-                final int finalAlarmCount = currentAlarmCount;
+                final int finalAlarmCount = finalTotalAlarms;
                 Log.d(TAG, "Alarm sync completed - " + finalAlarmCount + " alarms sent");
 
-                mainHandler.post(() -> {
-                    if (connectionListener != null) {
-                        connectionListener.onDataReceived("SYNC_COMPLETE:" + finalAlarmCount);
-                    }
-                });
+                uiEvents.postData("SYNC_COMPLETE:" + finalAlarmCount);
 
             } catch (Exception e) {
                 Log.e(TAG, "Sync error: " + e.getMessage(), e);
 
-                mainHandler.post(() -> {
-                    if (connectionListener != null) {
-                        connectionListener.onError("Sync error: " + e.getMessage());
+                // The link dropped mid-sync: resume after the last acknowledged alarm on reconnect
+                if (e instanceof IOException && autoReconnect) {
+                    synchronized (syncLock) {
+                        interruptedSync = medicines;
+                        interruptedSyncIndex = acknowledged;
                     }
-                });
-
-                // Try to recover connection if broken
-                if (e instanceof IOException) {
-                    handleConnectionError(e);
                 }
 
+                uiEvents.postError("Sync error: " + e.getMessage());
+
             } finally {
-                isSyncing = false;
+                // No-op if the link dropped meanwhile
+                transition(ConnectionState.SYNCING, ConnectionState.READY);
             }
         }).start();
     }
 
-    private int countTotalAlarms(List<Medicine> medicines) {
-        int count = 0;
+    // Legacy firmware gets a fixed gap so its serial buffer can drain. With credit flow control
+    // the scheduler already holds lines back until the device has room.
+    private void pace() throws InterruptedException {
+        if (!scheduler.isFlowControlled()) {
+            Thread.sleep(1000);
+        }
+    }
+
+    private void ensureConnected() throws IOException {
+        if (state.get() != ConnectionState.SYNCING) {
+            throw new IOException("Link lost during alarm sync");
+        }
+    }
+
+    // Polls for an acknowledgement set by the frame handlers
+    private boolean awaitReply(String ack, long timeoutMs) throws IOException, InterruptedException {
+        return awaitAnyReply(timeoutMs, ack) != null;
+    }
+
+    // Returns whichever of the acks arrived first, null on timeout
+    private String awaitAnyReply(long timeoutMs, String... acks) throws IOException, InterruptedException {
+        long startTime = System.currentTimeMillis();
+        while (System.currentTimeMillis() - startTime < timeoutMs) {
+            synchronized (syncLock) {
+                for (String ack : acks) {
+                    if (lastReceivedData.contains(ack)) {
+                        return ack;
+                    }
+                }
+            }
+            ensureConnected();
+            Thread.sleep(100);
+        }
+        return null;
+    }
+
+    // Bounds of the run of consecutive slots belonging to the same medicine as slot index
+    private static int startOfMedicine(List<AlarmSlot> alarms, int index) {
+        String name = alarms.get(index).medicineName;
+        while (index > 0 && alarms.get(index - 1).medicineName.equals(name)) {
+            index--;
+        }
+        return index;
+    }
+
+    private static int endOfMedicine(List<AlarmSlot> alarms, int index) {
+        String name = alarms.get(index).medicineName;
+        while (index < alarms.size() && alarms.get(index).medicineName.equals(name)) {
+            index++;
+        }
+        return index;
+    }
+
+    // One alarm time of one medicine, in the order it is sent
+    private static class AlarmSlot {
+        final String medicineName;
+        final int hour;
+        final int minute;
+
+        AlarmSlot(String medicineName, int hour, int minute) {
+            this.medicineName = medicineName;
+            this.hour = hour;
+            this.minute = minute;
+        }
+
+        // Format: SET_ALARM:MedicineName:Hour:Minute(Quantity)
+        String toCommand() {
+            return String.format(Locale.US, "SET_ALARM:%s:%02d:%02d(1)", medicineName, hour, minute);
+        }
+
+        // Names containing the packed separators can only go in SET_ALARM
+        boolean isPackable() {
+            return medicineName.indexOf(';') < 0 && medicineName.indexOf('=') < 0 && medicineName.indexOf(',') < 0;
+        }
+    }
+
+    private static List<AlarmSlot> buildAlarmSlots(List<Medicine> medicines) {
+        List<AlarmSlot> alarms = new ArrayList<>();
         for (Medicine medicine : medicines) {
             List<String> alarmTimes = medicine.getAlarmTimes();
             if (alarmTimes != null) {
-                count += alarmTimes.size();
+                for (String time : alarmTimes) {
+                    String[] timeParts = time.split(":");
+                    if (timeParts.length < 2) {
+                        continue;
+                    }
+                    try {
+                        alarms.add(new AlarmSlot(medicine.getName(), Integer.parseInt(timeParts[0].trim()),
+                                Integer.parseInt(timeParts[1].trim())));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Skipping invalid alarm time " + time + " for " + medicine.getName());
+                    }
+                }
+            }
+        }
+        return alarms;
+    }
+
+    // Appends alarms from index `from` to a SET_ALARMS frame until it would exceed limit characters:
+    // SET_ALARMS:Aspirin=0800,2000;Vitamin D=0900. Returns how many alarms were packed.
+    private static int packAlarms(List<AlarmSlot> alarms, int from, int limit, StringBuilder frame) {
+        int count = 0;
+        String currentName = null;
+        for (int i = from; i < alarms.size(); i++) {
+            AlarmSlot alarm = alarms.get(i);
+            if (!alarm.isPackable()) {
+                break;
+            }
+            boolean sameMedicine = alarm.medicineName.equals(currentName);
+            int added = (sameMedicine ? 1 : (currentName != null ? 1 : 0) + alarm.medicineName.length() + 1) + 4;
+            if (frame.length() + added > limit) {
+                break;
+            }
+            if (sameMedicine) {
+                frame.append(',');
+            } else {
+                if (currentName != null) {
+                    frame.append(';');
+                }
+                frame.append(alarm.medicineName).append('=');
+                currentName = alarm.medicineName;
             }
+            frame.append(String.format(Locale.US, "%02d%02d", alarm.hour, alarm.minute));
+            count++;
         }
         return count;
     }
 
+    // Frame length from a CAPS FEATURE=value entry
+    private static int parseFrameLimit(String value) {
+        try {
+            return Math.max(0, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return DEFAULT_FRAME_LIMIT;
+        }
+    }
+
     public void sendData(String data) {
-        if (!isConnected || outputStream == null) {
+        sendData(data, OutboundScheduler.classify(data));
+    }
+
+    // Queues a line; higher classes are written first, so a dispense never waits behind a sync
+    public void sendData(String data, OutboundScheduler.Priority priority) {
+        if (!isLinkUp() || submit(data, priority) == null) {
             Log.w(TAG, "Cannot send data - not connected");
-            if (connectionListener != null) {
-                mainHandler.post(() -> connectionListener.onError("Not connected to device"));
-            }
-            return;
+            uiEvents.postError("Not connected to device");
         }
+    }
 
-        new Thread(() -> {
-            try {
-                String message = data + "\n"; // Add newline for Arduino
-
-                // Log outgoing data
-                Log.d(TAG, "Sending: " + data);
+    // Blocks until the line has been written; false if the link is down or failed
+    private boolean writeLine(String data) {
+        OutboundScheduler.Pending pending = isLinkUp() ? submit(data, OutboundScheduler.classify(data)) : null;
+        if (pending == null) {
+            return false;
+        }
+        try {
+            return pending.await(WRITE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-                synchronized (outputStream) {
-                    outputStream.write(message.getBytes());
-                    outputStream.flush();
-                }
+    private OutboundScheduler.Pending submit(String data, OutboundScheduler.Priority priority) {
+        if (priority != OutboundScheduler.Priority.KEEP_ALIVE) {
+            lastTrafficAt = clock.elapsedRealtime();
+        }
+        return scheduler.submit(data, priority);
+    }
 
-            } catch (IOException e) {
-                Log.e(TAG, "Error sending data: " + e.getMessage(), e);
-                handleConnectionError(e);
+    // Runs on the scheduler's writer thread. Writes only while stream is still the open link's,
+    // so a line queued for one link never lands on a closed or newer one.
+    private boolean writeTo(OutputStream stream, String data) throws IOException {
+        synchronized (stream) {
+            // Re-checked under the lock closeConnection() takes before closing the stream
+            if (!isLinkUp() || stream != outputStream) {
+                return false;
             }
-        }).start();
+            stream.write((data + "\n").getBytes(StandardCharsets.UTF_8)); // Add newline for Arduino
+            stream.flush();
+        }
+        return true;
     }
 
     private void startReadThread() {
@@ -495,37 +1245,30 @@ public class BluetoothManager {
             readThread.interrupt();
         }
 
+        dispatcher.reset();
+        InputStream in = inputStream;
         readThread = new Thread(() -> {
             byte[] buffer = new byte[1024];
             int bytes;
 
-            while (isConnected && !Thread.currentThread().isInterrupted()) {
+            while (isLinkUp() && !Thread.currentThread().isInterrupted()) {
                 try {
                     // Check if input stream is available
-                    if (inputStream == null) {
+                    if (in == null) {
                         Log.e(TAG, "Input stream is null");
                         break;
                     }
 
-                    // Read available data
-                    if (inputStream.available() > 0) {
-                        bytes = inputStream.read(buffer);
-                        String receivedData = new String(buffer, 0, bytes).trim();
-
-                        if (!receivedData.isEmpty()) {
-                            // Store last received data for acknowledgment checking
-                            synchronized (syncLock) {
-                                lastReceivedData = receivedData;
-                            }
-
-                            Log.d(TAG, "Received: " + receivedData);
-
-                            // Notify UI
-                            mainHandler.post(() -> {
-                                if (connectionListener != null) {
-                                    connectionListener.onDataReceived(receivedData);
-                                }
-                            });
+                    // Read available data; the dispatcher reassembles lines split across reads
+                    if (in.available() > 0) {
+                        bytes = in.read(buffer);
+                        if (bytes > 0 && awaitingFirstByte) {
+                            awaitingFirstByte = false;
+                            lastTimeToFirstByteMs = clock.elapsedRealtime() - connectStartedAt;
+                            Log.d(TAG, "Time to first byte: " + lastTimeToFirstByteMs + " ms");
+                        }
+                        if (bytes > 0) {
+                            dispatcher.onBytes(buffer, 0, bytes);
                         }
                     }
 
@@ -533,7 +1276,7 @@ public class BluetoothManager {
                     Thread.sleep(10);
 
                 } catch (IOException e) {
-                    if (isConnected) {
+                    if (isLinkUp()) {
                         Log.e(TAG, "Error reading data: " + e.getMessage(), e);
                         handleConnectionError(e);
                     }
@@ -550,21 +1293,56 @@ public class BluetoothManager {
         readThread.start();
     }
 
+    // Sends PING only after a full interval without real traffic, doubling the interval while the
+    // link stays idle. Once the device has answered a PING, missing PONGs mark the link as dead.
     private void startKeepAliveThread() {
         if (keepAliveThread != null) {
             keepAliveThread.interrupt();
         }
 
+        lastTrafficAt = clock.elapsedRealtime();
+        pongDueBy = 0;
+        pongSupported = false;
+        missedPongs = 0;
+
         keepAliveThread = new Thread(() -> {
-            while (isConnected && !Thread.currentThread().isInterrupted()) {
+            long interval = KEEP_ALIVE_INTERVAL;
+            long lastPingAt = 0;
+
+            while (isLinkUp() && !Thread.currentThread().isInterrupted()) {
                 try {
+                    long now = clock.elapsedRealtime();
+
+                    long dueBy = pongDueBy;
+                    if (dueBy > 0 && now >= dueBy) {
+                        pongDueBy = 0;
+                        if (pongSupported && ++missedPongs >= MAX_MISSED_PONGS) {
+                            handleConnectionError(new IOException("No PONG for " + missedPongs + " keep-alives"));
+                            break;
+                        }
+                    }
+
+                    // Real traffic since the last PING resets the backoff
+                    long traffic = lastTrafficAt;
+                    if (traffic > lastPingAt) {
+                        interval = KEEP_ALIVE_INTERVAL;
+                    }
+                    long pingAt = Math.max(traffic, lastPingAt) + interval;
+
                     // Only send keep-alive if not syncing
-                    if (!isSyncing) {
-                        sendData("PING");
+                    if (now >= pingAt && state.get() == ConnectionState.READY) {
+                        if (writeLine("PING")) {
+                            lastPingAt = now;
+                            pongDueBy = now + PONG_TIMEOUT_MS;
+                            metrics.onKeepAliveSent();
+                            interval = Math.min(interval * 2, KEEP_ALIVE_MAX_INTERVAL);
+                        }
+                        pingAt = now + interval;
                     }
 
-                    // Wait for next keep-alive
-                    Thread.sleep(KEEP_ALIVE_INTERVAL);
+                    // Wait for next keep-alive or PONG deadline
+                    long wakeAt = pongDueBy > 0 ? Math.min(pingAt, pongDueBy) : pingAt;
+                    Thread.sleep(Math.max(wakeAt - now, 1000));
 
                 } catch (InterruptedException e) {
                     Log.d(TAG, "Keep-alive thread interrupted");
@@ -578,11 +1356,386 @@ public class BluetoothManager {
         keepAliveThread.start();
     }
 
+    // ==================== INCOMING FRAMES ====================
+
+    // Handlers run on the read thread against the shared frame buffer. They copy out only the
+    // fields they need and post typed results to the main thread, so received data is processed
+    // whichever screen is open.
+    private void registerFrameHandlers() {
+        dispatcher.setFrameObserver(frame -> {
+            // Any frame shows the link is alive
+            pongDueBy = 0;
+            missedPongs = 0;
+            if (!frame.fieldEquals(0, PONG)) {
+                lastTrafficAt = clock.elapsedRealtime();
+            }
+
+            if (connectionListener != null) {
+                String line = frame.toString();
+                Log.d(TAG, "Received: " + line);
+                uiEvents.postData(line);
+            }
+        });
+
+        dispatcher.register("PONG", frame -> pongSupported = true);
+
+        // TIME_RESP:t0:deviceTime answers TIME_REQ:t0
+        dispatcher.register("TIME_RESP", frame -> {
+            long requestAt = frame.getLong(1, -1);
+            long deviceTime = frame.getLong(2, -1);
+            if (requestAt >= 0 && deviceTime >= 0) {
+                clockSync.onResponse(requestAt, deviceTime);
+            }
+        });
+
+        // CAPS:FEATURE,FEATURE=value,... lists optional protocol features, sent after CONNECT
+        dispatcher.register("CAPS", frame -> {
+            String features = frame.getFieldCount() >= 2 ? frame.getStringFrom(1) : "";
+            for (String feature : features.split("[,:]")) {
+                if (feature.equals("DISPENSE_ACK")) {
+                    dispenseAcks = true;
+                } else if (feature.equals("CREDITS")) {
+                    creditsAdvertised = true;
+                } else if (feature.equals("ALARM_MAP")) {
+                    alarmMapLimit = DEFAULT_FRAME_LIMIT;
+                } else if (feature.startsWith("ALARM_MAP=")) {
+                    alarmMapLimit = parseFrameLimit(feature.substring("ALARM_MAP=".length()));
+                } else if (feature.equals("SET_ALARMS")) {
+                    packedAlarmLimit = DEFAULT_FRAME_LIMIT;
+                } else if (feature.startsWith("SET_ALARMS=")) {
+                    packedAlarmLimit = parseFrameLimit(feature.substring("SET_ALARMS=".length()));
+                }
+            }
+            capsReceived.countDown();
+        });
+
+        // Flow control: CREDITS:n is the device's free buffer in lines, sent after CONNECT;
+        // CREDIT:k returns k lines as the device consumes them
+        dispatcher.register("CREDITS", frame -> {
+            int window = frame.getInt(1, -1);
+            if (window > 0) {
+                scheduler.setCredits(window);
+                creditsReceived.countDown();
+            }
+        });
+        dispatcher.register("CREDIT", frame -> {
+            int granted = frame.getInt(1, -1);
+            if (granted > 0) {
+                scheduler.addCredits(granted);
+            }
+        });
+
+        // Acknowledgements awaited by syncAllAlarms
+        dispatcher.register("SYNC_STARTED", frame -> setLastReceived("SYNC_STARTED"));
+        dispatcher.register("ALARM_SET", frame -> {
+            setLastReceived("ALARM_SET");
+            postAck("ALARM_SET");
+        });
+        dispatcher.register("ALARMS_SET", frame -> {
+            setLastReceived("ALARMS_SET");
+            postAck("ALARMS_SET");
+        });
+        // ALARM_MAP_OK:CRC echoes the checksum of the bitmap the device decoded
+        dispatcher.register("ALARM_MAP_OK", frame -> {
+            String crc = frame.getString(1);
+            setLastReceived("ALARM_MAP_OK:" + (crc != null ? crc.toUpperCase(Locale.US) : ""));
+            postAck("ALARM_MAP_OK");
+        });
+        dispatcher.register("ALARM_MAP_BAD", frame -> setLastReceived("ALARM_MAP_BAD"));
+        dispatcher.register("SYNC_COMPLETE", frame -> {
+            setLastReceived("SYNC_COMPLETE");
+            postAck("SYNC_COMPLETE");
+        });
+
+        // STATUS:Name:quantity
+        dispatcher.register("STATUS", frame -> {
+            if (frame.getFieldCount() < 3) {
+                return;
+            }
+            String medicineName = frame.getStringBetween(1, frame.getFieldCount() - 2);
+            int quantity = frame.getInt(frame.getFieldCount() - 1, -1);
+            uiEvents.postStatus(medicineName, quantity);
+        });
+
+        dispatcher.register("SUBSCRIBED", frame -> {
+            statusSubscribed = true;
+            Log.d(TAG, "Device status subscription active");
+            postAck("SUBSCRIBED");
+        });
+
+        // QTY:Name:quantity:version, read from the end in case the name contains ':'
+        dispatcher.register("QTY", frame -> {
+            int count = frame.getFieldCount();
+            int quantity = frame.getInt(count - 2, -1);
+            long version = frame.getLong(count - 1, -1);
+            if (count < 4 || quantity < 0 || version < 0) {
+                Log.w(TAG, "Malformed quantity push: " + frame);
+                return;
+            }
+            String medicineName = frame.getStringBetween(1, count - 3);
+            uiEvents.postTask(() -> reconcileQuantity(medicineName, quantity, version));
+        });
+
+        // HISTORY:<seq>:Name:HH:mm:dd/MM/yyyy, or HISTORY:Name:HH:mm:dd/MM/yyyy from older firmware
+        dispatcher.register("HISTORY", frame -> {
+            int count = frame.getFieldCount();
+            long sequence = -1;
+            int field = 1;
+            if (count >= 6 && frame.isNumber(1)) {
+                sequence = frame.getLong(1, -1);
+                field = 2;
+            }
+            if (count - field < 3) {
+                Log.w(TAG, "Malformed history record: " + frame);
+                return;
+            }
+
+            // The time HH:mm is split into two fields by the ':' separator
+            boolean splitTime = count - field >= 4;
+            String time = splitTime ? frame.getStringBetween(field + 1, field + 2) : frame.getString(field + 1);
+            String date = frame.getString(splitTime ? field + 3 : field + 2);
+            MedicineLogEntry entry = new MedicineLogEntry(frame.getString(field), time, date);
+
+            long recordSequence = sequence;
+            String address = deviceAddress;
+            uiEvents.postTask(() -> {
+                if (historyReceiver != null) {
+                    historyReceiver.onRecord(recordSequence, entry, address);
+                }
+            });
+        });
+
+        // DISPENSED:<commandId> confirms an outbox command
+        dispatcher.register("DISPENSED", frame -> {
+            int commandId = frame.getInt(1, -1);
+            if (commandId < 0) {
+                Log.w(TAG, "Malformed dispense ack: " + frame);
+                return;
+            }
+            uiEvents.postTask(() -> onDispenseAcked(commandId));
+        });
+
+        // HISTORY_END:<lastSeq>; a bare HISTORY_END comes from older firmware
+        dispatcher.register("HISTORY_END", frame -> {
+            long lastSequence = frame.getLong(1, -1);
+            String address = deviceAddress;
+            historyRequestedAt = 0;
+            uiEvents.postTask(() -> {
+                if (historyReceiver != null) {
+                    historyReceiver.onEnd(lastSequence, address);
+                }
+            });
+        });
+    }
+
+    private void setLastReceived(String ack) {
+        synchronized (syncLock) {
+            lastReceivedData = ack;
+        }
+    }
+
+    private void clearLastReceived() {
+        setLastReceived("");
+    }
+
+    private void postAck(String ack) {
+        uiEvents.postAck(ack);
+    }
+
+    // ==================== UI EVENTS ====================
+
+    // One main-thread message per batch; a failing callback does not drop the rest
+    private void deliverEvents(List<UiEventCoalescer.UiEvent> events) {
+        for (UiEventCoalescer.UiEvent event : events) {
+            BluetoothConnectionListener listener = connectionListener;
+            try {
+                switch (event.getType()) {
+                    case TASK:
+                        event.getTask().run();
+                        break;
+                    case CONNECTION:
+                        if (listener != null) {
+                            listener.onConnectionStatusChanged(event.isConnected(), event.getText());
+                        }
+                        break;
+                    case DATA:
+                        if (listener != null) {
+                            listener.onDataReceived(event.getText());
+                        }
+                        break;
+                    case ERROR:
+                        if (listener != null) {
+                            listener.onError(event.getText());
+                        }
+                        break;
+                    case STATUS:
+                        if (listener != null) {
+                            listener.onStatusReceived(event.getText(), event.getQuantity());
+                        }
+                        break;
+                    case ACK:
+                        if (listener != null) {
+                            listener.onDeviceAck(event.getText());
+                        }
+                        break;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error delivering " + event.getType() + " event: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    // Posted, collapsed and delivered event counts
+    public UiEventCoalescer getUiEventCoalescer() {
+        return uiEvents;
+    }
+
+    // ==================== OUTBOX ====================
+
+    // Queues a dispense and sends it now if connected. The dose is logged when the device acks,
+    // or as soon as it is written if the device's CAPS does not offer DISPENSE_ACK.
+    public void queueDispense(String medicineName, int quantity) {
+        if (outbox == null) {
+            Log.w(TAG, "No outbox - call getInstance(Context) first; dispense dropped for " + medicineName);
+            return;
+        }
+        outbox.enqueueDispense(medicineName, quantity, System.currentTimeMillis());
+        if (isConnected()) {
+            outboxExecutor.execute(this::flushOutbox);
+        } else {
+            Log.d(TAG, "Not connected - dispense for " + medicineName + " waits in the outbox");
+        }
+    }
+
+    public CommandOutbox getOutbox() {
+        return outbox;
+    }
+
+    // Sends queued commands in priority order; runs on outboxExecutor
+    private void flushOutbox() {
+        if (outbox == null) {
+            return;
+        }
+        // Commands sent in an earlier session may be past the ack timeout already
+        uiEvents.postTask(this::confirmUnackedDispenses);
+        synchronized (outboxLock) {
+            for (CommandOutbox.Command command : outbox.getSendable(System.currentTimeMillis())) {
+                if (!writeLine(command.toFrame())) {
+                    break;
+                }
+                outbox.markSent(command.getId(), System.currentTimeMillis());
+                if (dispenseAcks) {
+                    mainHandler.postDelayed(this::confirmUnackedDispenses, DISPENSE_ACK_TIMEOUT_MS);
+                } else {
+                    // Firmware without DISPENSE_ACK never confirms; written is as sure as it gets
+                    CommandOutbox.Command sent = outbox.markAcked(command.getId(), System.currentTimeMillis());
+                    if (sent != null) {
+                        uiEvents.postTask(() -> recordDispensed(sent));
+                    }
+                }
+            }
+        }
+    }
+
+    // Records dispenses the device never acked within DISPENSE_ACK_TIMEOUT_MS. Leaving a dose
+    // unrecorded because its DISPENSED was lost is worse than recording one that was not given.
+    private void confirmUnackedDispenses() {
+        if (outbox == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (CommandOutbox.Command command : outbox.assumeDelivered(now - DISPENSE_ACK_TIMEOUT_MS, now)) {
+            Log.w(TAG, "No ack within timeout, recording as dispensed: " + command.toFrame());
+            recordDispensed(command);
+        }
+    }
+
+    private void onDispenseAcked(int commandId) {
+        CommandOutbox.Command command = outbox != null ? outbox.markAcked(commandId, System.currentTimeMillis()) : null;
+        if (command == null) {
+            return;
+        }
+
+        // Only now is the dose known to have left the dispenser
+        Log.d(TAG, "Dispense confirmed: " + command.toFrame());
+        recordDispensed(command);
+        postAck("DISPENSED");
+    }
+
+    // A subscribed device follows up with a QTY push carrying its own count and version, so
+    // counting down here as well would take the dose off twice
+    private void recordDispensed(CommandOutbox.Command command) {
+        MedicineManager.getInstance(context).recordMedicineTaken(command.getMedicineName(), !statusSubscribed);
+    }
+
+    // ==================== STATUS SUBSCRIPTION ====================
+
+    private void reconcileQuantity(String medicineName, int quantity, long version) {
+        if (context == null) {
+            return;
+        }
+        MedicineManager medicineManager = MedicineManager.getInstance(context);
+        if (medicineManager.applyDeviceQuantity(medicineName, quantity, version) == MedicineManager.QuantitySync.LOCAL_NEWER) {
+            pushQuantity(medicineManager.getMedicineByName(medicineName));
+        }
+    }
+
+    // SET_QTY:Name:quantity:version; the device applies it only if the version is newer than its own
+    private void pushQuantity(Medicine medicine) {
+        if (medicine == null || !statusSubscribed || !isConnected()) {
+            return;
+        }
+        sendData("SET_QTY:" + medicine.getName() + ":" + medicine.getQuantity() + ":" + medicine.getQuantityVersion());
+    }
+
+    public boolean isStatusSubscribed() {
+        return statusSubscribed;
+    }
+
     public void requestMedicineStatus() {
         sendData("STATUS");
     }
 
+    // Asks only for records after the last one stored from this device. The device replies with
+    // HISTORY:<seq>:Name:HH:mm:dd/MM/yyyy lines and HISTORY_END:<lastSeq>.
     public void requestMedicineHistory() {
-        sendData("HISTORY");
+        historyRequestedAt = clock.elapsedRealtime();
+        if (sharedPreferences != null && deviceAddress != null) {
+            sendData("HISTORY_SINCE:" + getHistoryCursor(deviceAddress));
+        } else {
+            sendData("HISTORY");
+        }
+    }
+
+    // Address of the current or most recently connected device
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    // ==================== HISTORY CURSOR ====================
+
+    // Sequence number of the last history record stored from the device, 0 if none
+    public long getHistoryCursor(String address) {
+        if (sharedPreferences == null || address == null) {
+            return 0;
+        }
+        return sharedPreferences.getLong(HISTORY_CURSOR_KEY_PREFIX + address, 0);
+    }
+
+    public void setHistoryCursor(String address, long sequence) {
+        if (sharedPreferences == null || address == null) {
+            return;
+        }
+        sharedPreferences.edit().putLong(HISTORY_CURSOR_KEY_PREFIX + address, Math.max(0, sequence)).apply();
+        Log.d(TAG, "History cursor for " + address + " is now " + sequence);
+    }
+
+    // Last sequence number of the unbroken run cursor + 1, cursor + 2, ... in sequences
+    static long contiguousFrom(long cursor, Set<Long> sequences) {
+        long last = cursor;
+        while (sequences.contains(last + 1)) {
+            last++;
+        }
+        return last;
     }
 }
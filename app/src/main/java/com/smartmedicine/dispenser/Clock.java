@@ -0,0 +1,10 @@
+package com.smartmedicine.dispenser;
+
+import android.os.SystemClock;
+
+// Monotonic milliseconds, injectable so timing paths can be tested with a fake clock
+interface Clock {
+    Clock SYSTEM = SystemClock::elapsedRealtime;
+
+    long elapsedRealtime();
+}
@@ -0,0 +1,268 @@
+package com.smartmedicine.dispenser;
+
+import android.util.Log;
+
+import java.util.TimeZone;
+
+// NTP-style clock check of the dispenser over the serial link:
+//
+//   TIME_REQ:t0  ->  TIME_RESP:t0:deviceTime     (epoch millis, UTC)
+//   SET_TIME:epochMillis:utcOffsetMillis
+//
+// The device keeps UTC and fires its HHmm alarms at local wall-clock time, which it gets by adding
+// the phone's UTC offset from the last SET_TIME. Each round takes several samples and keeps the one
+// with the smallest round trip, whose midpoint best matches the device's timestamp. SET_TIME is
+// sent when the clock is off by more than MAX_OFFSET_MS or the local offset has changed since it
+// was last sent (a daylight saving switch or a new time zone). Offsets are tracked across rounds
+// with the corrections added back, so a linear fit gives the free-running drift of the device's
+// clock.
+public class ClockSync {
+    private static final String TAG = "ClockSync";
+
+    private static final int SAMPLES_PER_ROUND = 8;
+    private static final long SAMPLE_TIMEOUT_MS = 1000;
+    private static final long SAMPLE_SPACING_MS = 200;
+    private static final long MAX_OFFSET_MS = 1000;
+
+    // Drift history: offsets of the uncorrected clock over this many rounds
+    private static final int HISTORY_SIZE = 16;
+    private static final long MIN_DRIFT_SPAN_MS = 10 * 60 * 1000;
+
+    // How closely nextInterval() pins down an upcoming UTC offset change
+    private static final long OFFSET_CHANGE_PRECISION_MS = 60 * 1000;
+    private static final int OFFSET_UNKNOWN = Integer.MIN_VALUE;
+
+    interface Transport {
+        boolean send(String line);
+    }
+
+    private final Transport transport;
+
+    // Outstanding request; guarded by this
+    private long pendingRequestAt = -1;
+    private long responseDeviceTime;
+    private long responseReceivedAt;
+
+    private final long[] historyAt = new long[HISTORY_SIZE];
+    private final long[] historyOffset = new long[HISTORY_SIZE];
+    private int historyCount;
+    private long totalCorrectionMs; // sum of steps applied with SET_TIME
+
+    private volatile long offsetMs;
+    private volatile long roundTripMs = -1;
+    private volatile double driftPpm = Double.NaN;
+    private volatile long lastSyncAt;
+    private volatile int corrections;
+    private volatile int sentUtcOffsetMs = OFFSET_UNKNOWN; // as last given to the device
+
+    ClockSync(Transport transport) {
+        this.transport = transport;
+    }
+
+    // From the read thread
+    synchronized void onResponse(long requestAt, long deviceTime) {
+        if (requestAt != pendingRequestAt) {
+            return; // late answer to an earlier sample
+        }
+        responseDeviceTime = deviceTime;
+        responseReceivedAt = System.currentTimeMillis();
+        pendingRequestAt = -1;
+        notifyAll();
+    }
+
+    // Blocking; run off the main thread. Returns false if the device did not answer.
+    boolean run() throws InterruptedException {
+        long bestRoundTrip = Long.MAX_VALUE;
+        long bestOffset = 0;
+        long bestAt = 0;
+
+        for (int i = 0; i < SAMPLES_PER_ROUND; i++) {
+            long requestAt;
+            synchronized (this) {
+                requestAt = System.currentTimeMillis();
+                pendingRequestAt = requestAt;
+            }
+            if (!transport.send("TIME_REQ:" + requestAt)) {
+                return false;
+            }
+
+            long deviceTime;
+            long receivedAt;
+            synchronized (this) {
+                long deadline = requestAt + SAMPLE_TIMEOUT_MS;
+                while (pendingRequestAt == requestAt && System.currentTimeMillis() < deadline) {
+                    wait(Math.max(1, deadline - System.currentTimeMillis()));
+                }
+                if (pendingRequestAt == requestAt) {
+                    pendingRequestAt = -1;
+                    if (i == 0) {
+                        Log.d(TAG, "No TIME_RESP - firmware without clock sync");
+                        return false;
+                    }
+                    continue;
+                }
+                deviceTime = responseDeviceTime;
+                receivedAt = responseReceivedAt;
+            }
+
+            long roundTrip = receivedAt - requestAt;
+            if (roundTrip >= 0 && roundTrip < bestRoundTrip) {
+                bestRoundTrip = roundTrip;
+                bestOffset = deviceTime - (requestAt + roundTrip / 2);
+                bestAt = receivedAt;
+            }
+            Thread.sleep(SAMPLE_SPACING_MS);
+        }
+
+        if (bestRoundTrip == Long.MAX_VALUE) {
+            return false;
+        }
+
+        synchronized (this) {
+            offsetMs = bestOffset;
+            roundTripMs = bestRoundTrip;
+            lastSyncAt = bestAt;
+            addToHistory(bestAt, bestOffset + totalCorrectionMs);
+            driftPpm = estimateDrift();
+        }
+        Log.d(TAG, "Device clock offset " + bestOffset + " ms (rtt " + bestRoundTrip + " ms, drift " +
+                driftPpm + " ppm)");
+
+        // Aim for when the line arrives: half a round trip from now
+        long setAt = System.currentTimeMillis() + bestRoundTrip / 2;
+        int utcOffset = TimeZone.getDefault().getOffset(setAt);
+        if (Math.abs(bestOffset) > MAX_OFFSET_MS || utcOffset != sentUtcOffsetMs) {
+            if (transport.send("SET_TIME:" + setAt + ":" + utcOffset)) {
+                synchronized (this) {
+                    totalCorrectionMs += bestOffset;
+                    corrections++;
+                    offsetMs = 0;
+                    sentUtcOffsetMs = utcOffset;
+                }
+                Log.d(TAG, "Device clock set, corrected by " + (-bestOffset) + " ms, UTC offset " + utcOffset + " ms");
+            }
+        }
+        return true;
+    }
+
+    // Forgets the drift history, e.g. for a different device
+    synchronized void reset() {
+        historyCount = 0;
+        totalCorrectionMs = 0;
+        offsetMs = 0;
+        roundTripMs = -1;
+        driftPpm = Double.NaN;
+        lastSyncAt = 0;
+        corrections = 0;
+        sentUtcOffsetMs = OFFSET_UNKNOWN;
+    }
+
+    // How long until the clock is expected to drift past MAX_OFFSET_MS, within [min, max]. An
+    // upcoming change of the local UTC offset comes first, even inside minMs, so the device's alarms
+    // follow a daylight saving switch within a minute.
+    long nextInterval(long minMs, long maxMs) {
+        long interval = maxMs;
+        double drift = driftPpm;
+        if (!Double.isNaN(drift) && drift != 0) {
+            long untilLimit = (long) (MAX_OFFSET_MS / (Math.abs(drift) / 1e6));
+            interval = Math.max(minMs, Math.min(maxMs, untilLimit));
+        }
+        return Math.min(interval, untilOffsetChange(System.currentTimeMillis(), interval));
+    }
+
+    // Time from now until just after the local UTC offset next changes, or limitMs if it does not
+    // change within that. Bisects, as java.util.TimeZone does not expose its transitions.
+    static long untilOffsetChange(long now, long limitMs) {
+        TimeZone zone = TimeZone.getDefault();
+        int current = zone.getOffset(now);
+        if (zone.getOffset(now + limitMs) == current) {
+            return limitMs;
+        }
+        long before = 0;
+        long after = limitMs;
+        while (after - before > OFFSET_CHANGE_PRECISION_MS) {
+            long middle = before + (after - before) / 2;
+            if (zone.getOffset(now + middle) == current) {
+                before = middle;
+            } else {
+                after = middle;
+            }
+        }
+        return after;
+    }
+
+    private void addToHistory(long at, long offset) {
+        if (historyCount == HISTORY_SIZE) {
+            System.arraycopy(historyAt, 1, historyAt, 0, HISTORY_SIZE - 1);
+            System.arraycopy(historyOffset, 1, historyOffset, 0, HISTORY_SIZE - 1);
+            historyCount--;
+        }
+        historyAt[historyCount] = at;
+        historyOffset[historyCount] = offset;
+        historyCount++;
+    }
+
+    // Least-squares slope of offset over time, in parts per million; NaN until the history spans
+    // long enough for the measurement noise to wash out
+    private double estimateDrift() {
+        if (historyCount < 2 || historyAt[historyCount - 1] - historyAt[0] < MIN_DRIFT_SPAN_MS) {
+            return Double.NaN;
+        }
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < historyCount; i++) {
+            meanX += historyAt[i] - historyAt[0];
+            meanY += historyOffset[i];
+        }
+        meanX /= historyCount;
+        meanY /= historyCount;
+
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < historyCount; i++) {
+            double dx = historyAt[i] - historyAt[0] - meanX;
+            covariance += dx * (historyOffset[i] - meanY);
+            variance += dx * dx;
+        }
+        return variance > 0 ? covariance / variance * 1e6 : Double.NaN;
+    }
+
+    // Device clock minus phone clock at the last round, after any correction
+    public long getOffsetMs() {
+        return offsetMs;
+    }
+
+    public long getRoundTripMs() {
+        return roundTripMs;
+    }
+
+    // Positive when the device clock runs fast; NaN until enough rounds
+    public double getDriftPpm() {
+        return driftPpm;
+    }
+
+    // Phone time of the last successful round, 0 if none
+    public long getLastSyncAt() {
+        return lastSyncAt;
+    }
+
+    public int getCorrections() {
+        return corrections;
+    }
+
+    // Local UTC offset the device was last given, null if none yet
+    public Integer getSentUtcOffsetMs() {
+        int offset = sentUtcOffsetMs;
+        return offset != OFFSET_UNKNOWN ? offset : null;
+    }
+
+    @Override
+    public String toString() {
+        return "ClockSync{" +
+                "offsetMs=" + offsetMs +
+                ", roundTripMs=" + roundTripMs +
+                ", driftPpm=" + driftPpm +
+                ", corrections=" + corrections +
+                '}';
+    }
+}
@@ -0,0 +1,255 @@
+package com.smartmedicine.dispenser;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+// Persisted store-and-forward queue of commands for the dispenser. Commands wait here while the
+// link is down and are flushed in priority order on reconnect.
+//
+// A dispense is sent at most once: a SENT command is never resent, because a device that
+// dispensed but whose ack was lost would dispense twice. It stays SENT until acked or expired.
+public class CommandOutbox {
+    private static final String TAG = "CommandOutbox";
+    private static final String PREFS_NAME = "CommandOutboxPrefs";
+    private static final String COMMANDS_KEY = "commands";
+    private static final String NEXT_ID_KEY = "next_command_id";
+
+    // A dose not dispensed within this window after its alarm is no longer worth dispensing
+    public static final long DISPENSE_WINDOW_MS = 2 * 60 * 60 * 1000;
+
+    // Acked and expired commands are kept this long for inspection
+    private static final long RETAIN_FINISHED_MS = 7L * 24 * 60 * 60 * 1000;
+
+    // Lower values are sent first
+    public static final int PRIORITY_DISPENSE = 0;
+
+    public enum State {
+        QUEUED,
+        SENT,
+        ACKED,
+        EXPIRED
+    }
+
+    public static class Command {
+        private int id;
+        private String type;
+        private String medicineName;
+        private int quantity;
+        private int priority;
+        private State state;
+        private long createdAt;
+        private long sentAt;
+        private long finishedAt;
+        private long expiresAt;
+
+        public Command() {
+            // Default constructor for Gson
+        }
+
+        Command(int id, String type, String medicineName, int quantity, int priority, long createdAt, long expiresAt) {
+            this.id = id;
+            this.type = type;
+            this.medicineName = medicineName;
+            this.quantity = quantity;
+            this.priority = priority;
+            this.state = State.QUEUED;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getMedicineName() {
+            return medicineName;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        public long getSentAt() {
+            return sentAt;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        // Wire format: TYPE:Name:quantity:id, answered by DISPENSED:id
+        public String toFrame() {
+            return type + ":" + medicineName + ":" + quantity + ":" + id;
+        }
+    }
+
+    private final SharedPreferences sharedPreferences;
+    private final Gson gson = new Gson();
+    private List<Command> commands;
+
+    public CommandOutbox(Context context) {
+        sharedPreferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        loadCommands();
+    }
+
+    public synchronized Command enqueueDispense(String medicineName, int quantity, long now) {
+        int id = sharedPreferences.getInt(NEXT_ID_KEY, 1);
+        sharedPreferences.edit().putInt(NEXT_ID_KEY, id + 1).apply();
+
+        Command command = new Command(id, "DISPENSE", medicineName, quantity, PRIORITY_DISPENSE, now,
+                now + DISPENSE_WINDOW_MS);
+        commands.add(command);
+        saveCommands();
+        Log.d(TAG, "Queued " + command.toFrame());
+        return command;
+    }
+
+    // QUEUED commands still inside their window, highest priority first, then oldest first
+    public synchronized List<Command> getSendable(long now) {
+        expire(now);
+        List<Command> sendable = new ArrayList<>();
+        for (Command command : commands) {
+            if (command.state == State.QUEUED) {
+                sendable.add(command);
+            }
+        }
+        Collections.sort(sendable, (a, b) -> {
+            int result = Integer.compare(a.priority, b.priority);
+            return result != 0 ? result : Long.compare(a.createdAt, b.createdAt);
+        });
+        return sendable;
+    }
+
+    public synchronized void markSent(int id, long now) {
+        Command command = find(id);
+        if (command != null && command.state == State.QUEUED) {
+            command.state = State.SENT;
+            command.sentAt = now;
+            saveCommands();
+        }
+    }
+
+    // Returns the command if this ack is the first for it, null for unknown or repeated acks.
+    // A late ack still counts: the device did dispense.
+    public synchronized Command markAcked(int id, long now) {
+        Command command = find(id);
+        if (command == null || command.state == State.ACKED) {
+            return null;
+        }
+        command.state = State.ACKED;
+        command.finishedAt = now;
+        saveCommands();
+        return command;
+    }
+
+    // Treats commands SENT at or before sentBefore as delivered and returns them, so a dose whose
+    // ack was lost on the link is still recorded.
+    public synchronized List<Command> assumeDelivered(long sentBefore, long now) {
+        List<Command> delivered = new ArrayList<>();
+        for (Command command : commands) {
+            if (command.state == State.SENT && command.sentAt <= sentBefore) {
+                command.state = State.ACKED;
+                command.finishedAt = now;
+                delivered.add(command);
+            }
+        }
+        if (!delivered.isEmpty()) {
+            saveCommands();
+        }
+        return delivered;
+    }
+
+    public synchronized int countInState(State state) {
+        int count = 0;
+        for (Command command : commands) {
+            if (command.state == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized List<Command> getCommands() {
+        return new ArrayList<>(commands);
+    }
+
+    // Expires commands past their window and drops finished ones past retention
+    public synchronized void expire(long now) {
+        boolean changed = false;
+        Iterator<Command> iterator = commands.iterator();
+        while (iterator.hasNext()) {
+            Command command = iterator.next();
+            if ((command.state == State.QUEUED || command.state == State.SENT) && now >= command.expiresAt) {
+                command.state = State.EXPIRED;
+                command.finishedAt = now;
+                changed = true;
+                Log.w(TAG, "Expired unconfirmed " + command.toFrame());
+            } else if ((command.state == State.ACKED || command.state == State.EXPIRED)
+                    && now - command.finishedAt > RETAIN_FINISHED_MS) {
+                iterator.remove();
+                changed = true;
+            }
+        }
+        if (changed) {
+            saveCommands();
+        }
+    }
+
+    private Command find(int id) {
+        for (Command command : commands) {
+            if (command.id == id) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private void saveCommands() {
+        try {
+            sharedPreferences.edit().putString(COMMANDS_KEY, gson.toJson(commands)).apply();
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving outbox: " + e.getMessage(), e);
+        }
+    }
+
+    private void loadCommands() {
+        try {
+            String json = sharedPreferences.getString(COMMANDS_KEY, "");
+            if (!json.isEmpty()) {
+                Type type = new TypeToken<List<Command>>(){}.getType();
+                commands = gson.fromJson(json, type);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading outbox: " + e.getMessage(), e);
+        }
+        if (commands == null) {
+            commands = new ArrayList<>();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.smartmedicine.dispenser;
+
+// Counters for the supervised Bluetooth link. Times are Clock.elapsedRealtime() millis.
+public class ConnectionMetrics {
+    private final Clock clock;
+
+    // The old fixed schedule sent a PING this often, whatever the traffic
+    private static final long FIXED_KEEP_ALIVE_INTERVAL_MS = 10000;
+
+    // Estimated radio-on time per keep-alive exchange (wake from sniff, PING, PONG, idle tail)
+    private static final long RADIO_ON_PER_KEEP_ALIVE_MS = 50;
+
+    private int connects;
+    private int drops;
+    private int reconnectAttempts;
+    private int reconnects;
+    private long keepAlivesSent;
+
+    private long connectedSince = -1;
+    private long totalUptimeMs;
+    private long droppedAt = -1;
+    private long lastTimeToRecoverMs = -1;
+    private long totalTimeToRecoverMs;
+
+    ConnectionMetrics(Clock clock) {
+        this.clock = clock;
+    }
+
+    synchronized void onConnected() {
+        long now = clock.elapsedRealtime();
+        connects++;
+        connectedSince = now;
+        if (droppedAt >= 0) {
+            reconnects++;
+            lastTimeToRecoverMs = now - droppedAt;
+            totalTimeToRecoverMs += lastTimeToRecoverMs;
+            droppedAt = -1;
+        }
+    }
+
+    // dropped: the link failed, as opposed to the user disconnecting
+    synchronized void onDisconnected(boolean dropped) {
+        long now = clock.elapsedRealtime();
+        if (connectedSince >= 0) {
+            totalUptimeMs += now - connectedSince;
+            connectedSince = -1;
+        }
+        if (dropped) {
+            drops++;
+            if (droppedAt < 0) {
+                droppedAt = now;
+            }
+        } else {
+            droppedAt = -1;
+        }
+    }
+
+    synchronized void onReconnectAttempt() {
+        reconnectAttempts++;
+    }
+
+    synchronized void onKeepAliveSent() {
+        keepAlivesSent++;
+    }
+
+    public synchronized int getConnects() {
+        return connects;
+    }
+
+    public synchronized int getDrops() {
+        return drops;
+    }
+
+    public synchronized int getReconnectAttempts() {
+        return reconnectAttempts;
+    }
+
+    public synchronized int getReconnects() {
+        return reconnects;
+    }
+
+    // Total connected time, including the current session
+    public synchronized long getUptimeMs() {
+        long current = connectedSince >= 0 ? clock.elapsedRealtime() - connectedSince : 0;
+        return totalUptimeMs + current;
+    }
+
+    // Drop to reconnected; -1 until the first automatic recovery
+    public synchronized long getLastTimeToRecoverMs() {
+        return lastTimeToRecoverMs;
+    }
+
+    public synchronized long getAverageTimeToRecoverMs() {
+        return reconnects > 0 ? totalTimeToRecoverMs / reconnects : -1;
+    }
+
+    public synchronized long getKeepAlivesSent() {
+        return keepAlivesSent;
+    }
+
+    // Keep-alives the fixed schedule would have sent over the same uptime that were not needed
+    public synchronized long getKeepAlivesAvoided() {
+        return Math.max(0, getUptimeMs() / FIXED_KEEP_ALIVE_INTERVAL_MS - keepAlivesSent);
+    }
+
+    public synchronized long getRadioTimeSavedMs() {
+        return getKeepAlivesAvoided() * RADIO_ON_PER_KEEP_ALIVE_MS;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectionMetrics{" +
+                "connects=" + connects +
+                ", drops=" + drops +
+                ", reconnectAttempts=" + reconnectAttempts +
+                ", reconnects=" + reconnects +
+                ", uptimeMs=" + getUptimeMs() +
+                ", lastTimeToRecoverMs=" + lastTimeToRecoverMs +
+                ", keepAlivesSent=" + keepAlivesSent +
+                ", radioTimeSavedMs=" + getRadioTimeSavedMs() +
+                '}';
+    }
+}
@@ -0,0 +1,44 @@
+package com.smartmedicine.dispenser;
+
+import com.smartmedicine.dispenser.BluetoothManager.ConnectionState;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// The link state behind BluetoothManager. Every change is a compare-and-set from an expected
+// state, so when threads race for a connect, a close or the start of a sync exactly one wins.
+class ConnectionStateMachine {
+    private final AtomicReference<ConnectionState> state = new AtomicReference<>(ConnectionState.DISCONNECTED);
+
+    ConnectionState get() {
+        return state.get();
+    }
+
+    boolean transition(ConnectionState from, ConnectionState to) {
+        return state.compareAndSet(from, to);
+    }
+
+    // Streams are open and writable
+    boolean isLinkUp() {
+        ConnectionState current = state.get();
+        return current == ConnectionState.HANDSHAKING || current == ConnectionState.READY
+                || current == ConnectionState.SYNCING;
+    }
+
+    // Moves an open link to CLOSING and returns the state it left. A connect still in progress is
+    // moved to CANCELLING and CONNECTING returned, so the caller can abort its socket; null when
+    // there is nothing to close or another thread is already closing or cancelling.
+    ConnectionState beginClose() {
+        while (true) {
+            ConnectionState current = state.get();
+            if (current == ConnectionState.DISCONNECTED || current == ConnectionState.CLOSING
+                    || current == ConnectionState.CANCELLING) {
+                return null;
+            }
+            ConnectionState next = current == ConnectionState.CONNECTING
+                    ? ConnectionState.CANCELLING : ConnectionState.CLOSING;
+            if (transition(current, next)) {
+                return current;
+            }
+        }
+    }
+}
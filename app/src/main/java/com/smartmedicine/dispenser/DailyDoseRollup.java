@@ -0,0 +1,67 @@
+package com.smartmedicine.dispenser;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Locale;
+
+// Number of doses of one medicine on one day, kept once the raw entries age out of the log
+public class DailyDoseRollup {
+    private long epochDay; // as in DoseHistoryIndex.epochDay
+    private int medicineId;
+    private String medicineName;
+    private int count;
+
+    public DailyDoseRollup() {
+        // Default constructor for Gson
+    }
+
+    public DailyDoseRollup(long epochDay, int medicineId, String medicineName, int count) {
+        this.epochDay = epochDay;
+        this.medicineId = medicineId;
+        this.medicineName = medicineName;
+        this.count = count;
+    }
+
+    public long getEpochDay() {
+        return epochDay;
+    }
+
+    public int getMedicineId() {
+        return medicineId;
+    }
+
+    public String getMedicineName() {
+        return medicineName;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void addCount(int doses) {
+        count += doses;
+    }
+
+    // Local midnight at the start of the day
+    public long getDayStartMillis() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(1970, Calendar.JANUARY, 1);
+        calendar.add(Calendar.DAY_OF_MONTH, (int) epochDay);
+        return calendar.getTimeInMillis();
+    }
+
+    public String getDate() {
+        return new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault()).format(getDayStartMillis());
+    }
+
+    @Override
+    public String toString() {
+        return "DailyDoseRollup{" +
+                "epochDay=" + epochDay +
+                ", medicineId=" + medicineId +
+                ", medicineName='" + medicineName + '\'' +
+                ", count=" + count +
+                '}';
+    }
+}
@@ -0,0 +1,336 @@
+package com.smartmedicine.dispenser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Append-only columnar archive of old dose log entries.
+//
+// The file is a sequence of self-contained segments:
+//   magic (4 bytes) | version (1 byte) | count | minMinute | maxMinute | payloadLength | payload
+// The payload holds a dictionary of medicine names followed by two columns: delta-encoded
+// epoch minutes (sorted ascending) and dictionary indexes. Every number is a varint.
+// Readers skip segments whose [minMinute, maxMinute] lies outside the requested range.
+public class DoseArchive {
+    private static final int MAGIC = 0x444F5341; // "DOSA"
+    private static final int VERSION = 1;
+    private static final int MAX_SEGMENT_ENTRIES = 4096;
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+    private final File file;
+
+    // Receives archived entries one at a time, in chronological order
+    public interface EntryVisitor {
+        void visit(String medicineName, long timestamp) throws IOException;
+    }
+
+    public DoseArchive(File file) {
+        this.file = file;
+    }
+
+    public synchronized void append(List<MedicineLogEntry> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        List<MedicineLogEntry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted, (a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+
+        // A failed append is cut back to here, so a retry cannot leave a torn segment followed by
+        // a duplicate of it. Anything unreadable after the last good segment is moved aside first.
+        long intactLength = intactLength();
+        if (intactLength < getSizeBytes()) {
+            quarantine(intactLength);
+            truncate(intactLength);
+        }
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true))) {
+            for (int start = 0; start < sorted.size(); start += MAX_SEGMENT_ENTRIES) {
+                writeSegment(out, sorted.subList(start, Math.min(sorted.size(), start + MAX_SEGMENT_ENTRIES)));
+            }
+        } catch (IOException e) {
+            try {
+                truncate(intactLength);
+            } catch (IOException truncateError) {
+                e.addSuppressed(truncateError);
+            }
+            throw e;
+        }
+    }
+
+    // Entries with fromMillis <= timestamp <= toMillis in chronological order.
+    // Timestamps come back rounded down to the minute; medicine ids are not stored.
+    public List<MedicineLogEntry> read(long fromMillis, long toMillis) throws IOException {
+        List<MedicineLogEntry> result = new ArrayList<>();
+        forEach(fromMillis, toMillis, (medicineName, timestamp) -> result.add(new MedicineLogEntry(medicineName, timestamp)));
+        return result;
+    }
+
+    // Streaming form of read(); memory use is bounded by one segment
+    public synchronized void forEach(long fromMillis, long toMillis, EntryVisitor visitor) throws IOException {
+        if (!file.exists() || fromMillis > toMillis) {
+            return;
+        }
+
+        long fromMinute = Math.floorDiv(fromMillis, MILLIS_PER_MINUTE);
+        long toMinute = Math.floorDiv(toMillis, MILLIS_PER_MINUTE);
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            while (true) {
+                int first = in.read();
+                if (first < 0) {
+                    break;
+                }
+
+                int magic = (first << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+                int version = readByte(in);
+                if (magic != MAGIC || version != VERSION) {
+                    break; // unreadable from here on; the next append moves it aside
+                }
+
+                int count = (int) readVarLong(in);
+                long minMinute = readVarLong(in);
+                long maxMinute = readVarLong(in);
+                long payloadLength = readVarLong(in);
+
+                if (maxMinute < fromMinute || minMinute > toMinute) {
+                    skipFully(in, payloadLength);
+                    continue;
+                }
+
+                readSegment(in, count, minMinute, fromMillis, toMillis, visitor);
+            }
+        } catch (EOFException e) {
+            // A segment cut short by a process killed mid-append; everything before it is intact and
+            // the next append drops the torn tail
+        }
+    }
+
+    // Length of the file up to the end of its last complete, well-formed segment
+    private long intactLength() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        long fileLength = file.length();
+        long position = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            while (position < fileLength) {
+                int magic = (readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+                int version = readByte(in);
+                if (magic != MAGIC || version != VERSION) {
+                    break;
+                }
+
+                long count = readVarLong(in);
+                long minMinute = readVarLong(in);
+                long maxMinute = readVarLong(in);
+                long payloadLength = readVarLong(in);
+                long end = position + 5 + varLongSize(count) + varLongSize(minMinute) + varLongSize(maxMinute)
+                        + varLongSize(payloadLength) + payloadLength;
+                if (payloadLength < 0 || end > fileLength) {
+                    break;
+                }
+                skipFully(in, payloadLength);
+                position = end;
+            }
+        } catch (EOFException e) {
+            // Torn header
+        } catch (MalformedVarintException e) {
+            // Garbage where a header should be
+        }
+        return position;
+    }
+
+    // Copies everything from offset to the end into a .corrupt file next to the archive, replacing
+    // any earlier one, so a damaged tail can still be inspected after it is cut off
+    private void quarantine(long offset) throws IOException {
+        File corrupt = new File(file.getPath() + ".corrupt");
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file));
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(corrupt))) {
+            skipFully(in, offset);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            channel.truncate(length);
+        }
+    }
+
+    public synchronized long getSizeBytes() {
+        return file.exists() ? file.length() : 0;
+    }
+
+    public synchronized boolean delete() {
+        return !file.exists() || file.delete();
+    }
+
+    // ==================== SEGMENT ENCODING ====================
+
+    private static void writeSegment(OutputStream out, List<MedicineLogEntry> entries) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        int[] nameIndexes = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            String name = entries.get(i).getMedicineName() != null ? entries.get(i).getMedicineName() : "";
+            Integer index = dictionary.get(name);
+            if (index == null) {
+                index = names.size();
+                dictionary.put(name, index);
+                names.add(name);
+            }
+            nameIndexes[i] = index;
+        }
+
+        long minMinute = Math.floorDiv(entries.get(0).getTimestamp(), MILLIS_PER_MINUTE);
+        long maxMinute = Math.floorDiv(entries.get(entries.size() - 1).getTimestamp(), MILLIS_PER_MINUTE);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+        // Dictionary
+        writeVarLong(payload, names.size());
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(payload, bytes.length);
+            payload.write(bytes);
+        }
+
+        // Timestamp column: deltas from the previous entry, starting at minMinute
+        long previous = minMinute;
+        for (MedicineLogEntry entry : entries) {
+            long minute = Math.floorDiv(entry.getTimestamp(), MILLIS_PER_MINUTE);
+            writeVarLong(payload, minute - previous);
+            previous = minute;
+        }
+
+        // Medicine column
+        for (int index : nameIndexes) {
+            writeVarLong(payload, index);
+        }
+
+        out.write(MAGIC >>> 24);
+        out.write(MAGIC >>> 16);
+        out.write(MAGIC >>> 8);
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeVarLong(out, entries.size());
+        writeVarLong(out, minMinute);
+        writeVarLong(out, maxMinute);
+        writeVarLong(out, payload.size());
+        payload.writeTo(out);
+    }
+
+    private static void readSegment(InputStream in, int count, long minMinute, long fromMillis, long toMillis,
+                                    EntryVisitor visitor) throws IOException {
+        int dictionarySize = (int) readVarLong(in);
+        String[] names = new String[dictionarySize];
+        for (int i = 0; i < dictionarySize; i++) {
+            byte[] bytes = new byte[(int) readVarLong(in)];
+            readFully(in, bytes);
+            names[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        long[] timestamps = new long[count];
+        long minute = minMinute;
+        for (int i = 0; i < count; i++) {
+            minute += readVarLong(in);
+            timestamps[i] = minute * MILLIS_PER_MINUTE;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int index = (int) readVarLong(in);
+            if (timestamps[i] >= fromMillis && timestamps[i] <= toMillis) {
+                visitor.visit(names[index], timestamps[i]);
+            }
+        }
+    }
+
+    // ==================== VARINTS ====================
+
+    // Unsigned LEB128: seven bits per byte, low bits first, high bit set on all but the last byte
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new MalformedVarintException();
+    }
+
+    static class MalformedVarintException extends IOException {
+        MalformedVarintException() {
+            super("Malformed varint in dose archive");
+        }
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    private static void skipFully(InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                readByte(in);
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+}
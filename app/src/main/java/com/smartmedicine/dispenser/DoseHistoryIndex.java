@@ -0,0 +1,108 @@
+package com.smartmedicine.dispenser;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+// Indexes over the dose log: one bucket of store offsets per local calendar day,
+// plus a posting list of offsets per medicine id. Offsets are appended in increasing order.
+class DoseHistoryIndex {
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final IntList EMPTY = new IntList(1);
+
+    private final TreeMap<Long, IntList> dayBuckets = new TreeMap<>();
+    private final Map<Integer, IntList> medicinePostings = new HashMap<>();
+
+    public void add(int offset, long timestamp, int medicineId) {
+        long day = epochDay(timestamp);
+        IntList bucket = dayBuckets.get(day);
+        if (bucket == null) {
+            bucket = new IntList();
+            dayBuckets.put(day, bucket);
+        }
+        bucket.add(offset);
+
+        IntList postings = medicinePostings.get(medicineId);
+        if (postings == null) {
+            postings = new IntList();
+            medicinePostings.put(medicineId, postings);
+        }
+        postings.add(offset);
+    }
+
+    public void clear() {
+        dayBuckets.clear();
+        medicinePostings.clear();
+    }
+
+    // Sorted offsets of every entry for the medicine; must not be modified by the caller
+    public IntList getOffsetsForMedicine(int medicineId) {
+        IntList postings = medicinePostings.get(medicineId);
+        return postings != null ? postings : EMPTY;
+    }
+
+    public int getCountForMedicine(int medicineId) {
+        return getOffsetsForMedicine(medicineId).size();
+    }
+
+    // Candidates for a medicine + date query: whichever of the posting list and the
+    // day buckets is smaller. Callers still filter by medicine id and timestamp.
+    public IntList getCandidateOffsets(int medicineId, long fromMillis, long toMillis) {
+        IntList postings = getOffsetsForMedicine(medicineId);
+        if (postings.isEmpty() || fromMillis > toMillis) {
+            return EMPTY;
+        }
+
+        int rangeSize = 0;
+        for (IntList bucket : dayBuckets.subMap(epochDay(fromMillis), true, epochDay(toMillis), true).values()) {
+            rangeSize += bucket.size();
+        }
+        return rangeSize < postings.size() ? getOffsetsForDays(fromMillis, toMillis) : postings;
+    }
+
+    public int getCountForDay(long epochDay) {
+        IntList bucket = dayBuckets.get(epochDay);
+        return bucket != null ? bucket.size() : 0;
+    }
+
+    // Offsets of every entry on one day; the returned list must not be modified
+    public IntList getOffsetsForDay(long epochDay) {
+        IntList bucket = dayBuckets.get(epochDay);
+        return bucket != null ? bucket : EMPTY;
+    }
+
+    // Offsets of every entry on the days touched by [fromMillis, toMillis]; callers trim the edge days
+    public IntList getOffsetsForDays(long fromMillis, long toMillis) {
+        IntList result = new IntList();
+        if (fromMillis > toMillis) {
+            return result;
+        }
+
+        for (IntList bucket : dayBuckets.subMap(epochDay(fromMillis), true, epochDay(toMillis), true).values()) {
+            for (int i = 0; i < bucket.size(); i++) {
+                result.add(bucket.get(i));
+            }
+        }
+        return result;
+    }
+
+    // Entry counts keyed by epoch day for every non-empty day in [fromMillis, toMillis]
+    public TreeMap<Long, Integer> getCountsPerDay(long fromMillis, long toMillis) {
+        TreeMap<Long, Integer> counts = new TreeMap<>();
+        if (fromMillis > toMillis) {
+            return counts;
+        }
+
+        for (Map.Entry<Long, IntList> bucket :
+                dayBuckets.subMap(epochDay(fromMillis), true, epochDay(toMillis), true).entrySet()) {
+            counts.put(bucket.getKey(), bucket.getValue().size());
+        }
+        return counts;
+    }
+
+    // Days since 1970-01-01 in the device's local time zone
+    public static long epochDay(long millis) {
+        return Math.floorDiv(millis + TimeZone.getDefault().getOffset(millis), MILLIS_PER_DAY);
+    }
+}
@@ -0,0 +1,194 @@
+package com.smartmedicine.dispenser;
+
+import java.util.AbstractList;
+import java.util.List;
+
+// In-memory dose log on parallel primitive arrays: epoch minute (int) and medicine id (short),
+// 6 bytes per entry. Entries are kept sorted by time in a growable ring, so appending a newer
+// dose is amortized O(1), dropping the oldest doses is O(1) and newest-first iteration is a
+// reverse walk. Positions run from 0 (oldest) to size() - 1 (newest).
+class DoseLog {
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+    // Resolves medicine ids back to names when entries are materialized
+    interface NameResolver {
+        String getMedicineName(int medicineId);
+    }
+
+    private int[] minutes;
+    private short[] medicineIds;
+    private int head;
+    private int size;
+
+    DoseLog() {
+        this(16);
+    }
+
+    DoseLog(int initialCapacity) {
+        minutes = new int[Math.max(1, initialCapacity)];
+        medicineIds = new short[minutes.length];
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getTimestamp(int position) {
+        return minutes[slot(position)] * MILLIS_PER_MINUTE;
+    }
+
+    int getMedicineId(int position) {
+        return medicineIds[slot(position)] & 0xFFFF;
+    }
+
+    // Inserts in time order and returns the position. Anything other than size() - 1 means
+    // later entries moved up by one.
+    int add(long timestamp, int medicineId) {
+        if (medicineId < 0 || medicineId > 0xFFFF) {
+            throw new IllegalArgumentException("Medicine id out of range: " + medicineId);
+        }
+        if (size == minutes.length) {
+            grow();
+        }
+
+        int minute = (int) Math.floorDiv(timestamp, MILLIS_PER_MINUTE);
+
+        // Newest dose: plain append at the tail
+        int position = size;
+        if (size > 0 && minutes[slot(size - 1)] > minute) {
+            position = upperBound(minute);
+            for (int i = size; i > position; i--) {
+                minutes[slot(i)] = minutes[slot(i - 1)];
+                medicineIds[slot(i)] = medicineIds[slot(i - 1)];
+            }
+        }
+
+        minutes[slot(position)] = minute;
+        medicineIds[slot(position)] = (short) medicineId;
+        size++;
+        return position;
+    }
+
+    void dropOldest(int count) {
+        count = Math.min(count, size);
+        head = (head + count) % minutes.length;
+        size -= count;
+    }
+
+    // Number of entries before the first one at or after the timestamp
+    int countBefore(long timestamp) {
+        long minute = Math.floorDiv(timestamp, MILLIS_PER_MINUTE);
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (minutes[slot(mid)] < minute) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Copies up to timestamps.length entries in time order, starting skip entries past the first
+    // one at or after fromMillis, and returns how many were copied. Lets callers page through the
+    // log with a (minute, skip) cursor without holding a lock between pages.
+    int read(long fromMillis, int skip, long[] timestamps, int[] ids) {
+        int start = countBefore(fromMillis) + skip;
+        int count = Math.max(0, Math.min(timestamps.length, size - start));
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = getTimestamp(start + i);
+            ids[i] = getMedicineId(start + i);
+        }
+        return count;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    DoseLog copy() {
+        DoseLog copy = new DoseLog(Math.max(1, size));
+        for (int i = 0; i < size; i++) {
+            copy.minutes[i] = minutes[slot(i)];
+            copy.medicineIds[i] = medicineIds[slot(i)];
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    MedicineLogEntry getEntry(int position, NameResolver names) {
+        int medicineId = getMedicineId(position);
+        return new MedicineLogEntry(names.getMedicineName(medicineId), medicineId, getTimestamp(position));
+    }
+
+    // Read-only list view, newest first; entries are created only when accessed
+    List<MedicineLogEntry> newestFirst(NameResolver names) {
+        return new EntryView(this, names, true);
+    }
+
+    // Read-only list view, oldest first
+    List<MedicineLogEntry> oldestFirst(NameResolver names) {
+        return new EntryView(this, names, false);
+    }
+
+    // Named rather than anonymous so Gson can serialize it
+    private static class EntryView extends AbstractList<MedicineLogEntry> {
+        private final DoseLog log;
+        private final NameResolver names;
+        private final boolean newestFirst;
+
+        EntryView(DoseLog log, NameResolver names, boolean newestFirst) {
+            this.log = log;
+            this.names = names;
+            this.newestFirst = newestFirst;
+        }
+
+        @Override
+        public MedicineLogEntry get(int index) {
+            if (index < 0 || index >= log.size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + log.size);
+            }
+            return log.getEntry(newestFirst ? log.size - 1 - index : index, names);
+        }
+
+        @Override
+        public int size() {
+            return log.size;
+        }
+    }
+
+    private int slot(int position) {
+        int slot = head + position;
+        return slot < minutes.length ? slot : slot - minutes.length;
+    }
+
+    // First position whose minute is greater than the given one
+    private int upperBound(int minute) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (minutes[slot(mid)] <= minute) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void grow() {
+        int[] grownMinutes = new int[minutes.length * 2];
+        short[] grownIds = new short[minutes.length * 2];
+        for (int i = 0; i < size; i++) {
+            grownMinutes[i] = minutes[slot(i)];
+            grownIds[i] = medicineIds[slot(i)];
+        }
+        minutes = grownMinutes;
+        medicineIds = grownIds;
+        head = 0;
+    }
+}
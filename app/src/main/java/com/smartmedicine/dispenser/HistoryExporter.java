@@ -0,0 +1,357 @@
+package com.smartmedicine.dispenser;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+// Streams the dose history (archive first, then the live log) to CSV or JSON Lines.
+// Rows are read in fixed-size chunks and written through a buffered writer, so memory use
+// does not grow with the size of the history. Run off the main thread.
+public class HistoryExporter {
+    private static final String TAG = "HistoryExporter";
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int PROGRESS_INTERVAL = 5000; // rows
+    private static final int WRITER_BUFFER_SIZE = 64 * 1024;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+    public enum Format {
+        CSV("text/csv", "csv"),
+        JSONL("application/x-ndjson", "jsonl");
+
+        private final String mimeType;
+        private final String extension;
+
+        Format(String mimeType, String extension) {
+            this.mimeType = mimeType;
+            this.extension = extension;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    public interface ProgressListener {
+        void onProgress(long rowsWritten);
+    }
+
+    // What an export reads; MedicineManager in the app
+    interface HistorySource {
+        void beginExport() throws InterruptedException;
+
+        void endExport();
+
+        DoseArchive getDoseArchive();
+
+        int readLogChunk(long fromMillis, int skip, long[] timestamps, int[] medicineIds);
+
+        String getMedicineNameById(int medicineId);
+
+        // 0 for a name without an id
+        int findMedicineId(String medicineName);
+    }
+
+    private final Context context;
+    private final HistorySource history;
+
+    private Format format = Format.CSV;
+    private long fromMillis = Long.MIN_VALUE;
+    private long toMillis = Long.MAX_VALUE;
+    private String medicineFilter;
+    private ProgressListener progressListener;
+
+    // Per-export state
+    private Writer writer;
+    private long rowsWritten;
+    private int filterId;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault());
+    private long cachedDay = Long.MIN_VALUE;
+    private String cachedDate;
+    private final char[] timeChars = new char[5];
+
+    public HistoryExporter(Context context) {
+        this(context.getApplicationContext(), fromManager(MedicineManager.getInstance(context)));
+    }
+
+    HistoryExporter(Context context, HistorySource history) {
+        this.context = context;
+        this.history = history;
+    }
+
+    private static HistorySource fromManager(MedicineManager medicineManager) {
+        return new HistorySource() {
+            @Override
+            public void beginExport() throws InterruptedException {
+                medicineManager.beginExport();
+            }
+
+            @Override
+            public void endExport() {
+                medicineManager.endExport();
+            }
+
+            @Override
+            public DoseArchive getDoseArchive() {
+                return medicineManager.getDoseArchive();
+            }
+
+            @Override
+            public int readLogChunk(long fromMillis, int skip, long[] timestamps, int[] medicineIds) {
+                return medicineManager.readLogChunk(fromMillis, skip, timestamps, medicineIds);
+            }
+
+            @Override
+            public String getMedicineNameById(int medicineId) {
+                return medicineManager.getMedicineNameById(medicineId);
+            }
+
+            @Override
+            public int findMedicineId(String medicineName) {
+                return medicineManager.findMedicineId(medicineName);
+            }
+        };
+    }
+
+    public void setFormat(Format format) {
+        this.format = format;
+    }
+
+    // Inclusive range in epoch millis
+    public void setDateRange(long fromMillis, long toMillis) {
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+    }
+
+    // null exports every medicine
+    public void setMedicineFilter(String medicineName) {
+        this.medicineFilter = medicineName;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    // ==================== EXPORT ====================
+
+    public long exportToUri(Uri uri) throws IOException {
+        OutputStream out = context.getContentResolver().openOutputStream(uri);
+        if (out == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        return export(out);
+    }
+
+    public long exportToFile(File file) throws IOException {
+        return export(new FileOutputStream(file));
+    }
+
+    // Writes every matching row and closes the stream. Returns the number of rows written.
+    public synchronized long export(OutputStream out) throws IOException {
+        rowsWritten = 0;
+        // A name that was never logged has no id, and so no rows in the live log
+        filterId = medicineFilter != null ? history.findMedicineId(medicineFilter) : 0;
+        cachedDay = Long.MIN_VALUE;
+        long started = System.currentTimeMillis();
+
+        // Compaction moves entries from the live log into the archive; holding it off keeps them
+        // from being skipped between the two passes
+        try {
+            history.beginExport();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Export interrupted");
+        }
+        try (Writer bufferedWriter = new BufferedWriter(
+                new OutputStreamWriter(out, StandardCharsets.UTF_8), WRITER_BUFFER_SIZE)) {
+            writer = bufferedWriter;
+            if (format == Format.CSV) {
+                writer.write("medicine,date,time,timestamp\n");
+            }
+
+            // Archived entries are older than anything in the live log
+            history.getDoseArchive().forEach(fromMillis, toMillis, (medicineName, timestamp) -> {
+                if (medicineFilter == null || medicineFilter.equals(medicineName)) {
+                    writeRow(medicineName, filterId, timestamp);
+                }
+            });
+
+            exportLiveLog();
+        } finally {
+            writer = null;
+            history.endExport();
+        }
+
+        if (progressListener != null) {
+            progressListener.onProgress(rowsWritten);
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - started);
+        Log.d(TAG, "Exported " + rowsWritten + " rows as " + format + " in " + elapsed + " ms (" +
+                (rowsWritten * 1000 / elapsed) + " rows/s)");
+        return rowsWritten;
+    }
+
+    // Pages through the live log with a (minute, rows already seen in that minute) cursor, so the
+    // manager's lock is held only while a chunk is copied and doses recorded meanwhile are picked up
+    private void exportLiveLog() throws IOException {
+        long[] timestamps = new long[CHUNK_SIZE];
+        int[] medicineIds = new int[CHUNK_SIZE];
+
+        long cursor = fromMillis == Long.MIN_VALUE
+                ? Long.MIN_VALUE
+                : Math.floorDiv(fromMillis, MILLIS_PER_MINUTE) * MILLIS_PER_MINUTE;
+        int seenAtCursor = 0;
+
+        while (true) {
+            int count = history.readLogChunk(cursor, seenAtCursor, timestamps, medicineIds);
+            for (int i = 0; i < count; i++) {
+                long timestamp = timestamps[i];
+                if (timestamp > toMillis) {
+                    return;
+                }
+
+                if (timestamp == cursor) {
+                    seenAtCursor++;
+                } else {
+                    cursor = timestamp;
+                    seenAtCursor = 1;
+                }
+
+                if (timestamp >= fromMillis && (medicineFilter == null || medicineIds[i] == filterId)) {
+                    writeRow(history.getMedicineNameById(medicineIds[i]), medicineIds[i], timestamp);
+                }
+            }
+
+            if (count < CHUNK_SIZE) {
+                return;
+            }
+        }
+    }
+
+    private void writeRow(String medicineName, int medicineId, long timestamp) throws IOException {
+        String name = medicineName != null ? medicineName : "";
+        String date = formatDate(timestamp);
+        String time = formatTime(timestamp);
+
+        if (format == Format.CSV) {
+            writeCsvField(name);
+            writer.write(',');
+            writer.write(date);
+            writer.write(',');
+            writer.write(time);
+            writer.write(',');
+            writer.write(Long.toString(timestamp));
+            writer.write('\n');
+        } else {
+            writer.write("{\"medicineName\":");
+            writeJsonString(name);
+            if (medicineId > 0) {
+                writer.write(",\"medicineId\":");
+                writer.write(Integer.toString(medicineId));
+            }
+            writer.write(",\"timestamp\":");
+            writer.write(Long.toString(timestamp));
+            writer.write(",\"date\":\"");
+            writer.write(date);
+            writer.write("\",\"time\":\"");
+            writer.write(time);
+            writer.write("\"}\n");
+        }
+
+        rowsWritten++;
+        if (progressListener != null && rowsWritten % PROGRESS_INTERVAL == 0) {
+            progressListener.onProgress(rowsWritten);
+        }
+    }
+
+    // ==================== FORMATTING ====================
+
+    // Rows arrive in time order, so the date string changes at most once per day
+    private String formatDate(long timestamp) {
+        long day = DoseHistoryIndex.epochDay(timestamp);
+        if (day != cachedDay) {
+            cachedDay = day;
+            cachedDate = dateFormat.format(new Date(timestamp));
+        }
+        return cachedDate;
+    }
+
+    private String formatTime(long timestamp) {
+        long local = timestamp + TimeZone.getDefault().getOffset(timestamp);
+        int minuteOfDay = (int) (Math.floorMod(local, MILLIS_PER_DAY) / MILLIS_PER_MINUTE);
+        int hour = minuteOfDay / 60;
+        int minute = minuteOfDay % 60;
+        timeChars[0] = (char) ('0' + hour / 10);
+        timeChars[1] = (char) ('0' + hour % 10);
+        timeChars[2] = ':';
+        timeChars[3] = (char) ('0' + minute / 10);
+        timeChars[4] = (char) ('0' + minute % 10);
+        return new String(timeChars);
+    }
+
+    private void writeCsvField(String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    private void writeJsonString(String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+}
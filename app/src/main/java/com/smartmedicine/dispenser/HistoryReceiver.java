@@ -0,0 +1,123 @@
+package com.smartmedicine.dispenser;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Buffers HISTORY records from the device and ingests them as one batch on HISTORY_END, after
+// a quiet period, or when the link drops. Advances the per-device history cursor once the batch
+// is stored. All methods run on the main thread.
+class HistoryReceiver {
+    private static final String TAG = "HistoryReceiver";
+
+    // A dump is committed once the device has been quiet this long without HISTORY_END
+    private static final long QUIET_MS = 1500;
+
+    interface Listener {
+        void onHistoryIngested(MedicineManager.IngestResult result);
+    }
+
+    private final BluetoothManager bluetoothManager;
+    private final MedicineManager medicineManager;
+    private final MainThread handler;
+    private final Listener listener;
+    private final Runnable quietCommit = () -> commit(-1);
+
+    // Batches are stored one at a time and in order, so two commits never race on the cursor
+    private final ExecutorService committer = Executors.newSingleThreadExecutor();
+
+    private final List<MedicineLogEntry> pending = new ArrayList<>();
+    private final Set<Long> pendingSequences = new TreeSet<>(); // device sequence numbers in the buffer
+    private long pendingSequence = -1; // highest of them
+    private String pendingDevice;
+
+    HistoryReceiver(BluetoothManager bluetoothManager, MedicineManager medicineManager, MainThread handler,
+                    Listener listener) {
+        this.bluetoothManager = bluetoothManager;
+        this.medicineManager = medicineManager;
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    // sequence is -1 for records from firmware without HISTORY_SINCE support
+    void onRecord(long sequence, MedicineLogEntry entry, String deviceAddress) {
+        if (pending.isEmpty()) {
+            pendingDevice = deviceAddress;
+        }
+        pending.add(entry);
+        if (sequence >= 0) {
+            pendingSequences.add(sequence);
+        }
+        pendingSequence = Math.max(pendingSequence, sequence);
+
+        handler.removeCallbacks(quietCommit);
+        handler.postDelayed(quietCommit, QUIET_MS);
+    }
+
+    // lastSequence is the HISTORY_END value, -1 if the device sent none
+    void onEnd(long lastSequence, String deviceAddress) {
+        if (pending.isEmpty()) {
+            pendingDevice = deviceAddress;
+        }
+        commit(lastSequence);
+    }
+
+    // Keeps whatever part of a dump arrived before the link dropped
+    void flush() {
+        commit(-1);
+    }
+
+    // endSequence is the device's HISTORY_END value, or -1 when the dump was cut short. A partial
+    // batch moves the cursor only over the records that directly follow it, so the next fetch
+    // resumes at the first gap.
+    private void commit(long endSequence) {
+        handler.removeCallbacks(quietCommit);
+
+        List<MedicineLogEntry> batch = new ArrayList<>(pending);
+        Set<Long> sequences = new TreeSet<>(pendingSequences);
+        long batchSequence = pendingSequence;
+        String device = pendingDevice;
+        pending.clear();
+        pendingSequences.clear();
+        pendingSequence = -1;
+        pendingDevice = null;
+
+        if (batch.isEmpty() && endSequence < 0) {
+            return;
+        }
+
+        committer.execute(() -> {
+            try {
+                MedicineManager.IngestResult result = medicineManager.ingestHistory(batch);
+                if (!result.isComplete()) {
+                    // Leave the cursor where it was so the next fetch asks for this batch again
+                    Log.w(TAG, "History batch not stored, cursor kept for " + device);
+                    return;
+                }
+
+                // Only after the batch is stored. A complete dump sets the cursor outright, which
+                // also follows a device whose counter was reset.
+                if (endSequence >= 0) {
+                    bluetoothManager.setHistoryCursor(device, Math.max(endSequence, batchSequence));
+                } else {
+                    long stored = bluetoothManager.getHistoryCursor(device);
+                    long contiguous = BluetoothManager.contiguousFrom(stored, sequences);
+                    if (contiguous > stored) {
+                        bluetoothManager.setHistoryCursor(device, contiguous);
+                    }
+                }
+
+                if (!batch.isEmpty() && listener != null) {
+                    handler.post(() -> listener.onHistoryIngested(result));
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error committing history: " + e.getMessage(), e);
+            }
+        });
+    }
+}
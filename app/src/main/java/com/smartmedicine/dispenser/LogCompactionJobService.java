@@ -0,0 +1,79 @@
+package com.smartmedicine.dispenser;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+// Folds dose log entries older than the retention window into daily rollups while charging and idle
+public class LogCompactionJobService extends JobService {
+    private static final String TAG = "LogCompactionJob";
+    private static final int JOB_ID = 2001;
+    private static final long COMPACTION_INTERVAL = 24L * 60 * 60 * 1000;
+
+    private Thread compactionThread;
+    private volatile boolean stopped;
+
+    public static void schedule(Context context) {
+        try {
+            JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            if (jobScheduler == null) {
+                return;
+            }
+
+            // Rescheduling would restart the period, so leave an existing job alone
+            for (JobInfo job : jobScheduler.getAllPendingJobs()) {
+                if (job.getId() == JOB_ID) {
+                    return;
+                }
+            }
+
+            JobInfo jobInfo = new JobInfo.Builder(JOB_ID, new ComponentName(context, LogCompactionJobService.class))
+                    .setRequiresCharging(true)
+                    .setRequiresDeviceIdle(true)
+                    .setPeriodic(COMPACTION_INTERVAL)
+                    .setPersisted(true)
+                    .build();
+
+            jobScheduler.schedule(jobInfo);
+            Log.d(TAG, "Log compaction job scheduled");
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error scheduling log compaction: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        stopped = false;
+        compactionThread = new Thread(() -> {
+            try {
+                int folded = MedicineManager.getInstance(getApplicationContext()).compactLogEntries();
+                Log.d(TAG, "Log compaction finished, " + folded + " entries folded");
+            } catch (Exception e) {
+                Log.e(TAG, "Error compacting log: " + e.getMessage(), e);
+            } finally {
+                // A stopped job is rescheduled by onStopJob's return value instead
+                if (!stopped) {
+                    jobFinished(params, false);
+                }
+            }
+        });
+        compactionThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Compaction checks for the interrupt between batches; the batches already done are kept
+        // and the rest is picked up when the job runs again
+        stopped = true;
+        if (compactionThread != null) {
+            compactionThread.interrupt();
+        }
+        return true;
+    }
+}
@@ -155,7 +155,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
             quantityText.setGravity(View.TEXT_ALIGNMENT_CENTER);
 
             // Add low stock warning
-            if (medicine.getQuantity() <= 5 && medicine.getQuantity() > 0) {
+            if (medicine.getQuantity() > 0 && medicineManager.isMedicineRunningLow(medicine.getName())) {
                 quantityText.setTextColor(ContextCompat.getColor(this, android.R.color.holo_orange_dark));
                 quantityStr += " (Low Stock!)";
                 quantityText.setText(quantityStr);
@@ -225,6 +225,33 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                 countParams.setMargins(0, 8, 0, 0);
                 alarmCount.setLayoutParams(countParams);
                 cardContent.addView(alarmCount);
+
+                // Today's adherence and streak
+                long today = AdherenceTracker.epochDay(System.currentTimeMillis());
+                int streak = medicineManager.getCurrentStreak(medicine.getName(), today);
+
+                TextView adherenceText = new TextView(this);
+                adherenceText.setText("Today: " + medicineManager.getRecordedDosesForDay(medicine.getName(), today) + "/" +
+                        medicineManager.getScheduledDosesPerDay(medicine.getName()) + " doses taken" +
+                        (streak > 0 ? " - " + streak + " day streak" : ""));
+                adherenceText.setTextSize(14);
+                adherenceText.setTextColor(ContextCompat.getColor(this, R.color.text_secondary));
+                adherenceText.setPadding(0, 4, 0, 0);
+                cardContent.addView(adherenceText);
+
+                // This week's adherence, best streak and doses taken over an hour late
+                float weekly = medicineManager.getWeeklyAdherence(medicine.getName(), AdherenceTracker.epochWeek(today));
+                int bestStreak = medicineManager.getBestStreak(medicine.getName());
+                int[] lateDoses = medicineManager.getLateDoseHistogram(medicine.getName());
+                int veryLate = lateDoses[lateDoses.length - 1];
+
+                TextView weeklyText = new TextView(this);
+                weeklyText.setText("This week: " + Math.round(weekly * 100) + "%" +
+                        (bestStreak > 0 ? " - best streak " + bestStreak + " days" : "") +
+                        (veryLate > 0 ? " - " + veryLate + " taken over an hour late" : ""));
+                weeklyText.setTextSize(14);
+                weeklyText.setTextColor(ContextCompat.getColor(this, R.color.text_secondary));
+                cardContent.addView(weeklyText);
             } else {
                 // No alarms set
                 TextView noAlarms = new TextView(this);
@@ -241,6 +268,13 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                 cardContent.addView(noAlarms);
             }
 
+            // Tapping a card opens that medicine's history
+            cardView.setOnClickListener(v -> {
+                Intent intent = new Intent(this, MedicineLogActivity.class);
+                intent.putExtra(MedicineLogActivity.EXTRA_MEDICINE_NAME, medicine.getName());
+                startActivity(intent);
+            });
+
             cardView.addView(cardContent);
             return cardView;
 
@@ -0,0 +1,34 @@
+package com.smartmedicine.dispenser;
+
+import android.os.Handler;
+import android.os.Looper;
+
+// Posts work to the UI thread. The Bluetooth classes go through this instead of a Handler so
+// tests can run posted callbacks without a Looper.
+interface MainThread {
+    void post(Runnable runnable);
+
+    void postDelayed(Runnable runnable, long delayMs);
+
+    void removeCallbacks(Runnable runnable);
+
+    static MainThread forLooper(Looper looper) {
+        Handler handler = new Handler(looper);
+        return new MainThread() {
+            @Override
+            public void post(Runnable runnable) {
+                handler.post(runnable);
+            }
+
+            @Override
+            public void postDelayed(Runnable runnable, long delayMs) {
+                handler.postDelayed(runnable, delayMs);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                handler.removeCallbacks(runnable);
+            }
+        };
+    }
+}
@@ -6,6 +6,7 @@ import java.util.List;
 public class Medicine {
     private String name;
     private int quantity;
+    private long quantityVersion; // bumped on every local quantity change; reconciled with the device
     private List<String> alarmTimes;
 
     public Medicine(String name, int quantity) {
@@ -37,6 +38,14 @@ public class Medicine {
         this.quantity = quantity;
     }
 
+    public long getQuantityVersion() {
+        return quantityVersion;
+    }
+
+    public void setQuantityVersion(long quantityVersion) {
+        this.quantityVersion = quantityVersion;
+    }
+
     public List<String> getAlarmTimes() {
         return alarmTimes;
     }
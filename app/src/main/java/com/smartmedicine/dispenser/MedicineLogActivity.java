@@ -1,6 +1,8 @@
 package com.smartmedicine.dispenser;
 
 import android.app.AlertDialog;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -14,16 +16,29 @@ import androidx.appcompat.widget.Toolbar;
 import androidx.cardview.widget.CardView;
 import androidx.core.content.ContextCompat;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MedicineLogActivity extends AppCompatActivity {
 
     private static final String TAG = "MedicineLogActivity";
 
+    // Optional: show only this medicine's history
+    public static final String EXTRA_MEDICINE_NAME = "medicine_name";
+
+    private static final int REQUEST_EXPORT = 1;
+
+    // Entries shown per "Show older entries" tap in the unfiltered view
+    private static final int LOG_PAGE_SIZE = 200;
+
     private LinearLayout logContainer;
     private TextView emptyLogText;
     private Button btnClearAll;
+    private Button btnExport;
     private MedicineManager medicineManager;
+    private String medicineFilter;
+    private int shownLogEntries = LOG_PAGE_SIZE;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -32,18 +47,21 @@ public class MedicineLogActivity extends AppCompatActivity {
         try {
             setContentView(R.layout.activity_medicine_log);
 
+            medicineFilter = getIntent().getStringExtra(EXTRA_MEDICINE_NAME);
+
             // Setup toolbar
             Toolbar toolbar = findViewById(R.id.toolbar);
             setSupportActionBar(toolbar);
             if (getSupportActionBar() != null) {
                 getSupportActionBar().setDisplayHomeAsUpEnabled(true);
-                getSupportActionBar().setTitle("Medicine History");
+                getSupportActionBar().setTitle(medicineFilter != null ? medicineFilter + " History" : "Medicine History");
             }
 
             // Initialize views
             logContainer = findViewById(R.id.log_container);
             emptyLogText = findViewById(R.id.empty_log_text);
             btnClearAll = findViewById(R.id.btn_clear_all);
+            btnExport = findViewById(R.id.btn_export);
 
             // Initialize medicine manager
             medicineManager = MedicineManager.getInstance(this);
@@ -56,6 +74,8 @@ public class MedicineLogActivity extends AppCompatActivity {
                 }
             });
 
+            btnExport.setOnClickListener(v -> chooseExportDestination());
+
             // Load medicine logs
             loadMedicineLogs();
 
@@ -109,15 +129,72 @@ public class MedicineLogActivity extends AppCompatActivity {
         }
     }
 
+    // ==================== EXPORT ====================
+
+    private void chooseExportDestination() {
+        try {
+            String baseName = medicineFilter != null ? medicineFilter.replaceAll("[^A-Za-z0-9]+", "_") : "medicine";
+            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType(HistoryExporter.Format.CSV.getMimeType());
+            intent.putExtra(Intent.EXTRA_TITLE, baseName + "_history." + HistoryExporter.Format.CSV.getExtension());
+            startActivityForResult(intent, REQUEST_EXPORT);
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting export: " + e.getMessage(), e);
+            Toast.makeText(this, "Export not available: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_EXPORT && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            exportHistory(data.getData());
+        }
+    }
+
+    // Streams on a background thread; the button shows the running row count
+    private void exportHistory(Uri uri) {
+        btnExport.setEnabled(false);
+        btnExport.setText("Exporting...");
+
+        HistoryExporter exporter = new HistoryExporter(this);
+        exporter.setMedicineFilter(medicineFilter);
+        exporter.setProgressListener(rows -> runOnUiThread(() -> btnExport.setText("Exporting... " + rows + " rows")));
+
+        new Thread(() -> {
+            String message;
+            try {
+                long rows = exporter.exportToUri(uri);
+                message = "Exported " + rows + " entries";
+            } catch (Exception e) {
+                Log.e(TAG, "Error exporting history: " + e.getMessage(), e);
+                message = "Export failed: " + e.getMessage();
+            }
+
+            String result = message;
+            runOnUiThread(() -> {
+                btnExport.setEnabled(true);
+                btnExport.setText("Export History (CSV)");
+                Toast.makeText(MedicineLogActivity.this, result, Toast.LENGTH_LONG).show();
+            });
+        }).start();
+    }
+
     private void loadMedicineLogs() {
         try {
             // Clear existing views
             logContainer.removeAllViews();
 
-            // Get medicine log entries
-            List<MedicineLogEntry> logEntries = medicineManager.getMedicineLogEntries();
+            // Get medicine log entries; the full history is read a page at a time
+            List<MedicineLogEntry> logEntries = medicineFilter != null
+                    ? medicineManager.getLogEntriesForMedicine(medicineFilter)
+                    : medicineManager.getMedicineLogEntries(0, shownLogEntries);
+            boolean hasOlderEntries = medicineFilter == null && medicineManager.getLogEntryCount() > logEntries.size();
 
-            if (logEntries == null || logEntries.isEmpty()) {
+            List<DailyDoseRollup> rollups = medicineManager.getLogRollups(medicineFilter);
+
+            if ((logEntries == null || logEntries.isEmpty()) && rollups.isEmpty()) {
                 // Show empty message and hide clear button
                 logContainer.addView(emptyLogText);
                 emptyLogText.setVisibility(View.VISIBLE);
@@ -125,12 +202,49 @@ public class MedicineLogActivity extends AppCompatActivity {
             } else {
                 // Hide empty message and show clear button
                 emptyLogText.setVisibility(View.GONE);
-                btnClearAll.setVisibility(View.VISIBLE);
+                // Clearing applies to the whole history, so it is not offered in a filtered view
+                btnClearAll.setVisibility(medicineFilter == null ? View.VISIBLE : View.GONE);
+
+                // Per-day counts of a filtered list come from the list itself
+                Map<Long, Integer> filteredDayCounts = new HashMap<>();
+                if (medicineFilter != null) {
+                    for (MedicineLogEntry entry : logEntries) {
+                        long day = DoseHistoryIndex.epochDay(entry.getTimestamp());
+                        Integer count = filteredDayCounts.get(day);
+                        filteredDayCounts.put(day, count != null ? count + 1 : 1);
+                    }
+                }
 
-                // Add log entries
+                // Add log entries, with a header and dose count whenever the day changes
+                long currentDay = Long.MIN_VALUE;
                 for (MedicineLogEntry entry : logEntries) {
+                    long day = DoseHistoryIndex.epochDay(entry.getTimestamp());
+                    if (day != currentDay) {
+                        currentDay = day;
+                        int doseCount = medicineFilter != null
+                                ? filteredDayCounts.get(day)
+                                : medicineManager.getDoseCountForDay(entry.getTimestamp());
+                        addDayHeaderView(entry.getDate(), doseCount);
+                    }
                     addLogEntryView(entry);
                 }
+
+                if (hasOlderEntries) {
+                    addShowOlderButton();
+                    return;
+                }
+
+                // Older history only survives as daily totals
+                for (DailyDoseRollup rollup : rollups) {
+                    if (rollup.getEpochDay() != currentDay) {
+                        currentDay = rollup.getEpochDay();
+                        int doseCount = medicineFilter != null
+                                ? rollup.getCount()
+                                : medicineManager.getDoseCountForDay(rollup.getDayStartMillis());
+                        addDayHeaderView(rollup.getDate(), doseCount);
+                    }
+                    addRollupView(rollup);
+                }
             }
 
         } catch (Exception e) {
@@ -145,6 +259,23 @@ public class MedicineLogActivity extends AppCompatActivity {
         }
     }
 
+    private void addDayHeaderView(String date, int doseCount) {
+        try {
+
+            TextView headerText = new TextView(this);
+            headerText.setText(date + " - " + doseCount + " dose(s)");
+            headerText.setTextSize(14);
+            headerText.setTextColor(ContextCompat.getColor(this, R.color.text_secondary));
+            headerText.setTypeface(null, android.graphics.Typeface.BOLD);
+            headerText.setPadding(0, 16, 0, 8);
+
+            logContainer.addView(headerText);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error adding day header view: " + e.getMessage(), e);
+        }
+    }
+
     private void addLogEntryView(MedicineLogEntry entry) {
         try {
             // Create card view
@@ -200,6 +331,55 @@ public class MedicineLogActivity extends AppCompatActivity {
         }
     }
 
+    private void addShowOlderButton() {
+        Button showOlder = new Button(this);
+        showOlder.setText("Show older entries");
+        showOlder.setOnClickListener(v -> {
+            shownLogEntries += LOG_PAGE_SIZE;
+            loadMedicineLogs();
+        });
+        logContainer.addView(showOlder);
+    }
+
+    private void addRollupView(DailyDoseRollup rollup) {
+        try {
+            CardView cardView = new CardView(this);
+            LinearLayout.LayoutParams cardParams = new LinearLayout.LayoutParams(
+                    LinearLayout.LayoutParams.MATCH_PARENT,
+                    LinearLayout.LayoutParams.WRAP_CONTENT
+            );
+            cardParams.setMargins(0, 0, 0, 16);
+            cardView.setLayoutParams(cardParams);
+            cardView.setCardElevation(4);
+            cardView.setRadius(8);
+            cardView.setCardBackgroundColor(ContextCompat.getColor(this, R.color.card_background));
+
+            LinearLayout contentLayout = new LinearLayout(this);
+            contentLayout.setOrientation(LinearLayout.VERTICAL);
+            contentLayout.setPadding(16, 16, 16, 16);
+
+            TextView nameText = new TextView(this);
+            nameText.setText(rollup.getMedicineName());
+            nameText.setTextSize(18);
+            nameText.setTextColor(ContextCompat.getColor(this, R.color.primary_green));
+            nameText.setTypeface(null, android.graphics.Typeface.BOLD);
+
+            TextView countText = new TextView(this);
+            countText.setText("Taken " + rollup.getCount() + " time(s)");
+            countText.setTextSize(14);
+            countText.setTextColor(ContextCompat.getColor(this, R.color.text_primary));
+            countText.setPadding(0, 8, 0, 0);
+
+            contentLayout.addView(nameText);
+            contentLayout.addView(countText);
+            cardView.addView(contentLayout);
+            logContainer.addView(cardView);
+
+        } catch (Exception e) {
+            Log.e(TAG, "Error adding rollup view: " + e.getMessage(), e);
+        }
+    }
+
     @Override
     public boolean onSupportNavigateUp() {
         onBackPressed();
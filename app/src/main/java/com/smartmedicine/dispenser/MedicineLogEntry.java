@@ -1,18 +1,41 @@
 package com.smartmedicine.dispenser;
 
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import java.lang.reflect.Type;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
 public class MedicineLogEntry {
+    private static final String LEGACY_PATTERN = "dd/MM/yyyy HH:mm";
+
     private String medicineName;
-    private String time;
-    private String date;
+    private int medicineId; // 0 until MedicineManager assigns one
+    private long timestamp; // epoch millis
 
     public MedicineLogEntry() {
         // Default constructor for Gson
     }
 
-    public MedicineLogEntry(String medicineName, String time, String date) {
+    public MedicineLogEntry(String medicineName, long timestamp) {
+        this(medicineName, 0, timestamp);
+    }
+
+    public MedicineLogEntry(String medicineName, int medicineId, long timestamp) {
         this.medicineName = medicineName;
-        this.time = time;
-        this.date = date;
+        this.medicineId = medicineId;
+        this.timestamp = timestamp;
+    }
+
+    // Legacy constructor for "HH:mm" / "dd/MM/yyyy" strings (e.g. device HISTORY replies)
+    public MedicineLogEntry(String medicineName, String time, String date) {
+        this(medicineName, 0, parseLegacyTimestamp(time, date));
     }
 
     // Getter methods
@@ -20,12 +43,21 @@ public class MedicineLogEntry {
         return medicineName;
     }
 
+    public int getMedicineId() {
+        return medicineId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    // Formatted at display time in the current locale
     public String getTime() {
-        return time;
+        return new SimpleDateFormat("HH:mm", Locale.getDefault()).format(new Date(timestamp));
     }
 
     public String getDate() {
-        return date;
+        return new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault()).format(new Date(timestamp));
     }
 
     // Setter methods
@@ -33,20 +65,73 @@ public class MedicineLogEntry {
         this.medicineName = medicineName;
     }
 
-    public void setTime(String time) {
-        this.time = time;
+    public void setMedicineId(int medicineId) {
+        this.medicineId = medicineId;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
     }
 
-    public void setDate(String date) {
-        this.date = date;
+    // Returns 0 when the strings cannot be parsed
+    public static long parseLegacyTimestamp(String time, String date) {
+        if (time == null || date == null) {
+            return 0;
+        }
+
+        String value = date.trim() + " " + time.trim();
+
+        // Older builds formatted with the default locale, so try that before plain digits
+        for (Locale locale : new Locale[]{Locale.getDefault(), Locale.US}) {
+            try {
+                SimpleDateFormat format = new SimpleDateFormat(LEGACY_PATTERN, locale);
+                format.setLenient(false);
+                Date parsed = format.parse(value);
+                if (parsed != null) {
+                    return parsed.getTime();
+                }
+            } catch (ParseException e) {
+                // Try the next locale
+            }
+        }
+        return 0;
     }
 
     @Override
     public String toString() {
         return "MedicineLogEntry{" +
                 "medicineName='" + medicineName + '\'' +
-                ", time='" + time + '\'' +
-                ", date='" + date + '\'' +
+                ", medicineId=" + medicineId +
+                ", timestamp=" + timestamp +
                 '}';
     }
+
+    // Reads both the current format and persisted entries that still carry "time"/"date" strings
+    public static class LegacyDeserializer implements JsonDeserializer<MedicineLogEntry> {
+        @Override
+        public MedicineLogEntry deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
+                throws JsonParseException {
+            if (!json.isJsonObject()) {
+                throw new JsonParseException("Log entry is not an object: " + json);
+            }
+
+            JsonObject object = json.getAsJsonObject();
+            String medicineName = getString(object, "medicineName");
+            int medicineId = object.has("medicineId") ? object.get("medicineId").getAsInt() : 0;
+
+            long timestamp;
+            if (object.has("timestamp")) {
+                timestamp = object.get("timestamp").getAsLong();
+            } else {
+                timestamp = parseLegacyTimestamp(getString(object, "time"), getString(object, "date"));
+            }
+
+            return new MedicineLogEntry(medicineName, medicineId, timestamp);
+        }
+
+        private static String getString(JsonObject object, String name) {
+            JsonElement element = object.get(name);
+            return element != null && !element.isJsonNull() ? element.getAsString() : null;
+        }
+    }
 }
@@ -8,38 +8,125 @@ import android.content.SharedPreferences;
 import android.util.Log;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Type;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 public class MedicineManager {
     private static final String TAG = "MedicineManager";
     private static final String PREFS_NAME = "MedicinePrefs";
     private static final String MEDICINES_KEY = "medicines";
     private static final String LOG_ENTRIES_KEY = "log_entries";
+    private static final String MEDICINE_NAMES_KEY = "medicine_names";
+    private static final String LOG_ROLLUPS_KEY = "log_rollups";
+    private static final String LOG_RETENTION_DAYS_KEY = "log_retention_days";
+    private static final String ARCHIVED_BEFORE_KEY = "archived_before";
+    private static final String ARCHIVE_FILE_NAME = "dose_history.archive";
+
+    // Raw log entries older than this are folded into daily rollups
+    public static final int DEFAULT_LOG_RETENTION_DAYS = 90;
+
+    // Low stock means the forecast runs out within this many days
+    public static final int LOW_STOCK_DAYS = 3;
+    // ...or, for medicines with no forecast, at or below this many pills
+    public static final int LOW_STOCK_QUANTITY = 5;
+    private static final int OBSERVED_CONSUMPTION_DAYS = 7;
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    // Aged entries archived and trimmed per lock hold during compaction
+    private static final int COMPACTION_BATCH_SIZE = 4096;
 
     private static MedicineManager instance;
     private Context context; // Added context for AlarmManager
     private SharedPreferences sharedPreferences;
     private Gson gson;
     private List<Medicine> medicines;
-    private List<MedicineLogEntry> logEntries;
+    private DoseLog doseLog; // sorted by time; positions are the offsets used by the history index
+    private DoseHistoryIndex historyIndex;
+    private AdherenceTracker adherenceTracker;
+    private StockForecaster stockForecaster;
+
+    // Per-day, per-medicine dose counts for history older than the retention window, oldest first
+    private List<DailyDoseRollup> logRollups;
+    private TreeMap<Long, Integer> rollupDayCounts;
+
+    // Full entries beyond the retention window, read by date range on demand
+    private DoseArchive doseArchive;
+
+    // Counts log saves, so compaction can tell whether the log it serialized is still the latest
+    private int logSaves;
+
+    // Exports reading the archive and then the live log, and a compaction batch moving entries
+    // from one to the other. Each waits for the other, so no entry is skipped or read twice.
+    private int exportsInProgress;
+    private boolean compacting;
+
+    // Stable medicine ids for log entries: id N is medicineNames.get(N - 1)
+    private List<String> medicineNames;
+    private Map<String, Integer> medicineIds;
+
+    // Quantity of each medicine as last saved; callers may edit the stored objects in place
+    private final Map<String, Integer> savedQuantities = new HashMap<>();
+
+    // Outcome of reconciling a device-reported quantity
+    public enum QuantitySync {
+        APPLIED,          // device value was newer and is now stored
+        LOCAL_NEWER,      // the app's value is newer; the device should be told
+        IN_SYNC,
+        UNKNOWN_MEDICINE
+    }
+
+    // Told about quantity changes made on the phone, so they can be pushed to the device
+    public interface QuantityListener {
+        void onQuantityChanged(Medicine medicine);
+    }
+
+    private QuantityListener quantityListener;
 
     private MedicineManager(Context context) {
         this.context = context.getApplicationContext(); // Store context
         sharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        gson = new Gson();
+        gson = new GsonBuilder()
+                .registerTypeAdapter(MedicineLogEntry.class, new MedicineLogEntry.LegacyDeserializer())
+                .create();
         medicines = new ArrayList<>();
-        logEntries = new ArrayList<>();
+        doseLog = new DoseLog();
+        historyIndex = new DoseHistoryIndex();
+        adherenceTracker = new AdherenceTracker();
+        stockForecaster = new StockForecaster();
+        logRollups = new ArrayList<>();
+        rollupDayCounts = new TreeMap<>();
+        doseArchive = new DoseArchive(new File(this.context.getFilesDir(), ARCHIVE_FILE_NAME));
+        medicineNames = new ArrayList<>();
+        medicineIds = new HashMap<>();
+        loadMedicineIds();
         loadMedicines();
         loadLogEntries();
+        loadLogRollups();
+
+        // One pass over the journal; afterwards statistics are updated as doses are recorded
+        for (Medicine medicine : medicines) {
+            adherenceTracker.setSchedule(getMedicineId(medicine.getName()), medicine.getAlarmTimes());
+        }
+        adherenceTracker.rebuild(logRollups, doseLog.oldestFirst(this::getMedicineNameById));
+        for (Medicine medicine : medicines) {
+            updateForecast(medicine);
+        }
+
+        LogCompactionJobService.schedule(this.context);
     }
 
     public static synchronized MedicineManager getInstance(Context context) {
@@ -161,6 +248,7 @@ public class MedicineManager {
             if (medicine != null) {
                 medicines.add(medicine);
                 saveMedicines();
+                onMedicineChanged(medicine);
 
                 // Schedule alarms for the new medicine
                 scheduleAllAlarmsForMedicine(medicine);
@@ -181,6 +269,8 @@ public class MedicineManager {
                     cancelAllAlarmsForMedicine(existingMedicine);
                 }
 
+                boolean quantityChanged = carryQuantityVersion(existingMedicine, medicine);
+
                 // Check if medicine with same name already exists
                 boolean exists = false;
                 for (int i = 0; i < medicines.size(); i++) {
@@ -198,6 +288,10 @@ public class MedicineManager {
                 }
 
                 saveMedicines();
+                onMedicineChanged(medicine);
+                if (quantityChanged) {
+                    notifyQuantityChanged(medicine);
+                }
 
                 // Schedule new alarms
                 scheduleAllAlarmsForMedicine(medicine);
@@ -216,6 +310,7 @@ public class MedicineManager {
                 cancelAllAlarmsForMedicine(medicine);
 
                 saveMedicines();
+                onMedicineRemoved(medicine);
                 Log.d(TAG, "Medicine removed and alarms cancelled: " + medicine.getName());
             }
         } catch (Exception e) {
@@ -231,8 +326,17 @@ public class MedicineManager {
                 cancelAllAlarmsForMedicine(oldMedicine);
 
                 // Update medicine
+                boolean quantityChanged = oldMedicine.getName().equals(newMedicine.getName())
+                        && carryQuantityVersion(oldMedicine, newMedicine);
                 medicines.set(index, newMedicine);
                 saveMedicines();
+                if (!oldMedicine.getName().equals(newMedicine.getName())) {
+                    onMedicineRemoved(oldMedicine);
+                }
+                onMedicineChanged(newMedicine);
+                if (quantityChanged) {
+                    notifyQuantityChanged(newMedicine);
+                }
 
                 // Schedule new alarms
                 scheduleAllAlarmsForMedicine(newMedicine);
@@ -258,12 +362,14 @@ public class MedicineManager {
                         cancelAlarm(medicineName, time);
 
                         saveMedicines();
+                        onMedicineChanged(medicine);
                         Log.d(TAG, "Alarm time removed: " + time + " for " + medicineName);
 
                         // If no more alarm times, remove the medicine entirely
                         if (alarmTimes.isEmpty()) {
                             medicines.remove(medicine);
                             saveMedicines();
+                            onMedicineRemoved(medicine);
                             Log.d(TAG, "Medicine removed (no more alarms): " + medicineName);
                         }
                         break;
@@ -285,6 +391,7 @@ public class MedicineManager {
                 if (medicine.getName().equals(medicineName)) {
                     medicine.addAlarmTime(time);
                     saveMedicines();
+                    onMedicineChanged(medicine);
 
                     // Schedule the new alarm
                     scheduleAlarm(medicineName, time, 1);
@@ -308,8 +415,13 @@ public class MedicineManager {
 
             for (Medicine medicine : medicines) {
                 if (medicine.getName().equals(medicineName)) {
+                    if (medicine.getQuantity() != newQuantity) {
+                        medicine.setQuantityVersion(medicine.getQuantityVersion() + 1);
+                    }
                     medicine.setQuantity(newQuantity);
                     saveMedicines();
+                    onMedicineChanged(medicine);
+                    notifyQuantityChanged(medicine);
                     Log.d(TAG, "Medicine quantity updated: " + medicineName + " -> " + newQuantity);
 
                     if (newQuantity == 0) {
@@ -336,7 +448,10 @@ public class MedicineManager {
                     if (currentQuantity > 0) {
                         int newQuantity = currentQuantity - 1;
                         medicine.setQuantity(newQuantity);
+                        medicine.setQuantityVersion(medicine.getQuantityVersion() + 1);
                         saveMedicines();
+                        onMedicineChanged(medicine);
+                        notifyQuantityChanged(medicine);
 
                         Log.d(TAG, "Medicine quantity decreased: " + medicineName + " from " + currentQuantity + " to " + newQuantity);
 
@@ -360,6 +475,57 @@ public class MedicineManager {
         }
     }
 
+    // Reconciles a quantity pushed by the dispenser (last writer wins). The higher version wins;
+    // on a tie with different counts the device wins, since it holds the physical stock.
+    public QuantitySync applyDeviceQuantity(String medicineName, int quantity, long version) {
+        try {
+            Medicine medicine = getMedicineByName(medicineName);
+            if (medicine == null) {
+                return QuantitySync.UNKNOWN_MEDICINE;
+            }
+
+            long localVersion = medicine.getQuantityVersion();
+            if (version < localVersion) {
+                return QuantitySync.LOCAL_NEWER;
+            }
+            if (version == localVersion && quantity == medicine.getQuantity()) {
+                return QuantitySync.IN_SYNC;
+            }
+
+            medicine.setQuantity(Math.max(0, quantity));
+            medicine.setQuantityVersion(version);
+            saveMedicines();
+            onMedicineChanged(medicine);
+            Log.d(TAG, "Device quantity applied: " + medicineName + " -> " + quantity + " (v" + version + ")");
+            return QuantitySync.APPLIED;
+        } catch (Exception e) {
+            Log.e(TAG, "Error applying device quantity: " + e.getMessage(), e);
+            return QuantitySync.IN_SYNC;
+        }
+    }
+
+    public void setQuantityListener(QuantityListener quantityListener) {
+        this.quantityListener = quantityListener;
+    }
+
+    // Keeps the stored version, bumped if the count differs from the saved one. Compared against
+    // the saved quantity rather than previous, which may be the very object that was edited.
+    private boolean carryQuantityVersion(Medicine previous, Medicine updated) {
+        if (previous == null) {
+            return false;
+        }
+        Integer saved = savedQuantities.get(previous.getName());
+        boolean changed = (saved != null ? saved : previous.getQuantity()) != updated.getQuantity();
+        updated.setQuantityVersion(previous.getQuantityVersion() + (changed ? 1 : 0));
+        return changed;
+    }
+
+    private void notifyQuantityChanged(Medicine medicine) {
+        if (quantityListener != null) {
+            quantityListener.onQuantityChanged(medicine);
+        }
+    }
+
     // ==================== GETTER METHODS ====================
 
     public Medicine getMedicineByName(String medicineName) {
@@ -390,6 +556,7 @@ public class MedicineManager {
                 cancelAllAlarmsForMedicine(medicine);
             }
 
+            onAllMedicinesRemoved();
             medicines.clear();
             saveMedicines();
             Log.d(TAG, "All medicines and alarms cleared");
@@ -470,10 +637,20 @@ public class MedicineManager {
 
     // ==================== LOG MANAGEMENT ====================
 
-    public void addLogEntry(MedicineLogEntry entry) {
+    public synchronized void addLogEntry(MedicineLogEntry entry) {
         try {
             if (entry != null) {
-                logEntries.add(0, entry); // Add to beginning for newest first
+                if (entry.getMedicineId() == 0) {
+                    entry.setMedicineId(getMedicineId(entry.getMedicineName()));
+                }
+                int position = doseLog.add(entry.getTimestamp(), entry.getMedicineId());
+                if (position == doseLog.size() - 1) {
+                    historyIndex.add(position, entry.getTimestamp(), entry.getMedicineId());
+                } else {
+                    // An older dose arrived late and shifted the newer ones
+                    rebuildHistoryIndex();
+                }
+                adherenceTracker.record(entry.getMedicineId(), entry.getTimestamp());
                 saveLogEntries();
                 Log.d(TAG, "Log entry added: " + entry.getMedicineName());
             }
@@ -482,13 +659,250 @@ public class MedicineManager {
         }
     }
 
+    public static class IngestResult {
+        private final int inserted;
+        private final int skipped;
+        private final boolean complete;
+
+        IngestResult(int inserted, int skipped, boolean complete) {
+            this.inserted = inserted;
+            this.skipped = skipped;
+            this.complete = complete;
+        }
+
+        public int getInserted() {
+            return inserted;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        // False when the batch failed part way; it may not be stored
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    // Adds a batch of entries (e.g. a device history dump) and saves once. Idempotent: an entry
+    // whose medicine and minute already exist, in the log or earlier in the batch, is skipped, as
+    // are entries without a valid timestamp and entries on days already folded into rollups.
+    public synchronized IngestResult ingestHistory(List<MedicineLogEntry> entries) {
+        int inserted = 0;
+        int skipped = 0;
+        boolean complete = false;
+        try {
+            List<MedicineLogEntry> batch = new ArrayList<>(entries);
+            Collections.sort(batch, (a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+
+            // Keys of existing entries, loaded only for the days the batch touches
+            Set<Long> seen = new HashSet<>();
+            Set<Long> loadedDays = new HashSet<>();
+            boolean outOfOrder = false;
+
+            for (MedicineLogEntry entry : batch) {
+                if (entry == null || entry.getTimestamp() <= 0) {
+                    skipped++;
+                    continue;
+                }
+
+                long day = DoseHistoryIndex.epochDay(entry.getTimestamp());
+                if (rollupDayCounts.containsKey(day)) {
+                    skipped++;
+                    continue;
+                }
+
+                if (loadedDays.add(day)) {
+                    IntList offsets = historyIndex.getOffsetsForDay(day);
+                    for (int i = 0; i < offsets.size(); i++) {
+                        seen.add(doseKey(doseLog.getMedicineId(offsets.get(i)), doseLog.getTimestamp(offsets.get(i))));
+                    }
+                }
+
+                if (entry.getMedicineId() == 0) {
+                    entry.setMedicineId(getMedicineId(entry.getMedicineName()));
+                }
+                if (!seen.add(doseKey(entry.getMedicineId(), entry.getTimestamp()))) {
+                    skipped++;
+                    continue;
+                }
+
+                int position = doseLog.add(entry.getTimestamp(), entry.getMedicineId());
+                if (position == doseLog.size() - 1 && !outOfOrder) {
+                    historyIndex.add(position, entry.getTimestamp(), entry.getMedicineId());
+                    adherenceTracker.record(entry.getMedicineId(), entry.getTimestamp());
+                } else {
+                    // Offsets and streaks are rebuilt once the batch is in
+                    outOfOrder = true;
+                }
+                inserted++;
+            }
+
+            if (outOfOrder) {
+                rebuildHistoryIndex();
+                adherenceTracker.rebuild(logRollups, doseLog.oldestFirst(this::getMedicineNameById));
+            }
+            // Callers may act on this result, for example move a history cursor, so it must mean on disk
+            complete = inserted == 0 || saveLogEntries(true);
+
+            Log.d(TAG, "History ingested: " + inserted + " inserted, " + skipped + " skipped");
+        } catch (Exception e) {
+            Log.e(TAG, "Error ingesting history: " + e.getMessage(), e);
+        }
+        return new IngestResult(inserted, skipped, complete);
+    }
+
+    // Newest first; materializes the whole log, so large histories should be read a page at a time
     public List<MedicineLogEntry> getMedicineLogEntries() {
-        return new ArrayList<>(logEntries);
+        return getMedicineLogEntries(0, Integer.MAX_VALUE);
     }
 
-    public void clearLogEntries() {
+    // Up to limit entries, newest first, skipping the offset newest. Only the page is materialized.
+    public synchronized List<MedicineLogEntry> getMedicineLogEntries(int offset, int limit) {
+        List<MedicineLogEntry> page = new ArrayList<>();
+        for (int i = doseLog.size() - 1 - Math.max(0, offset); i >= 0 && page.size() < limit; i--) {
+            page.add(doseLog.getEntry(i, this::getMedicineNameById));
+        }
+        return page;
+    }
+
+    public synchronized int getLogEntryCount() {
+        return doseLog.size();
+    }
+
+    // Entries with fromMillis <= timestamp <= toMillis, newest first
+    public synchronized List<MedicineLogEntry> getLogEntriesBetween(long fromMillis, long toMillis) {
+        List<MedicineLogEntry> result = new ArrayList<>();
         try {
-            logEntries.clear();
+            IntList offsets = historyIndex.getOffsetsForDays(fromMillis, toMillis);
+            for (int i = 0; i < offsets.size(); i++) {
+                MedicineLogEntry entry = doseLog.getEntry(offsets.get(i), this::getMedicineNameById);
+                // Only the first and last day can hold entries outside the range
+                if (entry.getTimestamp() >= fromMillis && entry.getTimestamp() <= toMillis) {
+                    result.add(entry);
+                }
+            }
+            sortNewestFirst(result);
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying log entries: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    // One medicine's history, newest first
+    public synchronized List<MedicineLogEntry> getLogEntriesForMedicine(String medicineName) {
+        List<MedicineLogEntry> result = new ArrayList<>();
+        try {
+            Integer medicineId = medicineIds.get(medicineName);
+            if (medicineId != null) {
+                IntList offsets = historyIndex.getOffsetsForMedicine(medicineId);
+                for (int i = offsets.size() - 1; i >= 0; i--) {
+                    result.add(doseLog.getEntry(offsets.get(i), this::getMedicineNameById));
+                }
+                sortNewestFirst(result);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying log entries for medicine: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    // One medicine's entries with fromMillis <= timestamp <= toMillis, newest first
+    public synchronized List<MedicineLogEntry> getLogEntriesForMedicine(String medicineName, long fromMillis, long toMillis) {
+        List<MedicineLogEntry> result = new ArrayList<>();
+        try {
+            Integer medicineId = medicineIds.get(medicineName);
+            if (medicineId != null) {
+                IntList offsets = historyIndex.getCandidateOffsets(medicineId, fromMillis, toMillis);
+                for (int i = 0; i < offsets.size(); i++) {
+                    MedicineLogEntry entry = doseLog.getEntry(offsets.get(i), this::getMedicineNameById);
+                    if (entry.getMedicineId() == medicineId
+                            && entry.getTimestamp() >= fromMillis && entry.getTimestamp() <= toMillis) {
+                        result.add(entry);
+                    }
+                }
+                sortNewestFirst(result);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying log entries for medicine: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    public synchronized int getDoseCountForMedicine(String medicineName) {
+        Integer medicineId = medicineIds.get(medicineName);
+        return medicineId != null ? historyIndex.getCountForMedicine(medicineId) : 0;
+    }
+
+    public synchronized List<MedicineLogEntry> getLogEntriesForDay(long millis) {
+        long start = startOfDay(millis);
+        return getLogEntriesBetween(start, startOfNextDay(start) - 1);
+    }
+
+    public List<MedicineLogEntry> getDosesToday() {
+        return getLogEntriesForDay(System.currentTimeMillis());
+    }
+
+    // Includes rolled-up days beyond the retention window
+    public synchronized int getDoseCountForDay(long millis) {
+        long day = DoseHistoryIndex.epochDay(millis);
+        Integer rolledUp = rollupDayCounts.get(day);
+        return historyIndex.getCountForDay(day) + (rolledUp != null ? rolledUp : 0);
+    }
+
+    // Dose counts keyed by epoch day (see DoseHistoryIndex.epochDay) for each day with entries
+    public synchronized Map<Long, Integer> getDoseCountsPerDay(long fromMillis, long toMillis) {
+        Map<Long, Integer> counts = historyIndex.getCountsPerDay(fromMillis, toMillis);
+        long fromDay = DoseHistoryIndex.epochDay(fromMillis);
+        long toDay = DoseHistoryIndex.epochDay(toMillis);
+        if (fromDay <= toDay) {
+            for (Map.Entry<Long, Integer> rolledUp : rollupDayCounts.subMap(fromDay, true, toDay, true).entrySet()) {
+                Integer count = counts.get(rolledUp.getKey());
+                counts.put(rolledUp.getKey(), rolledUp.getValue() + (count != null ? count : 0));
+            }
+        }
+        return counts;
+    }
+
+    private static long startOfDay(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    // Calendar arithmetic keeps 23 and 25 hour days around daylight saving changes correct
+    private static long startOfNextDay(long startOfDay) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(startOfDay);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void sortNewestFirst(List<MedicineLogEntry> entries) {
+        Collections.sort(entries, (a, b) -> Long.compare(b.getTimestamp(), a.getTimestamp()));
+    }
+
+    private void rebuildHistoryIndex() {
+        historyIndex.clear();
+        for (int i = 0; i < doseLog.size(); i++) {
+            historyIndex.add(i, doseLog.getTimestamp(i), doseLog.getMedicineId(i));
+        }
+    }
+
+    public synchronized void clearLogEntries() {
+        try {
+            doseLog.clear();
+            historyIndex.clear();
+            adherenceTracker.clearRecords();
+            logRollups.clear();
+            rollupDayCounts.clear();
+            saveLogRollups();
+            doseArchive.delete();
+            sharedPreferences.edit().remove(ARCHIVED_BEFORE_KEY).apply();
             saveLogEntries();
             Log.d(TAG, "All log entries cleared");
         } catch (Exception e) {
@@ -497,19 +911,24 @@ public class MedicineManager {
     }
 
     public void recordMedicineTaken(String medicineName) {
+        recordMedicineTaken(medicineName, true);
+    }
+
+    // countDown false only logs the dose, for when the device reports the new quantity itself
+    public void recordMedicineTaken(String medicineName, boolean countDown) {
         try {
-            SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
-            SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy", Locale.getDefault());
+            long now = System.currentTimeMillis();
 
-            Date now = new Date();
-            String time = timeFormat.format(now);
-            String date = dateFormat.format(now);
+            // Create log entry
+            MedicineLogEntry entry = new MedicineLogEntry(medicineName, getMedicineId(medicineName), now);
+            if (!countDown) {
+                addLogEntry(entry);
+                Log.d(TAG, "Medicine taken, quantity left to the device: " + medicineName);
+                return;
+            }
 
             // Decrease medicine quantity
             boolean quantityDecreased = decreaseMedicineQuantity(medicineName);
-
-            // Create log entry
-            MedicineLogEntry entry = new MedicineLogEntry(medicineName, time, date);
             addLogEntry(entry);
 
             if (quantityDecreased) {
@@ -522,6 +941,404 @@ public class MedicineManager {
         }
     }
 
+    // ==================== LOG RETENTION ====================
+
+    public int getLogRetentionDays() {
+        return sharedPreferences.getInt(LOG_RETENTION_DAYS_KEY, DEFAULT_LOG_RETENTION_DAYS);
+    }
+
+    public void setLogRetentionDays(int days) {
+        if (days > 0) {
+            sharedPreferences.edit().putInt(LOG_RETENTION_DAYS_KEY, days).apply();
+        }
+    }
+
+    // Rolled-up history, newest first; optionally limited to one medicine
+    public synchronized List<DailyDoseRollup> getLogRollups(String medicineName) {
+        List<DailyDoseRollup> result = new ArrayList<>();
+        for (int i = logRollups.size() - 1; i >= 0; i--) {
+            DailyDoseRollup rollup = logRollups.get(i);
+            if (medicineName == null || medicineName.equals(rollup.getMedicineName())) {
+                result.add(rollup);
+            }
+        }
+        return result;
+    }
+
+    // Folds raw entries older than the retention window into daily rollups and returns how many
+    // were folded. Called from LogCompactionJobService on a background thread; stops between
+    // batches when the thread is interrupted.
+    //
+    // Each batch is snapshotted under the lock, appended to the archive without it, and then
+    // trimmed from the log. The archive's high-water mark is saved before the trim, so entries
+    // below it that are still in the log after a failed save are folded, not archived again.
+    public int compactLogEntries() {
+        int folded = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                CompactionBatch batch = beginCompactionBatch();
+                if (batch == null) {
+                    break;
+                }
+                int batchFolded;
+                try {
+                    if (!batch.entries.isEmpty()) {
+                        doseArchive.append(batch.entries);
+                        sharedPreferences.edit().putLong(ARCHIVED_BEFORE_KEY, batch.archivedBefore).commit();
+                    }
+                    batchFolded = finishCompactionBatch(batch);
+                } finally {
+                    endCompactionBatch();
+                }
+                if (batchFolded == 0) {
+                    break;
+                }
+                folded += batchFolded;
+            }
+
+            if (folded > 0) {
+                Log.d(TAG, "Compacted " + folded + " log entries, archive size " + doseArchive.getSizeBytes() + " bytes");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error archiving log entries, compaction stopped: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.e(TAG, "Error compacting log entries: " + e.getMessage(), e);
+        }
+        return folded;
+    }
+
+    // Aged entries taken from the log for one compaction pass
+    private static class CompactionBatch {
+        final List<MedicineLogEntry> archived = new ArrayList<>(); // already below the mark
+        final List<MedicineLogEntry> entries = new ArrayList<>();  // to append to the archive
+        long archivedBefore;
+    }
+
+    // Null when nothing is older than the retention window
+    private synchronized CompactionBatch beginCompactionBatch() throws InterruptedException {
+        while (exportsInProgress > 0) {
+            wait(); // releases the lock, so the export can keep reading
+        }
+
+        Calendar cutoff = Calendar.getInstance();
+        cutoff.setTimeInMillis(startOfDay(System.currentTimeMillis()));
+        cutoff.add(Calendar.DAY_OF_MONTH, -getLogRetentionDays());
+
+        // The log is sorted, so aged entries are a prefix. Batches end on a minute boundary, the
+        // resolution of the log, so the mark splits the log cleanly.
+        int agedCount = doseLog.countBefore(cutoff.getTimeInMillis());
+        if (agedCount == 0) {
+            return null;
+        }
+        long archivedBefore = sharedPreferences.getLong(ARCHIVED_BEFORE_KEY, Long.MIN_VALUE);
+        int start = Math.min(agedCount, doseLog.countBefore(archivedBefore));
+        int end = Math.min(agedCount, start + COMPACTION_BATCH_SIZE);
+        if (end > start && end < agedCount) {
+            end = Math.min(agedCount, doseLog.countBefore(doseLog.getTimestamp(end - 1) + MILLIS_PER_MINUTE));
+        }
+
+        CompactionBatch batch = new CompactionBatch();
+        for (int i = 0; i < end; i++) {
+            MedicineLogEntry entry = doseLog.getEntry(i, this::getMedicineNameById);
+            (i < start ? batch.archived : batch.entries).add(entry);
+        }
+        batch.archivedBefore = end > start ? doseLog.getTimestamp(end - 1) + MILLIS_PER_MINUTE : archivedBefore;
+        compacting = true;
+        return batch;
+    }
+
+    // Folds the batch into rollups and drops it from the log. Entries added below the mark while
+    // the archive was written are not in the batch; they stay, and the mark moves back to them.
+    private int finishCompactionBatch(CompactionBatch batch) {
+        Map<Long, Integer> expected = new HashMap<>();
+        for (List<MedicineLogEntry> entries : Arrays.asList(batch.archived, batch.entries)) {
+            for (MedicineLogEntry entry : entries) {
+                long key = doseKey(entry.getMedicineId(), entry.getTimestamp());
+                Integer count = expected.get(key);
+                expected.put(key, count != null ? count + 1 : 1);
+            }
+        }
+
+        int folded = 0;
+        long archivedBefore;
+        String rollupsJson;
+        DoseLog trimmed;
+        List<String> names;
+        int logSavesAtTrim;
+        synchronized (this) {
+            Map<Long, DailyDoseRollup> rollupsByKey = new HashMap<>();
+            for (DailyDoseRollup rollup : logRollups) {
+                rollupsByKey.put(rollupKey(rollup.getEpochDay(), rollup.getMedicineId()), rollup);
+            }
+
+            int prefix = doseLog.countBefore(batch.archivedBefore);
+            List<MedicineLogEntry> added = new ArrayList<>();
+            for (int i = 0; i < prefix; i++) {
+                MedicineLogEntry entry = doseLog.getEntry(i, this::getMedicineNameById);
+                long key = doseKey(entry.getMedicineId(), entry.getTimestamp());
+                Integer count = expected.get(key);
+                if (count == null || count == 0) {
+                    added.add(entry);
+                    continue;
+                }
+                expected.put(key, count - 1);
+
+                long day = DoseHistoryIndex.epochDay(entry.getTimestamp());
+                DailyDoseRollup rollup = rollupsByKey.get(rollupKey(day, entry.getMedicineId()));
+                if (rollup == null) {
+                    rollup = new DailyDoseRollup(day, entry.getMedicineId(), entry.getMedicineName(), 0);
+                    rollupsByKey.put(rollupKey(day, entry.getMedicineId()), rollup);
+                    logRollups.add(rollup);
+                }
+                rollup.addCount(1);
+                folded++;
+            }
+
+            // Adherence counts are unchanged: the folded doses were already recorded
+            doseLog.dropOldest(prefix);
+            for (MedicineLogEntry entry : added) {
+                doseLog.add(entry.getTimestamp(), entry.getMedicineId());
+            }
+            rebuildHistoryIndex();
+            Collections.sort(logRollups, (a, b) -> Long.compare(a.getEpochDay(), b.getEpochDay()));
+            rebuildRollupDayCounts();
+
+            archivedBefore = added.isEmpty() ? batch.archivedBefore : added.get(0).getTimestamp();
+            rollupsJson = gson.toJson(logRollups);
+            trimmed = doseLog.copy();
+            names = new ArrayList<>(medicineNames);
+            logSavesAtTrim = logSaves;
+        }
+
+        // The log can be large, so it is serialized from the copy without the lock
+        Type type = new TypeToken<List<MedicineLogEntry>>(){}.getType();
+        String logJson = gson.toJson(trimmed.oldestFirst(
+                medicineId -> medicineId > 0 && medicineId <= names.size() ? names.get(medicineId - 1) : null), type);
+
+        // The rollups, the trimmed log and the mark are written in one edit. A save since the trim
+        // has already written a newer log.
+        synchronized (this) {
+            SharedPreferences.Editor editor = sharedPreferences.edit()
+                    .putString(LOG_ROLLUPS_KEY, rollupsJson)
+                    .putLong(ARCHIVED_BEFORE_KEY, archivedBefore);
+            if (logSaves == logSavesAtTrim) {
+                editor.putString(LOG_ENTRIES_KEY, logJson);
+            }
+            editor.apply();
+        }
+        return folded;
+    }
+
+    // Entries are stored at minute precision, so that is the identity of a dose
+    private static long doseKey(int medicineId, long timestamp) {
+        return ((long) medicineId << 32) | (Math.floorDiv(timestamp, 60000L) & 0xffffffffL);
+    }
+
+    private synchronized void endCompactionBatch() {
+        compacting = false;
+        notifyAll();
+    }
+
+    // Brackets an export of the archive followed by the live log. Waits out a compaction batch
+    // that has entries in both.
+    synchronized void beginExport() throws InterruptedException {
+        while (compacting) {
+            wait();
+        }
+        exportsInProgress++;
+    }
+
+    synchronized void endExport() {
+        exportsInProgress--;
+        notifyAll();
+    }
+
+    // One page of the live log in time order, for streaming readers such as HistoryExporter
+    synchronized int readLogChunk(long fromMillis, int skip, long[] timestamps, int[] medicineIds) {
+        return doseLog.read(fromMillis, skip, timestamps, medicineIds);
+    }
+
+    DoseArchive getDoseArchive() {
+        return doseArchive;
+    }
+
+    // Archived entries with fromMillis <= timestamp <= toMillis, newest first. Reads from disk,
+    // decoding only the archive segments that overlap the range; call off the main thread.
+    public List<MedicineLogEntry> getArchivedLogEntries(long fromMillis, long toMillis) {
+        List<MedicineLogEntry> result = new ArrayList<>();
+        try {
+            result = doseArchive.read(fromMillis, toMillis);
+            synchronized (this) {
+                for (MedicineLogEntry entry : result) {
+                    entry.setMedicineId(findMedicineId(entry.getMedicineName()));
+                }
+            }
+            sortNewestFirst(result);
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading dose archive: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    private static long rollupKey(long epochDay, int medicineId) {
+        return ((long) medicineId << 32) | (epochDay & 0xffffffffL);
+    }
+
+    private void rebuildRollupDayCounts() {
+        rollupDayCounts.clear();
+        for (DailyDoseRollup rollup : logRollups) {
+            Integer count = rollupDayCounts.get(rollup.getEpochDay());
+            rollupDayCounts.put(rollup.getEpochDay(), rollup.getCount() + (count != null ? count : 0));
+        }
+    }
+
+    // ==================== ADHERENCE ====================
+
+    // The tracker is only read through these, under the manager's lock.
+    // Days and weeks as in AdherenceTracker.epochDay/epochWeek.
+    public synchronized int getScheduledDosesPerDay(String medicineName) {
+        return adherenceTracker.getScheduledPerDay(findMedicineId(medicineName));
+    }
+
+    public synchronized int getScheduledDosesPerWeek(String medicineName) {
+        return adherenceTracker.getScheduledPerWeek(findMedicineId(medicineName));
+    }
+
+    public synchronized int getRecordedDosesForDay(String medicineName, long epochDay) {
+        return adherenceTracker.getRecordedForDay(findMedicineId(medicineName), epochDay);
+    }
+
+    public synchronized int getRecordedDosesForWeek(String medicineName, long epochWeek) {
+        return adherenceTracker.getRecordedForWeek(findMedicineId(medicineName), epochWeek);
+    }
+
+    public synchronized float getDailyAdherence(String medicineName, long epochDay) {
+        return adherenceTracker.getDailyAdherence(findMedicineId(medicineName), epochDay);
+    }
+
+    public synchronized float getWeeklyAdherence(String medicineName, long epochWeek) {
+        return adherenceTracker.getWeeklyAdherence(findMedicineId(medicineName), epochWeek);
+    }
+
+    public synchronized int getCurrentStreak(String medicineName, long today) {
+        return adherenceTracker.getCurrentStreak(findMedicineId(medicineName), today);
+    }
+
+    public synchronized int getBestStreak(String medicineName) {
+        return adherenceTracker.getBestStreak(findMedicineId(medicineName));
+    }
+
+    // Counts per bucket of AdherenceTracker.LATE_BUCKET_LIMITS, plus one for later doses
+    public synchronized int[] getLateDoseHistogram(String medicineName) {
+        return adherenceTracker.getLateDoseHistogram(findMedicineId(medicineName));
+    }
+
+    // Keeps derived statistics in step with a medicine whose quantity or alarm times changed
+    private synchronized void onMedicineChanged(Medicine medicine) {
+        adherenceTracker.setSchedule(getMedicineId(medicine.getName()), medicine.getAlarmTimes());
+        updateForecast(medicine);
+    }
+
+    private synchronized void onMedicineRemoved(Medicine medicine) {
+        int medicineId = findMedicineId(medicine.getName());
+        adherenceTracker.setSchedule(medicineId, null);
+        stockForecaster.remove(medicineId);
+    }
+
+    private synchronized void onAllMedicinesRemoved() {
+        adherenceTracker.clearSchedules();
+        for (Medicine medicine : medicines) {
+            stockForecaster.remove(findMedicineId(medicine.getName()));
+        }
+    }
+
+    // ==================== STOCK FORECAST ====================
+
+    // null until the medicine has been forecast
+    public synchronized StockForecaster.Forecast getForecast(String medicineName) {
+        Integer medicineId = medicineIds.get(medicineName);
+        return medicineId != null ? stockForecaster.getForecast(medicineId) : null;
+    }
+
+    // Pills per day: one per scheduled alarm, or the recent observed rate for unscheduled medicines
+    public synchronized double getDailyConsumption(Medicine medicine) {
+        int medicineId = findMedicineId(medicine.getName());
+        int scheduled = adherenceTracker.getScheduledPerDay(medicineId);
+        if (scheduled > 0) {
+            return scheduled;
+        }
+
+        long today = AdherenceTracker.epochDay(System.currentTimeMillis());
+        int recorded = 0;
+        for (int i = 0; i < OBSERVED_CONSUMPTION_DAYS; i++) {
+            recorded += adherenceTracker.getRecordedForDay(medicineId, today - i);
+        }
+        return recorded / (double) OBSERVED_CONSUMPTION_DAYS;
+    }
+
+    private synchronized void updateForecast(Medicine medicine) {
+        stockForecaster.update(getMedicineId(medicine.getName()), medicine.getQuantity(),
+                getDailyConsumption(medicine), System.currentTimeMillis());
+    }
+
+    // Without a consumption rate there is no run-out date, so the fixed threshold applies
+    public synchronized boolean isMedicineRunningLow(String medicineName) {
+        Integer medicineId = medicineIds.get(medicineName);
+        if (medicineId == null || stockForecaster.getRunOutAt(medicineId) == StockForecaster.NEVER) {
+            return isMedicineLowStock(medicineName, LOW_STOCK_QUANTITY);
+        }
+        return stockForecaster.isRunningOutWithin(medicineId, System.currentTimeMillis(), LOW_STOCK_DAYS);
+    }
+
+    // Soonest first, including medicines that are already out of stock
+    public synchronized List<Medicine> getMedicinesRunningOutWithin(int days) {
+        List<Medicine> result = new ArrayList<>();
+        try {
+            for (int medicineId : stockForecaster.getRunningOutWithin(System.currentTimeMillis(), days)) {
+                Medicine medicine = getMedicineByName(getMedicineNameById(medicineId));
+                if (medicine != null) {
+                    result.add(medicine);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting medicines running out: " + e.getMessage(), e);
+        }
+        return result;
+    }
+
+    // ==================== MEDICINE IDS ====================
+
+    // Returns the stable id for a medicine name, assigning a new one on first use
+    public synchronized int getMedicineId(String medicineName) {
+        if (medicineName == null) {
+            return 0;
+        }
+
+        Integer id = medicineIds.get(medicineName);
+        if (id == null) {
+            medicineNames.add(medicineName);
+            id = medicineNames.size();
+            medicineIds.put(medicineName, id);
+            saveMedicineIds();
+        }
+        return id;
+    }
+
+    // Lookup only: 0 for a name that has never been given an id
+    public synchronized int findMedicineId(String medicineName) {
+        Integer id = medicineName != null ? medicineIds.get(medicineName) : null;
+        return id != null ? id : 0;
+    }
+
+    public synchronized String getMedicineNameById(int medicineId) {
+        if (medicineId <= 0 || medicineId > medicineNames.size()) {
+            return null;
+        }
+        return medicineNames.get(medicineId - 1);
+    }
+
     // ==================== UTILITY METHODS ====================
 
     public boolean hasMedicine(String medicineName) {
@@ -573,11 +1390,12 @@ public class MedicineManager {
         return false;
     }
 
-    public List<Medicine> getOutOfStockMedicines() {
+    public synchronized List<Medicine> getOutOfStockMedicines() {
         List<Medicine> outOfStock = new ArrayList<>();
         try {
-            for (Medicine medicine : medicines) {
-                if (medicine.getQuantity() <= 0) {
+            for (int medicineId : stockForecaster.getOutOfStock()) {
+                Medicine medicine = getMedicineByName(getMedicineNameById(medicineId));
+                if (medicine != null) {
                     outOfStock.add(medicine);
                 }
             }
@@ -593,11 +1411,19 @@ public class MedicineManager {
         try {
             String json = gson.toJson(medicines);
             sharedPreferences.edit().putString(MEDICINES_KEY, json).apply();
+            rememberSavedQuantities();
         } catch (Exception e) {
             Log.e(TAG, "Error saving medicines: " + e.getMessage(), e);
         }
     }
 
+    private void rememberSavedQuantities() {
+        savedQuantities.clear();
+        for (Medicine medicine : medicines) {
+            savedQuantities.put(medicine.getName(), medicine.getQuantity());
+        }
+    }
+
     private void loadMedicines() {
         try {
             String json = sharedPreferences.getString(MEDICINES_KEY, "");
@@ -606,6 +1432,7 @@ public class MedicineManager {
                 List<Medicine> loadedMedicines = gson.fromJson(json, type);
                 if (loadedMedicines != null) {
                     medicines = loadedMedicines;
+                    rememberSavedQuantities();
 
                     // Reschedule all alarms after loading medicines
                     for (Medicine medicine : medicines) {
@@ -620,12 +1447,26 @@ public class MedicineManager {
         }
     }
 
-    private void saveLogEntries() {
+    private boolean saveLogEntries() {
+        return saveLogEntries(false);
+    }
+
+    // A durable save blocks until the log is on disk and reports whether the write succeeded;
+    // otherwise it is queued and only a serialization failure is reported
+    private boolean saveLogEntries(boolean durable) {
         try {
-            String json = gson.toJson(logEntries);
-            sharedPreferences.edit().putString(LOG_ENTRIES_KEY, json).apply();
+            logSaves++;
+            Type type = new TypeToken<List<MedicineLogEntry>>(){}.getType();
+            String json = gson.toJson(doseLog.oldestFirst(this::getMedicineNameById), type);
+            SharedPreferences.Editor editor = sharedPreferences.edit().putString(LOG_ENTRIES_KEY, json);
+            if (durable) {
+                return editor.commit();
+            }
+            editor.apply();
+            return true;
         } catch (Exception e) {
             Log.e(TAG, "Error saving log entries: " + e.getMessage(), e);
+            return false;
         }
     }
 
@@ -636,12 +1477,102 @@ public class MedicineManager {
                 Type type = new TypeToken<List<MedicineLogEntry>>(){}.getType();
                 List<MedicineLogEntry> loadedEntries = gson.fromJson(json, type);
                 if (loadedEntries != null) {
-                    logEntries = loadedEntries;
+                    // Entries persisted before ids existed are upgraded and written back once
+                    boolean upgraded = !json.contains("\"timestamp\"");
+
+                    // A legacy date that no longer parses would otherwise land on 1 January 1970
+                    int unparseable = 0;
+                    for (Iterator<MedicineLogEntry> it = loadedEntries.iterator(); it.hasNext(); ) {
+                        if (it.next().getTimestamp() <= 0) {
+                            it.remove();
+                            unparseable++;
+                        }
+                    }
+                    if (unparseable > 0) {
+                        Log.w(TAG, "Dropped " + unparseable + " log entries with unreadable dates");
+                        upgraded = true;
+                    }
+                    for (MedicineLogEntry entry : loadedEntries) {
+                        if (entry.getMedicineId() == 0) {
+                            entry.setMedicineId(getMedicineId(entry.getMedicineName()));
+                            upgraded = true;
+                        }
+                    }
+
+                    // Oldest first, compared numerically
+                    Collections.sort(loadedEntries, (a, b) -> Long.compare(a.getTimestamp(), b.getTimestamp()));
+                    doseLog.clear();
+                    for (MedicineLogEntry entry : loadedEntries) {
+                        doseLog.add(entry.getTimestamp(), entry.getMedicineId());
+                    }
+                    rebuildHistoryIndex();
+
+                    if (upgraded) {
+                        saveLogEntries();
+                        Log.d(TAG, "Log entries upgraded to epoch timestamps");
+                    }
                 }
             }
         } catch (Exception e) {
             Log.e(TAG, "Error loading log entries: " + e.getMessage(), e);
-            logEntries = new ArrayList<>();
+            doseLog.clear();
+            historyIndex.clear();
+        }
+    }
+
+    private void saveMedicineIds() {
+        try {
+            String json = gson.toJson(medicineNames);
+            sharedPreferences.edit().putString(MEDICINE_NAMES_KEY, json).apply();
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving medicine ids: " + e.getMessage(), e);
+        }
+    }
+
+    private void loadMedicineIds() {
+        try {
+            String json = sharedPreferences.getString(MEDICINE_NAMES_KEY, "");
+            if (!json.isEmpty()) {
+                Type type = new TypeToken<List<String>>(){}.getType();
+                List<String> loadedNames = gson.fromJson(json, type);
+                if (loadedNames != null) {
+                    medicineNames = loadedNames;
+                    for (int i = 0; i < medicineNames.size(); i++) {
+                        medicineIds.put(medicineNames.get(i), i + 1);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading medicine ids: " + e.getMessage(), e);
+            medicineNames = new ArrayList<>();
+            medicineIds = new HashMap<>();
+        }
+    }
+
+    private void saveLogRollups() {
+        try {
+            String json = gson.toJson(logRollups);
+            sharedPreferences.edit().putString(LOG_ROLLUPS_KEY, json).apply();
+        } catch (Exception e) {
+            Log.e(TAG, "Error saving log rollups: " + e.getMessage(), e);
+        }
+    }
+
+    private void loadLogRollups() {
+        try {
+            String json = sharedPreferences.getString(LOG_ROLLUPS_KEY, "");
+            if (!json.isEmpty()) {
+                Type type = new TypeToken<List<DailyDoseRollup>>(){}.getType();
+                List<DailyDoseRollup> loadedRollups = gson.fromJson(json, type);
+                if (loadedRollups != null) {
+                    logRollups = loadedRollups;
+                    rebuildRollupDayCounts();
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error loading log rollups: " + e.getMessage(), e);
+            logRollups = new ArrayList<>();
+            rollupDayCounts.clear();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,304 @@
+package com.smartmedicine.dispenser;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Single writer for the dispenser link. Lines wait in a queue ordered by priority class, then
+// submission order, and are written one at a time, so a dispense overtakes everything still
+// queued below it. A line already being written is never cut off.
+//
+// Firmware that advertises CREDITS gets credit-based flow control: each line costs one credit and
+// the writer holds back while none are left. Without it every line is written straight away.
+public class OutboundScheduler {
+    private static final String TAG = "OutboundScheduler";
+
+    // No credit for this long is taken as a lost CREDIT frame; one line is let through as a probe
+    static final long CREDIT_STALL_MS = 5000;
+
+    // The stall deadline is measured on the clock, re-read at least this often while waiting
+    private static final long CREDIT_CHECK_MS = 250;
+
+    public enum Priority {
+        CRITICAL,  // dispense commands
+        USER,      // requests someone is waiting on: handshake, STATUS, HISTORY, SET_QTY
+        BULK,      // alarm sync
+        KEEP_ALIVE
+    }
+
+    // Writes one line to the link; false if the link is no longer open
+    interface LineWriter {
+        boolean write(String line) throws IOException;
+    }
+
+    interface FailureListener {
+        void onWriteFailed(IOException e);
+    }
+
+    // A queued line; await() blocks until it has been written or dropped
+    static class Pending implements Comparable<Pending> {
+        private final String line;
+        private final Priority priority;
+        private final long sequence;
+        private final long enqueuedAt;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean written;
+
+        Pending(String line, Priority priority, long sequence, long enqueuedAt) {
+            this.line = line;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+        boolean await(long timeoutMs) throws InterruptedException {
+            return done.await(timeoutMs, TimeUnit.MILLISECONDS) && written;
+        }
+
+        private void complete(boolean written) {
+            this.written = written;
+            done.countDown();
+        }
+
+        @Override
+        public int compareTo(Pending other) {
+            int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final Clock clock;
+
+    // Per class: lines written, total and worst enqueue-to-written time
+    private final long[] sentCount = new long[Priority.values().length];
+    private final long[] totalLatencyMs = new long[Priority.values().length];
+    private final long[] maxLatencyMs = new long[Priority.values().length];
+
+    // -1 until the device advertises a window; guarded by creditLock
+    private final Object creditLock = new Object();
+    private int credits = -1;
+    private long creditWaitMs;
+    private int creditStalls;
+
+    // Replaced on every start, so a writer left over from an old link never sees new lines
+    private PriorityBlockingQueue<Pending> queue;
+    private Thread writerThread;
+    private long nextSequence;
+
+    OutboundScheduler(Clock clock) {
+        this.clock = clock;
+    }
+
+    public static Priority classify(String line) {
+        if (line.startsWith("DISPENSE")) {
+            return Priority.CRITICAL;
+        }
+        if (line.equals("PING")) {
+            return Priority.KEEP_ALIVE;
+        }
+        if (line.startsWith("SET_ALARM") || line.startsWith("SYNC_") || line.startsWith("EXPECT_ALARMS")
+                || line.equals("CLEAR_ALARMS")) {
+            return Priority.BULK;
+        }
+        return Priority.USER;
+    }
+
+    synchronized void start(LineWriter writer, FailureListener failureListener) {
+        stop();
+
+        synchronized (creditLock) {
+            credits = -1;
+            creditLock.notifyAll();
+        }
+
+        PriorityBlockingQueue<Pending> lines = new PriorityBlockingQueue<>();
+        queue = lines;
+        writerThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                Pending pending = null;
+                try {
+                    // Credit is only waited for while a line is ready to go, so an idle link
+                    // neither stalls nor probes
+                    pending = lines.take();
+                    if (awaitCredit()) {
+                        // A line queued during the wait may outrank this one
+                        lines.add(pending);
+                        pending = lines.take();
+                    }
+                } catch (InterruptedException e) {
+                    if (pending != null) {
+                        pending.complete(false);
+                    }
+                    break;
+                }
+                consumeCredit();
+
+                try {
+                    // Log outgoing data
+                    Log.d(TAG, "Sending: " + pending.line);
+                    if (writer.write(pending.line)) {
+                        record(pending);
+                        pending.complete(true);
+                    } else {
+                        pending.complete(false);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error sending data: " + e.getMessage(), e);
+                    pending.complete(false);
+                    failureListener.onWriteFailed(e);
+                    break;
+                }
+            }
+            Log.d(TAG, "Writer thread stopped");
+        });
+        writerThread.start();
+    }
+
+    // Stops the writer and drops whatever is still queued
+    synchronized void stop() {
+        if (writerThread != null) {
+            writerThread.interrupt();
+            writerThread = null;
+        }
+        if (queue != null) {
+            List<Pending> dropped = new ArrayList<>();
+            queue.drainTo(dropped);
+            for (Pending pending : dropped) {
+                pending.complete(false);
+            }
+            if (!dropped.isEmpty()) {
+                Log.w(TAG, "Dropped " + dropped.size() + " unsent lines");
+            }
+            queue = null;
+        }
+    }
+
+    // null when no link is being written to
+    synchronized Pending submit(String line, Priority priority) {
+        if (queue == null) {
+            return null;
+        }
+        Pending pending = new Pending(line, priority, nextSequence++, clock.elapsedRealtime());
+        queue.add(pending);
+        return pending;
+    }
+
+    // ==================== FLOW CONTROL ====================
+
+    // The device's full window, e.g. after CONNECT or a buffer reset
+    public void setCredits(int window) {
+        synchronized (creditLock) {
+            if (credits < 0) {
+                Log.d(TAG, "Flow control on, window " + window);
+            }
+            credits = window;
+            creditLock.notifyAll();
+        }
+    }
+
+    public void addCredits(int granted) {
+        synchronized (creditLock) {
+            if (credits >= 0) {
+                credits += granted;
+                creditLock.notifyAll();
+            }
+        }
+    }
+
+    public boolean isFlowControlled() {
+        synchronized (creditLock) {
+            return credits >= 0;
+        }
+    }
+
+    // Returns whether it had to wait
+    private boolean awaitCredit() throws InterruptedException {
+        synchronized (creditLock) {
+            if (credits != 0) {
+                return false;
+            }
+            long started = clock.elapsedRealtime();
+            long waited = 0;
+            while (credits == 0) {
+                if (waited >= CREDIT_STALL_MS) {
+                    Log.w(TAG, "No credit for " + waited + " ms, sending one line as a probe");
+                    creditStalls++;
+                    break;
+                }
+                creditLock.wait(Math.min(CREDIT_STALL_MS - waited, CREDIT_CHECK_MS));
+                waited = clock.elapsedRealtime() - started;
+            }
+            creditWaitMs += waited;
+            return true;
+        }
+    }
+
+    private void consumeCredit() {
+        synchronized (creditLock) {
+            if (credits > 0) {
+                credits--;
+            }
+        }
+    }
+
+    // ==================== METRICS ====================
+
+    private synchronized void record(Pending pending) {
+        int index = pending.priority.ordinal();
+        long latency = clock.elapsedRealtime() - pending.enqueuedAt;
+        sentCount[index]++;
+        totalLatencyMs[index] += latency;
+        maxLatencyMs[index] = Math.max(maxLatencyMs[index], latency);
+    }
+
+    public synchronized long getSentCount(Priority priority) {
+        return sentCount[priority.ordinal()];
+    }
+
+    // Enqueue to written, -1 before the first line of the class
+    public synchronized long getAverageLatencyMs(Priority priority) {
+        int index = priority.ordinal();
+        return sentCount[index] > 0 ? totalLatencyMs[index] / sentCount[index] : -1;
+    }
+
+    public synchronized long getMaxLatencyMs(Priority priority) {
+        return maxLatencyMs[priority.ordinal()];
+    }
+
+    public synchronized int getQueuedCount() {
+        return queue != null ? queue.size() : 0;
+    }
+
+    // Total time the writer held lines back for lack of credit
+    public long getCreditWaitMs() {
+        synchronized (creditLock) {
+            return creditWaitMs;
+        }
+    }
+
+    public int getCreditStalls() {
+        synchronized (creditLock) {
+            return creditStalls;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("OutboundScheduler{");
+        for (Priority priority : Priority.values()) {
+            int index = priority.ordinal();
+            if (index > 0) {
+                builder.append(", ");
+            }
+            builder.append(priority).append('=').append(sentCount[index])
+                    .append('/').append(getAverageLatencyMs(priority)).append("ms")
+                    .append('/').append(maxLatencyMs[index]).append("ms");
+        }
+        return builder.append('}').toString();
+    }
+}
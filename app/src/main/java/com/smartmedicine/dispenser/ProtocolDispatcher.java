@@ -0,0 +1,260 @@
+package com.smartmedicine.dispenser;
+
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Splits the dispenser's byte stream into newline-terminated frames and routes each one by
+// opcode (the text before the first ':') through a handler table. Fields are sliced as offsets
+// into the reused frame buffer; strings are only created when a handler asks for one.
+// Not thread safe: feed it from the single read thread.
+public class ProtocolDispatcher {
+    private static final String TAG = "ProtocolDispatcher";
+
+    private static final int MAX_FRAME_LENGTH = 512; // longer lines are dropped
+    private static final byte SEPARATOR = ':';
+
+    public interface FrameHandler {
+        // The frame is only valid during the call; copy out what is needed
+        void onFrame(Frame frame);
+    }
+
+    // One received line, split on ':' into fields; field 0 is the opcode
+    public static class Frame {
+        private byte[] data = new byte[64];
+        private int length;
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private int fieldCount;
+
+        public int getFieldCount() {
+            return fieldCount;
+        }
+
+        public String getString(int index) {
+            if (index >= fieldCount) {
+                return null;
+            }
+            return new String(data, starts[index], ends[index] - starts[index], StandardCharsets.UTF_8);
+        }
+
+        // The field and everything after it, separators included
+        public String getStringFrom(int index) {
+            if (index >= fieldCount) {
+                return null;
+            }
+            return new String(data, starts[index], length - starts[index], StandardCharsets.UTF_8);
+        }
+
+        // Fields joined back together, e.g. getStringBetween(2, 3) for an "HH:mm" time
+        public String getStringBetween(int firstIndex, int lastIndex) {
+            if (lastIndex >= fieldCount || firstIndex > lastIndex) {
+                return null;
+            }
+            return new String(data, starts[firstIndex], ends[lastIndex] - starts[firstIndex], StandardCharsets.UTF_8);
+        }
+
+        public boolean isNumber(int index) {
+            if (index >= fieldCount || starts[index] == ends[index]) {
+                return false;
+            }
+            for (int i = starts[index]; i < ends[index]; i++) {
+                if (data[i] < '0' || data[i] > '9') {
+                    return false;
+                }
+            }
+            return ends[index] - starts[index] <= 18;
+        }
+
+        // Parses a non-negative decimal field in place
+        public long getLong(int index, long fallback) {
+            if (!isNumber(index)) {
+                return fallback;
+            }
+            long value = 0;
+            for (int i = starts[index]; i < ends[index]; i++) {
+                value = value * 10 + (data[i] - '0');
+            }
+            return value;
+        }
+
+        public int getInt(int index, int fallback) {
+            long value = getLong(index, -1);
+            return value >= 0 && value <= Integer.MAX_VALUE ? (int) value : fallback;
+        }
+
+        public boolean fieldEquals(int index, byte[] value) {
+            if (index >= fieldCount || ends[index] - starts[index] != value.length) {
+                return false;
+            }
+            for (int i = 0; i < value.length; i++) {
+                if (data[starts[index] + i] != value[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return new String(data, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private void append(byte b) {
+            if (length == data.length) {
+                byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+            data[length++] = b;
+        }
+
+        // Trims surrounding whitespace and records the field boundaries
+        private boolean split() {
+            int start = 0;
+            int end = length;
+            while (start < end && data[start] <= ' ') {
+                start++;
+            }
+            while (end > start && data[end - 1] <= ' ') {
+                end--;
+            }
+            if (start == end) {
+                return false;
+            }
+
+            if (start > 0) {
+                System.arraycopy(data, start, data, 0, end - start);
+            }
+            length = end - start;
+
+            fieldCount = 0;
+            int fieldStart = 0;
+            for (int i = 0; i <= length; i++) {
+                if (i == length || data[i] == SEPARATOR) {
+                    if (fieldCount == starts.length) {
+                        int[] grownStarts = new int[starts.length * 2];
+                        int[] grownEnds = new int[ends.length * 2];
+                        System.arraycopy(starts, 0, grownStarts, 0, fieldCount);
+                        System.arraycopy(ends, 0, grownEnds, 0, fieldCount);
+                        starts = grownStarts;
+                        ends = grownEnds;
+                    }
+                    starts[fieldCount] = fieldStart;
+                    ends[fieldCount] = i;
+                    fieldCount++;
+                    fieldStart = i + 1;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Frame frame = new Frame();
+    private byte[][] opcodes = new byte[16][];
+    private FrameHandler[] handlers = new FrameHandler[16];
+    private int handlerCount;
+    private FrameHandler fallbackHandler;
+    private FrameHandler frameObserver;
+    private boolean discarding; // current line exceeded MAX_FRAME_LENGTH
+
+    private long framesDispatched;
+    private long framesDropped;
+
+    // ==================== HANDLER TABLE ====================
+
+    public void register(String opcode, FrameHandler handler) {
+        byte[] key = opcode.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < handlerCount; i++) {
+            if (Arrays.equals(opcodes[i], key)) {
+                handlers[i] = handler;
+                return;
+            }
+        }
+        if (handlerCount == opcodes.length) {
+            byte[][] grownOpcodes = new byte[opcodes.length * 2][];
+            FrameHandler[] grownHandlers = new FrameHandler[handlers.length * 2];
+            System.arraycopy(opcodes, 0, grownOpcodes, 0, handlerCount);
+            System.arraycopy(handlers, 0, grownHandlers, 0, handlerCount);
+            opcodes = grownOpcodes;
+            handlers = grownHandlers;
+        }
+        opcodes[handlerCount] = key;
+        handlers[handlerCount] = handler;
+        handlerCount++;
+    }
+
+    // Called for frames whose opcode has no handler
+    public void setFallbackHandler(FrameHandler fallbackHandler) {
+        this.fallbackHandler = fallbackHandler;
+    }
+
+    // Sees every frame before its handler, e.g. for a connection log
+    public void setFrameObserver(FrameHandler frameObserver) {
+        this.frameObserver = frameObserver;
+    }
+
+    // ==================== FRAMING ====================
+
+    public void onBytes(byte[] buffer, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            byte b = buffer[i];
+            if (b == '\n') {
+                if (!discarding) {
+                    dispatch();
+                }
+                frame.length = 0;
+                discarding = false;
+            } else if (!discarding) {
+                if (frame.length == MAX_FRAME_LENGTH) {
+                    Log.w(TAG, "Dropping frame longer than " + MAX_FRAME_LENGTH + " bytes");
+                    framesDropped++;
+                    discarding = true;
+                } else {
+                    frame.append(b);
+                }
+            }
+        }
+    }
+
+    // Discards a partially received frame, e.g. after the link drops
+    public void reset() {
+        frame.length = 0;
+        discarding = false;
+    }
+
+    public long getFramesDispatched() {
+        return framesDispatched;
+    }
+
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    private void dispatch() {
+        if (!frame.split()) {
+            return;
+        }
+
+        FrameHandler handler = fallbackHandler;
+        for (int i = 0; i < handlerCount; i++) {
+            if (frame.fieldEquals(0, opcodes[i])) {
+                handler = handlers[i];
+                break;
+            }
+        }
+
+        try {
+            if (frameObserver != null) {
+                frameObserver.onFrame(frame);
+            }
+            if (handler != null) {
+                handler.onFrame(frame);
+            }
+            framesDispatched++;
+        } catch (Exception e) {
+            Log.e(TAG, "Error handling frame " + frame + ": " + e.getMessage(), e);
+        }
+    }
+}
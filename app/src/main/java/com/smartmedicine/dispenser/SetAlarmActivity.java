@@ -24,7 +24,9 @@ import androidx.cardview.widget.CardView;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SetAlarmActivity extends AppCompatActivity {
 
@@ -40,6 +42,14 @@ public class SetAlarmActivity extends AppCompatActivity {
     private LinearLayout alarmsContainer;
     private MedicineManager medicineManager;
 
+    // Alarm list state, updated in place instead of rebuilding the whole section
+    private final Map<String, MedicineCard> medicineCards = new LinkedHashMap<>();
+    private TextView summaryText;
+    private TextView emptyText;
+    private Button clearAllButton;
+    private int totalMedicines;
+    private int totalAlarms;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -161,14 +171,16 @@ public class SetAlarmActivity extends AppCompatActivity {
                 // Add new alarm time to existing medicine
                 existingMedicine.addAlarmTime(timeString24);
 
-                // Update quantity if different
+                // Update quantity if different; this bumps its version and tells the dispenser
                 if (existingMedicine.getQuantity() != quantity) {
-                    existingMedicine.setQuantity(quantity);
+                    medicineManager.updateMedicineQuantity(name, quantity);
                 }
 
                 // Save the updated medicine (this will schedule the new alarm)
                 medicineManager.saveMedicine(existingMedicine);
 
+                updateMedicineCard(existingMedicine);
+
                 Log.d(TAG, "Added alarm time to existing medicine. Total alarms: " + existingMedicine.getAlarmTimes().size());
                 Toast.makeText(this, "Added alarm for " + name + " at " + timeString12 +
                         "\nTotal alarms: " + existingMedicine.getAlarmTimes().size(), Toast.LENGTH_LONG).show();
@@ -181,13 +193,12 @@ public class SetAlarmActivity extends AppCompatActivity {
                 // Add the new medicine (this will schedule the alarm)
                 medicineManager.addMedicine(newMedicine);
 
+                insertMedicineCard(newMedicine);
+
                 Log.d(TAG, "Created new medicine with first alarm");
                 Toast.makeText(this, "Created " + name + " with alarm at " + timeString12, Toast.LENGTH_LONG).show();
             }
 
-            // Update display
-            updateAlarmsList();
-
             // Reset only time fields, keep medicine name and quantity for easy multiple alarm entry
             hourSpinner.setSelection(0);
             minuteSpinner.setSelection(0);
@@ -256,8 +267,12 @@ public class SetAlarmActivity extends AppCompatActivity {
             // Remove the alarm time from the medicine
             medicineManager.removeAlarmTime(medicineName, time24);
 
-            // Update UI
-            updateAlarmsList();
+            // Update UI - the medicine itself is dropped once its last alarm is gone
+            if (medicineManager.hasMedicine(medicineName)) {
+                removeAlarmRow(medicineName, time24);
+            } else {
+                removeMedicineCard(medicineName);
+            }
 
             // Convert back to 12-hour format for display
             String time12 = convertTo12Hour(time24);
@@ -299,7 +314,7 @@ public class SetAlarmActivity extends AppCompatActivity {
                         medicineManager.clearAllMedicines();
 
                         // Update UI
-                        updateAlarmsList();
+                        removeAllMedicineCards();
 
                         Toast.makeText(this, "All alarms cleared", Toast.LENGTH_SHORT).show();
                     })
@@ -313,9 +328,10 @@ public class SetAlarmActivity extends AppCompatActivity {
     private void updateAlarmsList() {
         try {
             alarmsContainer.removeAllViews();
+            medicineCards.clear();
             List<Medicine> medicines = medicineManager.getAllMedicines();
 
-            Log.d(TAG, "Updating alarms list with " + medicines.size() + " medicines");
+            Log.d(TAG, "Building alarms list with " + medicines.size() + " medicines");
 
             // Create header with title and clear all button
             LinearLayout headerLayout = new LinearLayout(this);
@@ -338,55 +354,158 @@ public class SetAlarmActivity extends AppCompatActivity {
 
             headerLayout.addView(titleText);
 
-            // Only add Clear All button if there are alarms
-            if (!medicines.isEmpty()) {
-                Button clearAllButton = new Button(this);
-                clearAllButton.setText("Clear All");
-                clearAllButton.setBackgroundResource(R.drawable.button_danger_bg);
-                clearAllButton.setTextColor(getResources().getColor(android.R.color.white));
-                clearAllButton.setOnClickListener(v -> clearAllAlarms());
-                headerLayout.addView(clearAllButton);
-            }
+            // Clear All button is only visible while there are alarms
+            clearAllButton = new Button(this);
+            clearAllButton.setText("Clear All");
+            clearAllButton.setBackgroundResource(R.drawable.button_danger_bg);
+            clearAllButton.setTextColor(getResources().getColor(android.R.color.white));
+            clearAllButton.setOnClickListener(v -> clearAllAlarms());
+            headerLayout.addView(clearAllButton);
 
             alarmsContainer.addView(headerLayout);
 
-            if (medicines.isEmpty()) {
-                TextView emptyText = new TextView(this);
-                emptyText.setText("No alarms set yet\n\nEnter medicine details above and click 'Set Alarm' to create your first alarm.");
-                emptyText.setGravity(View.TEXT_ALIGNMENT_CENTER);
-                emptyText.setPadding(32, 32, 32, 32);
-                emptyText.setTextColor(getResources().getColor(android.R.color.darker_gray));
-                alarmsContainer.addView(emptyText);
-            } else {
-                // Count total alarms
-                int totalAlarms = 0;
-                for (Medicine medicine : medicines) {
-                    totalAlarms += medicine.getAlarmTimes().size();
-                }
+            emptyText = new TextView(this);
+            emptyText.setText("No alarms set yet\n\nEnter medicine details above and click 'Set Alarm' to create your first alarm.");
+            emptyText.setGravity(View.TEXT_ALIGNMENT_CENTER);
+            emptyText.setPadding(32, 32, 32, 32);
+            emptyText.setTextColor(getResources().getColor(android.R.color.darker_gray));
+            alarmsContainer.addView(emptyText);
+
+            // Add summary
+            summaryText = new TextView(this);
+            summaryText.setTextSize(14);
+            summaryText.setTextColor(getResources().getColor(R.color.text_secondary));
+            summaryText.setPadding(0, 0, 0, 16);
+            alarmsContainer.addView(summaryText);
+
+            // Counters are computed once here and maintained by the incremental operations below
+            totalMedicines = 0;
+            totalAlarms = 0;
+
+            // Add medicine cards
+            for (Medicine medicine : medicines) {
+                insertMedicineCard(medicine);
+            }
+
+            updateSummary();
+        } catch (Exception e) {
+            Log.e(TAG, "Error updating alarms list: " + e.getMessage(), e);
+        }
+    }
+
+    // ==================== INCREMENTAL LIST OPERATIONS ====================
+
+    private void updateSummary() {
+        boolean empty = totalMedicines == 0;
+        emptyText.setVisibility(empty ? View.VISIBLE : View.GONE);
+        summaryText.setVisibility(empty ? View.GONE : View.VISIBLE);
+        clearAllButton.setVisibility(empty ? View.GONE : View.VISIBLE);
+        summaryText.setText("Total: " + totalMedicines + " medicine(s) with " + totalAlarms + " alarm(s)");
+    }
+
+    private void insertMedicineCard(Medicine medicine) {
+        try {
+            if (medicineCards.containsKey(medicine.getName())) {
+                updateMedicineCard(medicine);
+                return;
+            }
+
+            MedicineCard card = createMedicineAlarmCard(medicine);
+            medicineCards.put(medicine.getName(), card);
+            alarmsContainer.addView(card.cardView);
+
+            totalMedicines++;
+            totalAlarms += card.timeRows.size();
+            updateSummary();
+
+            Log.d(TAG, "Added card for: " + medicine.getName() +
+                    " with " + medicine.getAlarmTimes().size() + " alarms");
+        } catch (Exception e) {
+            Log.e(TAG, "Error inserting medicine card: " + e.getMessage(), e);
+        }
+    }
+
+    private void removeMedicineCard(String medicineName) {
+        try {
+            MedicineCard card = medicineCards.remove(medicineName);
+            if (card != null) {
+                alarmsContainer.removeView(card.cardView);
+                totalMedicines--;
+                totalAlarms -= card.timeRows.size();
+                updateSummary();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error removing medicine card: " + e.getMessage(), e);
+        }
+    }
+
+    private void removeAllMedicineCards() {
+        for (MedicineCard card : medicineCards.values()) {
+            alarmsContainer.removeView(card.cardView);
+        }
+        medicineCards.clear();
+        totalMedicines = 0;
+        totalAlarms = 0;
+        updateSummary();
+    }
+
+    // Brings an existing card in line with the medicine: header text plus any added or removed times
+    private void updateMedicineCard(Medicine medicine) {
+        try {
+            MedicineCard card = medicineCards.get(medicine.getName());
+            if (card == null) {
+                insertMedicineCard(medicine);
+                return;
+            }
+
+            card.medicine = medicine;
+            card.headerText.setText(formatCardHeader(medicine));
 
-                // Add summary
-                TextView summaryText = new TextView(this);
-                summaryText.setText("Total: " + medicines.size() + " medicine(s) with " + totalAlarms + " alarm(s)");
-                summaryText.setTextSize(14);
-                summaryText.setTextColor(getResources().getColor(R.color.text_secondary));
-                summaryText.setPadding(0, 0, 0, 16);
-                alarmsContainer.addView(summaryText);
-
-                // Add medicine cards
-                for (Medicine medicine : medicines) {
-                    CardView medicineCard = createMedicineAlarmCard(medicine);
-                    alarmsContainer.addView(medicineCard);
-
-                    Log.d(TAG, "Added card for: " + medicine.getName() +
-                            " with " + medicine.getAlarmTimes().size() + " alarms");
+            List<String> alarmTimes = medicine.getAlarmTimes();
+            for (String time24 : new ArrayList<>(card.timeRows.keySet())) {
+                if (!alarmTimes.contains(time24)) {
+                    card.timesContainer.removeView(card.timeRows.remove(time24));
+                    totalAlarms--;
                 }
             }
+            for (String time24 : alarmTimes) {
+                if (!card.timeRows.containsKey(time24)) {
+                    View timeRow = createTimeRow(card, time24);
+                    card.timeRows.put(time24, timeRow);
+                    card.timesContainer.addView(timeRow);
+                    totalAlarms++;
+                }
+            }
+
+            card.alarmCountText.setText(card.timeRows.size() + " alarm(s) set:");
+            updateSummary();
         } catch (Exception e) {
-            Log.e(TAG, "Error updating alarms list: " + e.getMessage(), e);
+            Log.e(TAG, "Error updating medicine card: " + e.getMessage(), e);
         }
     }
 
-    private CardView createMedicineAlarmCard(Medicine medicine) {
+    private void removeAlarmRow(String medicineName, String time24) {
+        MedicineCard card = medicineCards.get(medicineName);
+        if (card == null) {
+            return;
+        }
+
+        View timeRow = card.timeRows.remove(time24);
+        if (timeRow != null) {
+            card.timesContainer.removeView(timeRow);
+            totalAlarms--;
+            card.alarmCountText.setText(card.timeRows.size() + " alarm(s) set:");
+            updateSummary();
+        }
+    }
+
+    private String formatCardHeader(Medicine medicine) {
+        return medicine.getName() + " (" + medicine.getQuantity() +
+                " pill" + (medicine.getQuantity() != 1 ? "s" : "") + ")";
+    }
+
+    private MedicineCard createMedicineAlarmCard(Medicine medicine) {
+        MedicineCard card = new MedicineCard(medicine);
         try {
             CardView cardView = new CardView(this);
             LinearLayout.LayoutParams cardParams = new LinearLayout.LayoutParams(
@@ -411,9 +530,7 @@ public class SetAlarmActivity extends AppCompatActivity {
             ));
 
             TextView headerText = new TextView(this);
-            String headerStr = medicine.getName() + " (" + medicine.getQuantity() +
-                    " pill" + (medicine.getQuantity() != 1 ? "s" : "") + ")";
-            headerText.setText(headerStr);
+            headerText.setText(formatCardHeader(medicine));
             headerText.setTextSize(16);
             headerText.setTextColor(getResources().getColor(R.color.text_primary));
             headerText.setTypeface(null, Typeface.BOLD);
@@ -424,71 +541,44 @@ public class SetAlarmActivity extends AppCompatActivity {
             ImageButton editButton = new ImageButton(this);
             editButton.setImageResource(android.R.drawable.ic_menu_edit);
             editButton.setBackgroundResource(0);
-            editButton.setOnClickListener(v -> showEditQuantityDialog(medicine));
+            editButton.setOnClickListener(v -> showEditQuantityDialog(card.medicine));
 
             headerLayout.addView(headerText);
             headerLayout.addView(editButton);
             cardContent.addView(headerLayout);
 
+            // Alarm count
+            TextView alarmCountText = new TextView(this);
+            alarmCountText.setTextSize(14);
+            alarmCountText.setTextColor(getResources().getColor(R.color.text_secondary));
+            alarmCountText.setPadding(0, 8, 0, 8);
+            cardContent.addView(alarmCountText);
+
             // Alarm times
-            if (!medicine.getAlarmTimes().isEmpty()) {
-                // Alarm count
-                TextView alarmCountText = new TextView(this);
-                alarmCountText.setText(medicine.getAlarmTimes().size() + " alarm(s) set:");
-                alarmCountText.setTextSize(14);
-                alarmCountText.setTextColor(getResources().getColor(R.color.text_secondary));
-                alarmCountText.setPadding(0, 8, 0, 8);
-                cardContent.addView(alarmCountText);
-
-                LinearLayout timesContainer = new LinearLayout(this);
-                timesContainer.setOrientation(LinearLayout.VERTICAL);
-                LinearLayout.LayoutParams timesParams = new LinearLayout.LayoutParams(
-                        LinearLayout.LayoutParams.MATCH_PARENT,
-                        LinearLayout.LayoutParams.WRAP_CONTENT
-                );
-                timesParams.setMargins(0, 8, 0, 0);
-                timesContainer.setLayoutParams(timesParams);
-
-                for (String time24 : medicine.getAlarmTimes()) {
-                    LinearLayout timeRow = new LinearLayout(this);
-                    timeRow.setOrientation(LinearLayout.HORIZONTAL);
-                    timeRow.setLayoutParams(new LinearLayout.LayoutParams(
-                            LinearLayout.LayoutParams.MATCH_PARENT,
-                            LinearLayout.LayoutParams.WRAP_CONTENT
-                    ));
-                    timeRow.setPadding(0, 8, 0, 8);
-
-                    TextView timeText = new TextView(this);
-                    String time12 = convertTo12Hour(time24);
-                    timeText.setText(time12);
-                    timeText.setBackgroundResource(R.drawable.time_badge_background);
-                    timeText.setPadding(16, 8, 16, 8);
-                    timeText.setTextColor(getResources().getColor(R.color.accent_blue));
-                    timeText.setLayoutParams(new LinearLayout.LayoutParams(
-                            0, LinearLayout.LayoutParams.WRAP_CONTENT, 1
-                    ));
-
-                    ImageButton deleteButton = new ImageButton(this);
-                    deleteButton.setImageResource(android.R.drawable.ic_menu_delete);
-                    deleteButton.setBackgroundResource(0);
-                    deleteButton.setOnClickListener(v -> {
-                        new AlertDialog.Builder(this)
-                                .setTitle("Cancel Alarm")
-                                .setMessage("Cancel alarm for " + medicine.getName() + " at " + time12 + "?")
-                                .setPositiveButton("Yes", (dialog, which) -> cancelAlarm(medicine.getName(), time24))
-                                .setNegativeButton("No", null)
-                                .show();
-                    });
-
-                    timeRow.addView(timeText);
-                    timeRow.addView(deleteButton);
-                    timesContainer.addView(timeRow);
-                }
-                cardContent.addView(timesContainer);
+            LinearLayout timesContainer = new LinearLayout(this);
+            timesContainer.setOrientation(LinearLayout.VERTICAL);
+            LinearLayout.LayoutParams timesParams = new LinearLayout.LayoutParams(
+                    LinearLayout.LayoutParams.MATCH_PARENT,
+                    LinearLayout.LayoutParams.WRAP_CONTENT
+            );
+            timesParams.setMargins(0, 8, 0, 0);
+            timesContainer.setLayoutParams(timesParams);
+            cardContent.addView(timesContainer);
+
+            card.cardView = cardView;
+            card.headerText = headerText;
+            card.alarmCountText = alarmCountText;
+            card.timesContainer = timesContainer;
+
+            for (String time24 : medicine.getAlarmTimes()) {
+                View timeRow = createTimeRow(card, time24);
+                card.timeRows.put(time24, timeRow);
+                timesContainer.addView(timeRow);
             }
+            alarmCountText.setText(card.timeRows.size() + " alarm(s) set:");
 
             cardView.addView(cardContent);
-            return cardView;
+            return card;
 
         } catch (Exception e) {
             Log.e(TAG, "Error creating medicine card: " + e.getMessage(), e);
@@ -497,7 +587,63 @@ public class SetAlarmActivity extends AppCompatActivity {
             errorText.setText("Error loading: " + medicine.getName());
             errorText.setPadding(16, 16, 16, 16);
             errorCard.addView(errorText);
-            return errorCard;
+            card.cardView = errorCard;
+            card.headerText = errorText;
+            card.alarmCountText = new TextView(this);
+            card.timesContainer = new LinearLayout(this);
+            card.timeRows.clear();
+            return card;
+        }
+    }
+
+    private View createTimeRow(MedicineCard card, String time24) {
+        LinearLayout timeRow = new LinearLayout(this);
+        timeRow.setOrientation(LinearLayout.HORIZONTAL);
+        timeRow.setLayoutParams(new LinearLayout.LayoutParams(
+                LinearLayout.LayoutParams.MATCH_PARENT,
+                LinearLayout.LayoutParams.WRAP_CONTENT
+        ));
+        timeRow.setPadding(0, 8, 0, 8);
+
+        TextView timeText = new TextView(this);
+        String time12 = convertTo12Hour(time24);
+        timeText.setText(time12);
+        timeText.setBackgroundResource(R.drawable.time_badge_background);
+        timeText.setPadding(16, 8, 16, 8);
+        timeText.setTextColor(getResources().getColor(R.color.accent_blue));
+        timeText.setLayoutParams(new LinearLayout.LayoutParams(
+                0, LinearLayout.LayoutParams.WRAP_CONTENT, 1
+        ));
+
+        ImageButton deleteButton = new ImageButton(this);
+        deleteButton.setImageResource(android.R.drawable.ic_menu_delete);
+        deleteButton.setBackgroundResource(0);
+        deleteButton.setOnClickListener(v -> {
+            String medicineName = card.medicine.getName();
+            new AlertDialog.Builder(this)
+                    .setTitle("Cancel Alarm")
+                    .setMessage("Cancel alarm for " + medicineName + " at " + time12 + "?")
+                    .setPositiveButton("Yes", (dialog, which) -> cancelAlarm(medicineName, time24))
+                    .setNegativeButton("No", null)
+                    .show();
+        });
+
+        timeRow.addView(timeText);
+        timeRow.addView(deleteButton);
+        return timeRow;
+    }
+
+    // Views of one medicine card, kept so that single alarms can be added or removed in place
+    private static class MedicineCard {
+        Medicine medicine;
+        CardView cardView;
+        TextView headerText;
+        TextView alarmCountText;
+        LinearLayout timesContainer;
+        final Map<String, View> timeRows = new LinkedHashMap<>();
+
+        MedicineCard(Medicine medicine) {
+            this.medicine = medicine;
         }
     }
 
@@ -517,7 +663,7 @@ public class SetAlarmActivity extends AppCompatActivity {
                             int newQuantity = Integer.parseInt(newQuantityStr);
                             if (newQuantity > 0) {
                                 medicineManager.updateMedicineQuantity(medicine.getName(), newQuantity);
-                                updateAlarmsList();
+                                updateMedicineCard(medicine);
                                 Toast.makeText(this, "Quantity updated to " + newQuantity, Toast.LENGTH_SHORT).show();
                             } else {
                                 Toast.makeText(this, "Quantity must be greater than 0", Toast.LENGTH_SHORT).show();
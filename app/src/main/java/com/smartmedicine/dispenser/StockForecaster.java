@@ -0,0 +1,114 @@
+package com.smartmedicine.dispenser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// Projected run-out instant per medicine, kept ordered so "what runs out within N days"
+// walks only the medicines that match. Updated whenever a quantity or schedule changes.
+public class StockForecaster {
+    public static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    public static final long NEVER = Long.MAX_VALUE;
+
+    public static class Forecast {
+        private final int medicineId;
+        private final int quantity;
+        private final double dailyConsumption;
+        private final long runOutAt;
+
+        Forecast(int medicineId, int quantity, double dailyConsumption, long runOutAt) {
+            this.medicineId = medicineId;
+            this.quantity = quantity;
+            this.dailyConsumption = dailyConsumption;
+            this.runOutAt = runOutAt;
+        }
+
+        public int getMedicineId() {
+            return medicineId;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        public double getDailyConsumption() {
+            return dailyConsumption;
+        }
+
+        public long getRunOutAt() {
+            return runOutAt;
+        }
+    }
+
+    // Ordered by run-out instant; used as an updatable priority queue
+    private final TreeSet<Forecast> byRunOut = new TreeSet<>((a, b) -> {
+        int result = Long.compare(a.runOutAt, b.runOutAt);
+        return result != 0 ? result : Integer.compare(a.medicineId, b.medicineId);
+    });
+    private final Map<Integer, Forecast> forecasts = new HashMap<>();
+    private final Set<Integer> outOfStock = new HashSet<>();
+
+    public void update(int medicineId, int quantity, double dailyConsumption, long now) {
+        remove(medicineId);
+
+        long runOutAt;
+        if (quantity <= 0) {
+            runOutAt = now;
+            outOfStock.add(medicineId);
+        } else if (dailyConsumption <= 0) {
+            runOutAt = NEVER;
+        } else {
+            double remainingMillis = quantity / dailyConsumption * MILLIS_PER_DAY;
+            runOutAt = remainingMillis >= NEVER - now ? NEVER : now + (long) remainingMillis;
+        }
+
+        Forecast forecast = new Forecast(medicineId, quantity, dailyConsumption, runOutAt);
+        forecasts.put(medicineId, forecast);
+        byRunOut.add(forecast);
+    }
+
+    public void remove(int medicineId) {
+        Forecast previous = forecasts.remove(medicineId);
+        if (previous != null) {
+            byRunOut.remove(previous);
+        }
+        outOfStock.remove(medicineId);
+    }
+
+    public void clear() {
+        forecasts.clear();
+        byRunOut.clear();
+        outOfStock.clear();
+    }
+
+    public Forecast getForecast(int medicineId) {
+        return forecasts.get(medicineId);
+    }
+
+    public long getRunOutAt(int medicineId) {
+        Forecast forecast = forecasts.get(medicineId);
+        return forecast != null ? forecast.runOutAt : NEVER;
+    }
+
+    // Medicine ids projected to run out before now + days, soonest first (includes out of stock)
+    public List<Integer> getRunningOutWithin(long now, int days) {
+        List<Integer> result = new ArrayList<>();
+        Forecast bound = new Forecast(Integer.MAX_VALUE, 0, 0, now + days * MILLIS_PER_DAY);
+        for (Forecast forecast : byRunOut.headSet(bound, true)) {
+            result.add(forecast.medicineId);
+        }
+        return result;
+    }
+
+    public boolean isRunningOutWithin(int medicineId, long now, int days) {
+        return getRunOutAt(medicineId) <= now + days * MILLIS_PER_DAY;
+    }
+
+    public Set<Integer> getOutOfStock() {
+        return new HashSet<>(outOfStock);
+    }
+}
@@ -0,0 +1,203 @@
+package com.smartmedicine.dispenser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Batches events bound for the main thread. Events posted from any thread within one frame tick
+// go out as a single main-thread message carrying the whole list, in posting order. A newer
+// sync progress step takes the place of an older one still waiting, as does a newer status for
+// the same medicine, so a fast sync or history dump cannot flood the main looper.
+public class UiEventCoalescer {
+    static final long TICK_MS = 16;
+
+    public static class UiEvent {
+        public enum Type {
+            CONNECTION,
+            DATA,
+            ERROR,
+            STATUS,
+            ACK,
+            TASK // internal work that must stay ordered with the events around it
+        }
+
+        private final Type type;
+        private final String text;
+        private final boolean connected;
+        private final int quantity;
+        private final Runnable task;
+
+        private UiEvent(Type type, String text, boolean connected, int quantity, Runnable task) {
+            this.type = type;
+            this.text = text;
+            this.connected = connected;
+            this.quantity = quantity;
+            this.task = task;
+        }
+
+        private static UiEvent connection(boolean connected, String deviceName) {
+            return new UiEvent(Type.CONNECTION, deviceName, connected, 0, null);
+        }
+
+        private static UiEvent data(String line) {
+            return new UiEvent(Type.DATA, line, false, 0, null);
+        }
+
+        private static UiEvent error(String message) {
+            return new UiEvent(Type.ERROR, message, false, 0, null);
+        }
+
+        private static UiEvent status(String medicineName, int quantity) {
+            return new UiEvent(Type.STATUS, medicineName, false, quantity, null);
+        }
+
+        private static UiEvent ack(String ack) {
+            return new UiEvent(Type.ACK, ack, false, 0, null);
+        }
+
+        private static UiEvent task(Runnable task) {
+            return new UiEvent(Type.TASK, null, false, 0, task);
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        // Device name, received line, error message, medicine name or ack, depending on the type
+        public String getText() {
+            return text;
+        }
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        public int getQuantity() {
+            return quantity;
+        }
+
+        Runnable getTask() {
+            return task;
+        }
+
+        // Events with the same key supersede each other while waiting; null never collapses
+        private String collapseKey() {
+            if (type == Type.DATA && text.startsWith("SYNC_PROGRESS:")) {
+                return "SYNC_PROGRESS";
+            }
+            if (type == Type.STATUS) {
+                return "STATUS:" + text;
+            }
+            return null;
+        }
+    }
+
+    interface Sink {
+        // Runs on the main thread
+        void deliver(List<UiEvent> events);
+    }
+
+    private final MainThread handler;
+    private final Sink sink;
+    private final Runnable flushRunnable = this::flush;
+
+    // Guarded by this
+    private List<UiEvent> pending = new ArrayList<>();
+    private boolean flushScheduled;
+    private long eventsPosted;
+    private long eventsCollapsed;
+    private long dispatches;
+
+    UiEventCoalescer(MainThread handler, Sink sink) {
+        this.handler = handler;
+        this.sink = sink;
+    }
+
+    private void post(UiEvent event) {
+        synchronized (this) {
+            eventsPosted++;
+            // A superseded event's slot is reused, so the batch keeps its order without shifting
+            // every later event
+            int slot = -1;
+            String key = event.collapseKey();
+            if (key != null) {
+                for (int i = pending.size() - 1; i >= 0; i--) {
+                    if (key.equals(pending.get(i).collapseKey())) {
+                        slot = i;
+                        break;
+                    }
+                }
+            }
+            if (slot >= 0) {
+                pending.set(slot, event);
+                eventsCollapsed++;
+            } else {
+                pending.add(event);
+            }
+
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        handler.postDelayed(flushRunnable, TICK_MS);
+    }
+
+    public void postConnection(boolean connected, String deviceName) {
+        post(UiEvent.connection(connected, deviceName));
+    }
+
+    public void postData(String line) {
+        post(UiEvent.data(line));
+    }
+
+    public void postError(String message) {
+        post(UiEvent.error(message));
+    }
+
+    public void postStatus(String medicineName, int quantity) {
+        post(UiEvent.status(medicineName, quantity));
+    }
+
+    public void postAck(String ack) {
+        post(UiEvent.ack(ack));
+    }
+
+    void postTask(Runnable task) {
+        post(UiEvent.task(task));
+    }
+
+    private void flush() {
+        List<UiEvent> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+            flushScheduled = false;
+            dispatches++;
+        }
+        sink.deliver(batch);
+    }
+
+    // ==================== METRICS ====================
+
+    public synchronized long getEventsPosted() {
+        return eventsPosted;
+    }
+
+    public synchronized long getEventsCollapsed() {
+        return eventsCollapsed;
+    }
+
+    // Main-thread messages used to deliver them
+    public synchronized long getDispatchCount() {
+        return dispatches;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UiEventCoalescer{" +
+                "eventsPosted=" + eventsPosted +
+                ", eventsCollapsed=" + eventsCollapsed +
+                ", dispatches=" + dispatches +
+                '}';
+    }
+}
@@ -0,0 +1,53 @@
+package com.smartmedicine.dispenser;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class AdherenceTrackerTest {
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+
+    // Noon on the given epoch day, in the default zone
+    private static long noon(long epochDay) {
+        long utc = epochDay * DAY_MS + DAY_MS / 2;
+        return utc - TimeZone.getDefault().getOffset(utc);
+    }
+
+    @Test
+    public void streak_countsConsecutiveFullyTakenDays() {
+        AdherenceTracker tracker = new AdherenceTracker();
+        tracker.setSchedule(1, Arrays.asList("08:00"));
+        for (long day = 100; day < 103; day++) {
+            tracker.record(1, noon(day));
+        }
+
+        assertEquals(3, tracker.getCurrentStreak(1, 103));
+        assertEquals(3, tracker.getBestStreak(1));
+        assertEquals(0, tracker.getCurrentStreak(1, 105));
+    }
+
+    @Test
+    public void setSchedule_recomputesStreakForNewDoseCount() {
+        AdherenceTracker tracker = new AdherenceTracker();
+        tracker.setSchedule(1, Arrays.asList("08:00"));
+        for (long day = 100; day < 103; day++) {
+            tracker.record(1, noon(day));
+        }
+        tracker.record(1, noon(102));
+
+        // Only day 102 had two doses
+        tracker.setSchedule(1, Arrays.asList("08:00", "20:00"));
+        assertEquals(1, tracker.getCurrentStreak(1, 102));
+        assertEquals(1, tracker.getBestStreak(1));
+
+        tracker.setSchedule(1, Arrays.asList("09:00"));
+        assertEquals(3, tracker.getCurrentStreak(1, 102));
+
+        tracker.setSchedule(1, null);
+        assertEquals(0, tracker.getCurrentStreak(1, 102));
+        assertEquals(0, tracker.getBestStreak(1));
+    }
+}
@@ -0,0 +1,91 @@
+package com.smartmedicine.dispenser;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class AlarmBitmapCodecTest {
+    private static byte[] bitmapOf(int... minutes) {
+        byte[] bitmap = AlarmBitmapCodec.newBitmap();
+        for (int minute : minutes) {
+            AlarmBitmapCodec.setMinute(bitmap, minute);
+        }
+        return bitmap;
+    }
+
+    @Test
+    public void crc16_matchesCcittFalseCheckValue() {
+        assertEquals(0x29B1, AlarmBitmapCodec.crc16("123456789".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("29B1", AlarmBitmapCodec.crcHex("123456789".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void setMinute_ignoresOutOfRange() {
+        byte[] bitmap = bitmapOf(-1, AlarmBitmapCodec.MINUTES_PER_DAY);
+        assertArrayEquals(AlarmBitmapCodec.newBitmap(), bitmap);
+    }
+
+    @Test
+    public void encode_fewAlarmsAreSparse() {
+        byte[] bitmap = bitmapOf(8 * 60, 20 * 60);
+        assertEquals("S1E04B0", AlarmBitmapCodec.encode(bitmap));
+        assertArrayEquals(bitmap, AlarmBitmapCodec.decode(AlarmBitmapCodec.encode(bitmap)));
+    }
+
+    @Test
+    public void encode_contiguousAlarmsAreRuns() {
+        int[] minutes = new int[60];
+        for (int i = 0; i < minutes.length; i++) {
+            minutes[i] = 12 * 60 + i;
+        }
+        byte[] bitmap = bitmapOf(minutes);
+        assertEquals("R2D0,3C", AlarmBitmapCodec.encode(bitmap));
+        assertArrayEquals(bitmap, AlarmBitmapCodec.decode(AlarmBitmapCodec.encode(bitmap)));
+    }
+
+    @Test
+    public void encode_roundTripsEmptyAndFullDays() {
+        byte[] empty = AlarmBitmapCodec.newBitmap();
+        assertArrayEquals(empty, AlarmBitmapCodec.decode(AlarmBitmapCodec.encode(empty)));
+
+        int[] all = new int[AlarmBitmapCodec.MINUTES_PER_DAY];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        byte[] full = bitmapOf(all);
+        assertArrayEquals(full, AlarmBitmapCodec.decode(AlarmBitmapCodec.encode(full)));
+    }
+
+    @Test
+    public void decode_rejectsMalformedInput() {
+        assertNull(AlarmBitmapCodec.decode(""));
+        assertNull(AlarmBitmapCodec.decode("S1E"));   // not a whole minute
+        assertNull(AlarmBitmapCodec.decode("S5A0"));  // minute 1440
+        assertNull(AlarmBitmapCodec.decode("R5A1"));  // run past the end of the day
+        assertNull(AlarmBitmapCodec.decode("X000"));
+    }
+
+    @Test
+    public void toFrame_carriesCrcOfBitmap() {
+        byte[] bitmap = bitmapOf(8 * 60);
+        assertEquals("SET_ALARM_MAP:Aspirin:" + AlarmBitmapCodec.crcHex(bitmap) + ":S1E0",
+                AlarmBitmapCodec.toFrame("Aspirin", bitmap, 120));
+    }
+
+    @Test
+    public void toFrame_nullWhenLongerThanLimit() {
+        // Every 7th minute: neither sparse nor run-length fits a 120-character line
+        int[] minutes = new int[AlarmBitmapCodec.MINUTES_PER_DAY / 7];
+        for (int i = 0; i < minutes.length; i++) {
+            minutes[i] = i * 7;
+        }
+        byte[] bitmap = bitmapOf(minutes);
+        assertNull(AlarmBitmapCodec.toFrame("Aspirin", bitmap, 120));
+
+        String frame = AlarmBitmapCodec.toFrame("Aspirin", bitmap, Integer.MAX_VALUE);
+        assertNotNull(frame);
+        assertTrue(frame.length() > 120);
+    }
+}
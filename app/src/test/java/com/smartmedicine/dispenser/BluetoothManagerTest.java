@@ -0,0 +1,273 @@
+package com.smartmedicine.dispenser;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BluetoothManagerTest {
+    @Test
+    public void contiguousFrom_stopsAtFirstGap() {
+        assertEquals(7, BluetoothManager.contiguousFrom(4, new TreeSet<>(Arrays.asList(5L, 6L, 7L, 9L, 10L))));
+    }
+
+    @Test
+    public void contiguousFrom_keepsCursorWhenNextRecordIsMissing() {
+        assertEquals(4, BluetoothManager.contiguousFrom(4, new TreeSet<>(Arrays.asList(6L, 7L))));
+        assertEquals(4, BluetoothManager.contiguousFrom(4, new TreeSet<>(Collections.<Long>emptySet())));
+    }
+
+    @Test
+    public void contiguousFrom_ignoresRecordsAtOrBelowCursor() {
+        assertEquals(0, BluetoothManager.contiguousFrom(0, new TreeSet<>(Arrays.asList(0L, 2L))));
+        assertEquals(12, BluetoothManager.contiguousFrom(10, new TreeSet<>(Arrays.asList(3L, 11L, 12L))));
+    }
+
+    @Test
+    public void timeToFirstByte_runsFromConnectStartToFirstReceivedByte() throws Exception {
+        FakeClock clock = new FakeClock(1000);
+        FakeLinkSocket socket = FakeLinkSocket.connectingImmediately(() -> clock.advance(150));
+        BluetoothManager manager = new BluetoothManager(address -> socket, new FakeMainThread(), clock);
+        try {
+            manager.connect("00:11:22:33:44:55", "HC-05");
+            assertTrue(waitFor(manager::isConnected));
+            assertEquals(-1, manager.getLastTimeToFirstByteMs());
+
+            clock.advance(50);
+            socket.deliver("SUBSCRIBED\n");
+            assertTrue(waitFor(() -> manager.getLastTimeToFirstByteMs() != -1));
+            assertEquals(200, manager.getLastTimeToFirstByteMs());
+
+            // Later traffic does not move it
+            clock.advance(500);
+            socket.deliver("PONG\n");
+            Thread.sleep(50);
+            assertEquals(200, manager.getLastTimeToFirstByteMs());
+        } finally {
+            manager.disconnect();
+        }
+    }
+
+    @Test
+    public void connectWithDeadline_watchdogAbortsAHungConnect() throws Exception {
+        FakeLinkSocket socket = new FakeLinkSocket();
+        FakeMainThread mainThread = new FakeMainThread();
+        BluetoothManager manager = new BluetoothManager(address -> socket, mainThread, new FakeClock(0));
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean result = new AtomicBoolean(true);
+
+        manager.connectWithDeadline("00:11:22:33:44:55", "HC-05", 4000, connected -> {
+            result.set(connected);
+            done.countDown();
+        });
+        assertTrue(socket.awaitConnectEntered());
+        mainThread.runDelayed();
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertFalse(result.get());
+        assertTrue(socket.isClosed());
+        assertFalse(manager.isConnected());
+    }
+
+    @Test
+    public void connectWithDeadline_lateWatchdogLeavesConnectedSocketOpen() throws Exception {
+        FakeLinkSocket socket = new FakeLinkSocket();
+        FakeMainThread mainThread = new FakeMainThread();
+        BluetoothManager manager = new BluetoothManager(address -> socket, mainThread, new FakeClock(0));
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicBoolean result = new AtomicBoolean(false);
+        try {
+            manager.connectWithDeadline("00:11:22:33:44:55", "HC-05", 4000, connected -> {
+                result.set(connected);
+                done.countDown();
+            });
+            assertTrue(socket.awaitConnectEntered());
+            socket.releaseConnect();
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+            assertTrue(result.get());
+
+            // The deadline fires after connect() returned but before it was unscheduled
+            for (Runnable watchdog : mainThread.everDelayed()) {
+                watchdog.run();
+            }
+            assertFalse(socket.isClosed());
+            assertTrue(manager.isConnected());
+        } finally {
+            manager.disconnect();
+        }
+    }
+
+    @Test
+    public void disconnectWhileConnecting_opensNoFurtherSocket() throws Exception {
+        FakeLinkSocket socket = new FakeLinkSocket();
+        AtomicInteger created = new AtomicInteger();
+        BluetoothManager manager = new BluetoothManager(address -> {
+            created.incrementAndGet();
+            return socket;
+        }, new FakeMainThread(), new FakeClock(0));
+
+        manager.connect("00:11:22:33:44:55", "HC-05");
+        assertTrue(socket.awaitConnectEntered());
+        manager.disconnect();
+
+        assertTrue(waitFor(() -> manager.getConnectionState() == BluetoothManager.ConnectionState.DISCONNECTED));
+        assertTrue(socket.isClosed());
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    public void failedHandshake_reportsDropOnceAndSchedulesReconnect() throws Exception {
+        FakeLinkSocket socket = FakeLinkSocket.connectingImmediately(null);
+        socket.failWrites();
+        FakeMainThread mainThread = new FakeMainThread();
+        BluetoothManager manager = new BluetoothManager(address -> socket, mainThread, new FakeClock(0));
+        AtomicInteger disconnects = new AtomicInteger();
+        manager.setConnectionListener(new StatusCounter(disconnects));
+
+        manager.connect("00:11:22:33:44:55", "HC-05");
+        assertTrue(waitFor(() -> manager.getConnectionState() == BluetoothManager.ConnectionState.DISCONNECTED
+                && mainThread.pendingTimers().size() == 1));
+        Thread.sleep(50);
+        mainThread.runDelayed(UiEventCoalescer.TICK_MS);
+
+        assertEquals(1, disconnects.get());
+        assertEquals(1, mainThread.pendingTimers().size()); // the reconnect
+        assertTrue(manager.isAutoReconnectEnabled());
+        manager.disconnect();
+    }
+
+    // Connect, disconnect and send threads race through the real BluetoothManager paths against
+    // a simulated dispenser. No byte may reach a socket before its connect() finished or after it
+    // was closed, and once everything settles no socket is left open.
+    @Test
+    public void concurrentConnectDisconnectAndSend_writeOnlyToOpenLinks() throws Exception {
+        DispenserSimulator dispenser = new DispenserSimulator();
+        BluetoothManager manager = new BluetoothManager(dispenser, new FakeMainThread(), new FakeClock(0));
+        AtomicInteger writesWhileDown = new AtomicInteger();
+
+        Runnable connect = () -> manager.connect("00:11:22:33:44:55", "HC-05");
+        Runnable disconnect = () -> {
+            if (ThreadLocalRandom.current().nextInt(4) == 0) {
+                manager.disconnect();
+            }
+        };
+        Runnable send = () -> {
+            manager.sendData("PING");
+            for (FakeLinkSocket socket : dispenser.sockets()) {
+                writesWhileDown.addAndGet(socket.writesWhileDown());
+            }
+        };
+
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        for (Runnable role : new Runnable[]{connect, disconnect, send}) {
+            for (int i = 0; i < 3; i++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        start.await();
+                        // At least 500 ms, and on a slow machine until some link has carried data
+                        long deadline = System.nanoTime() + 500_000_000L;
+                        long giveUp = System.nanoTime() + 5_000_000_000L;
+                        while (System.nanoTime() < deadline
+                                || (System.nanoTime() < giveUp && !carriedData(dispenser))) {
+                            role.run();
+                            Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+            }
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // A connect thread still backing off between retries resets the state when it wakes
+        assertTrue(waitFor(() -> {
+            manager.disconnect();
+            return manager.getConnectionState() == BluetoothManager.ConnectionState.DISCONNECTED;
+        }));
+        Thread.sleep(50); // let writer threads of closed links finish
+
+        assertEquals(0, writesWhileDown.get());
+        for (FakeLinkSocket socket : dispenser.sockets()) {
+            assertEquals(0, socket.writesWhileDown());
+            assertTrue("socket left open", socket.isClosed());
+        }
+        assertTrue("no link ever carried data", carriedData(dispenser));
+    }
+
+    private static boolean carriedData(DispenserSimulator dispenser) {
+        for (FakeLinkSocket socket : dispenser.sockets()) {
+            if (!socket.written().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class StatusCounter implements BluetoothManager.BluetoothConnectionListener {
+        private final AtomicInteger disconnects;
+
+        StatusCounter(AtomicInteger disconnects) {
+            this.disconnects = disconnects;
+        }
+
+        @Override
+        public void onConnectionStatusChanged(boolean connected, String deviceName) {
+            if (!connected) {
+                disconnects.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onDataReceived(String data) {
+        }
+
+        @Override
+        public void onError(String error) {
+        }
+
+        @Override
+        public void onStatusReceived(String medicineName, int quantity) {
+        }
+
+        @Override
+        public void onHistoryIngested(int inserted, int skipped) {
+        }
+
+        @Override
+        public void onDeviceAck(String ack) {
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static boolean waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,196 @@
+package com.smartmedicine.dispenser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Drives the reconnect supervisor against a simulated dispenser that drops the link and
+// refuses reconnects, with the clock and the main thread under the test's control
+public class BluetoothReconnectTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private FakeClock clock;
+    private FakeMainThread mainThread;
+    private DispenserSimulator dispenser;
+    private BluetoothManager manager;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new FakeClock(10000);
+        mainThread = new FakeMainThread();
+        dispenser = new DispenserSimulator();
+        dispenser.greetWith("CAPS:DISPENSE_ACK\n");
+        manager = new BluetoothManager(dispenser, mainThread, clock);
+        manager.connect(ADDRESS, "HC-05");
+        assertTrue(waitFor(this::isReady));
+    }
+
+    @After
+    public void tearDown() {
+        manager.disconnect();
+    }
+
+    @Test
+    public void droppedLink_isReconnectedAndRecoveryTimed() throws Exception {
+        dispenser.drop();
+        long delay = awaitReconnectDelay(500, 1000);
+        assertFalse(manager.isConnected());
+
+        clock.advance(delay);
+        mainThread.runDelayed();
+        assertTrue(waitFor(this::isReady));
+
+        ConnectionMetrics metrics = manager.getConnectionMetrics();
+        assertEquals(2, metrics.getConnects());
+        assertEquals(1, metrics.getDrops());
+        assertEquals(1, metrics.getReconnectAttempts());
+        assertEquals(1, metrics.getReconnects());
+        assertEquals(delay, metrics.getLastTimeToRecoverMs());
+        assertTrue(waitFor(() -> dispenser.current().written().contains("CONNECT\n")));
+    }
+
+    @Test
+    public void refusedReconnects_backOffWithGrowingDelays() throws Exception {
+        dispenser.refuseNext(2);
+        dispenser.drop();
+
+        long[][] windows = {{500, 1000}, {1000, 2000}, {2000, 4000}};
+        long recovering = 0;
+        for (long[] window : windows) {
+            long delay = awaitReconnectDelay(window[0], window[1]);
+            recovering += delay;
+            clock.advance(delay);
+            mainThread.runDelayed();
+            assertTrue(dispenser.current().awaitConnectExited());
+        }
+
+        assertTrue(waitFor(this::isReady));
+        ConnectionMetrics metrics = manager.getConnectionMetrics();
+        assertEquals(4, dispenser.connectAttempts());
+        assertEquals(3, metrics.getReconnectAttempts());
+        assertEquals(1, metrics.getReconnects());
+        assertEquals(recovering, metrics.getLastTimeToRecoverMs());
+    }
+
+    @Test
+    public void userDisconnect_stopsReconnecting() throws Exception {
+        manager.disconnect();
+        assertFalse(manager.isAutoReconnectEnabled());
+        assertTrue(mainThread.pendingTimers().isEmpty());
+
+        mainThread.runDelayed();
+        Thread.sleep(50);
+        assertEquals(1, dispenser.connectAttempts());
+        assertEquals(0, manager.getConnectionMetrics().getDrops());
+    }
+
+    @Test
+    public void interruptedHistoryFetch_isResentAfterReconnect() throws Exception {
+        manager.requestMedicineHistory();
+        assertTrue(waitFor(() -> dispenser.current().written().contains("HISTORY\n")));
+
+        dispenser.drop();
+        clock.advance(awaitReconnectDelay(500, 1000));
+        mainThread.runDelayed();
+
+        assertTrue(waitFor(this::isReady));
+        assertTrue(waitFor(() -> dispenser.current().written().contains("HISTORY\n")));
+    }
+
+    @Test
+    public void legacyFirmware_resumesOnceNegotiationTimesOut() throws Exception {
+        manager.requestMedicineHistory();
+        dispenser.greetWith(null);
+        dispenser.drop();
+        clock.advance(awaitReconnectDelay(500, 1000));
+        mainThread.runDelayed();
+        assertTrue(waitFor(this::isReady));
+
+        // No CAPS: the resume holds back for the negotiation timeout, then goes ahead
+        Thread.sleep(750);
+        assertFalse(dispenser.current().written().contains("HISTORY\n"));
+        assertTrue(waitFor(() -> dispenser.current().written().contains("HISTORY\n")));
+    }
+
+    @Test
+    public void flowControlledFirmware_resumesOnceCreditsArrive() throws Exception {
+        manager.requestMedicineHistory();
+        dispenser.greetWith("CAPS:CREDITS\n");
+        dispenser.drop();
+        clock.advance(awaitReconnectDelay(500, 1000));
+        mainThread.runDelayed();
+        assertTrue(waitFor(this::isReady));
+
+        Thread.sleep(300);
+        assertFalse(dispenser.current().written().contains("HISTORY\n"));
+        dispenser.current().deliver("CREDITS:4\n");
+        assertTrue(waitFor(() -> dispenser.current().written().contains("HISTORY\n")));
+        assertTrue(manager.getOutboundScheduler().isFlowControlled());
+    }
+
+    @Test
+    public void clockSync_runsOneRoundAtATime() throws Exception {
+        assertTrue(waitFor(() -> timeRequests(dispenser.current()) == 1));
+
+        // The device never answers, so the first round sits out its sample timeout
+        manager.startClockSync();
+        manager.startClockSync();
+        Thread.sleep(300);
+        assertEquals(1, timeRequests(dispenser.current()));
+    }
+
+    @Test
+    public void disconnect_endsClockSyncRound() throws Exception {
+        assertTrue(waitFor(() -> timeRequests(dispenser.current()) == 1));
+
+        manager.disconnect();
+        manager.connect(ADDRESS, "HC-05");
+
+        // The new link's round starts at once instead of waiting for the old one to time out
+        assertTrue(waitFor(this::isReady));
+        assertTrue(waitFor(() -> timeRequests(dispenser.current()) == 1));
+        assertTrue(mainThread.pendingTimers().isEmpty());
+    }
+
+    private static int timeRequests(FakeLinkSocket socket) {
+        return socket.written().split("TIME_REQ:", -1).length - 1;
+    }
+
+    // Handshake done, so the connect has been fully recorded
+    private boolean isReady() {
+        return manager.getConnectionState() == BluetoothManager.ConnectionState.READY;
+    }
+
+    // Waits for exactly one pending reconnect whose delay lies in [min, max) and returns it
+    private long awaitReconnectDelay(long min, long max) throws InterruptedException {
+        long[] found = new long[1];
+        assertTrue("no reconnect scheduled in [" + min + ", " + max + ")", waitFor(() -> {
+            List<Long> delays = mainThread.pendingTimers();
+            if (delays.size() != 1 || delays.get(0) < min || delays.get(0) >= max) {
+                return false;
+            }
+            found[0] = delays.get(0);
+            return true;
+        }));
+        return found[0];
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static boolean waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+package com.smartmedicine.dispenser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class ClockSyncTest {
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    private TimeZone savedZone;
+
+    // Answers TIME_REQ at once from a clock running offsetMs ahead of the phone; SET_TIME resets it
+    private static class FakeDevice implements ClockSync.Transport {
+        ClockSync clockSync;
+        long offsetMs;
+        boolean answers = true;
+        final List<String> setTimeFrames = new ArrayList<>();
+
+        @Override
+        public boolean send(String line) {
+            if (line.startsWith("TIME_REQ:") && answers) {
+                long requestAt = Long.parseLong(line.substring("TIME_REQ:".length()));
+                clockSync.onResponse(requestAt, System.currentTimeMillis() + offsetMs);
+            } else if (line.startsWith("SET_TIME:")) {
+                setTimeFrames.add(line);
+                offsetMs = 0;
+            }
+            return true;
+        }
+    }
+
+    private FakeDevice device;
+    private ClockSync clockSync;
+
+    @Before
+    public void setUp() {
+        savedZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT+05:30"));
+        device = new FakeDevice();
+        clockSync = new ClockSync(device);
+        device.clockSync = clockSync;
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(savedZone);
+    }
+
+    @Test
+    public void run_setsClockAndUtcOffset() throws InterruptedException {
+        device.offsetMs = 5000;
+
+        assertTrue(clockSync.run());
+        assertEquals(1, device.setTimeFrames.size());
+        String[] fields = device.setTimeFrames.get(0).split(":");
+        assertEquals(3, fields.length);
+        assertEquals(String.valueOf(5 * HOUR_MS + 30 * 60 * 1000), fields[2]);
+        assertEquals(Integer.valueOf((int) (5 * HOUR_MS + 30 * 60 * 1000)), clockSync.getSentUtcOffsetMs());
+        assertEquals(1, clockSync.getCorrections());
+        assertEquals(0, clockSync.getOffsetMs());
+    }
+
+    @Test
+    public void run_inSyncClockIsLeftAloneOnceOffsetIsSent() throws InterruptedException {
+        assertTrue(clockSync.run()); // the first round always gives the device the offset
+        assertEquals(1, device.setTimeFrames.size());
+
+        assertTrue(clockSync.run());
+        assertEquals(1, device.setTimeFrames.size());
+        assertTrue(Math.abs(clockSync.getOffsetMs()) <= 1000);
+    }
+
+    @Test
+    public void run_resendsWhenUtcOffsetChanges() throws InterruptedException {
+        assertTrue(clockSync.run());
+
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT-03:00"));
+        assertTrue(clockSync.run());
+        assertEquals(2, device.setTimeFrames.size());
+        assertTrue(device.setTimeFrames.get(1).endsWith(":" + (-3 * HOUR_MS)));
+    }
+
+    @Test
+    public void run_withoutAnswerSendsNothing() throws InterruptedException {
+        device.answers = false;
+
+        assertFalse(clockSync.run());
+        assertTrue(device.setTimeFrames.isEmpty());
+        assertNull(clockSync.getSentUtcOffsetMs());
+    }
+
+    @Test
+    public void reset_forgetsSentOffset() throws InterruptedException {
+        assertTrue(clockSync.run());
+        clockSync.reset();
+        assertNull(clockSync.getSentUtcOffsetMs());
+    }
+
+    @Test
+    public void untilOffsetChange_findsDaylightSavingSwitch() {
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Berlin"));
+        long now = 1711843200000L; // 2024-03-31T00:00Z, clocks go forward at 01:00Z
+
+        long until = ClockSync.untilOffsetChange(now, 6 * HOUR_MS);
+        assertTrue(until > HOUR_MS);
+        assertTrue(until <= HOUR_MS + 60 * 1000);
+    }
+
+    @Test
+    public void untilOffsetChange_fixedZoneReturnsLimit() {
+        assertEquals(6 * HOUR_MS, ClockSync.untilOffsetChange(System.currentTimeMillis(), 6 * HOUR_MS));
+    }
+}
@@ -0,0 +1,174 @@
+package com.smartmedicine.dispenser;
+
+import com.smartmedicine.dispenser.BluetoothManager.ConnectionState;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+    private static final int THREADS_PER_ROLE = 4;
+    private static final long RUN_NANOS = 500_000_000L;
+
+    @Test
+    public void transition_onlyFromExpectedState() {
+        ConnectionStateMachine state = new ConnectionStateMachine();
+        assertEquals(ConnectionState.DISCONNECTED, state.get());
+        assertFalse(state.transition(ConnectionState.READY, ConnectionState.SYNCING));
+        assertTrue(state.transition(ConnectionState.DISCONNECTED, ConnectionState.CONNECTING));
+        assertFalse(state.transition(ConnectionState.DISCONNECTED, ConnectionState.CONNECTING));
+        assertFalse(state.isLinkUp());
+        assertTrue(state.transition(ConnectionState.CONNECTING, ConnectionState.HANDSHAKING));
+        assertTrue(state.isLinkUp());
+    }
+
+    @Test
+    public void beginClose_cancelsConnectInProgress() {
+        ConnectionStateMachine state = new ConnectionStateMachine();
+        assertNull(state.beginClose());
+
+        state.transition(ConnectionState.DISCONNECTED, ConnectionState.CONNECTING);
+        assertEquals(ConnectionState.CONNECTING, state.beginClose());
+        assertEquals(ConnectionState.CANCELLING, state.get());
+        assertNull(state.beginClose()); // a second closer backs off
+
+        // The connect thread can no longer bring the link up, only reset it
+        assertFalse(state.transition(ConnectionState.CONNECTING, ConnectionState.HANDSHAKING));
+        assertTrue(state.transition(ConnectionState.CANCELLING, ConnectionState.DISCONNECTED));
+    }
+
+    @Test
+    public void beginClose_failedHandshakeReachesDisconnected() {
+        ConnectionStateMachine state = new ConnectionStateMachine();
+        state.transition(ConnectionState.DISCONNECTED, ConnectionState.CONNECTING);
+        state.transition(ConnectionState.CONNECTING, ConnectionState.HANDSHAKING);
+
+        assertEquals(ConnectionState.HANDSHAKING, state.beginClose());
+        assertNull(state.beginClose()); // a second closer backs off
+        assertTrue(state.transition(ConnectionState.CLOSING, ConnectionState.DISCONNECTED));
+        assertTrue(state.transition(ConnectionState.DISCONNECTED, ConnectionState.CONNECTING));
+    }
+
+    // Connectors, closers, syncs and senders race the way BluetoothManager's threads do. At most
+    // one connect may be in flight at a time, every sync that starts ends exactly once (by itself
+    // or by a close), and every opened link is closed exactly once.
+    @Test
+    public void concurrentConnectCloseAndSync_keepInvariants() throws InterruptedException {
+        ConnectionStateMachine state = new ConnectionStateMachine();
+        AtomicReference<Thread> connector = new AtomicReference<>();
+        AtomicInteger opens = new AtomicInteger();
+        AtomicInteger closes = new AtomicInteger();
+        AtomicInteger syncs = new AtomicInteger();
+        AtomicInteger syncsEnded = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+
+        Runnable connect = () -> {
+            if (!state.transition(ConnectionState.DISCONNECTED, ConnectionState.CONNECTING)) {
+                return;
+            }
+            if (!connector.compareAndSet(null, Thread.currentThread())) {
+                violations.incrementAndGet();
+            }
+            boolean socketConnected = ThreadLocalRandom.current().nextInt(4) != 0;
+            connector.set(null); // before leaving CONNECTING, as only this thread can
+            if (!socketConnected || !state.transition(ConnectionState.CONNECTING, ConnectionState.HANDSHAKING)) {
+                // abortConnect(): failed, or cancelled by a close meanwhile
+                if (!state.transition(ConnectionState.CONNECTING, ConnectionState.DISCONNECTED)
+                        && !state.transition(ConnectionState.CANCELLING, ConnectionState.DISCONNECTED)) {
+                    violations.incrementAndGet();
+                }
+                return;
+            }
+            opens.incrementAndGet();
+
+            boolean handshakeSent = ThreadLocalRandom.current().nextInt(4) != 0;
+            if (!handshakeSent || !state.transition(ConnectionState.HANDSHAKING, ConnectionState.READY)) {
+                // abortConnect() on a failed handshake
+                if (state.get() == ConnectionState.HANDSHAKING) {
+                    close(state, syncsEnded, closes, violations);
+                }
+            }
+        };
+
+        // Less often than the others, so links stay up long enough for syncs to start
+        Runnable disconnect = () -> {
+            if (ThreadLocalRandom.current().nextInt(8) == 0) {
+                close(state, syncsEnded, closes, violations);
+            }
+        };
+
+        Runnable sync = () -> {
+            if (!state.transition(ConnectionState.READY, ConnectionState.SYNCING)) {
+                return;
+            }
+            syncs.incrementAndGet();
+            if (state.transition(ConnectionState.SYNCING, ConnectionState.READY)) {
+                syncsEnded.incrementAndGet();
+            } // else a close ended it
+        };
+
+        Runnable send = () -> {
+            if (state.get() == null) {
+                violations.incrementAndGet();
+            }
+            state.isLinkUp();
+        };
+
+        List<Thread> threads = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        for (Runnable role : new Runnable[]{connect, disconnect, sync, send}) {
+            for (int i = 0; i < THREADS_PER_ROLE; i++) {
+                threads.add(new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long deadline = System.nanoTime() + RUN_NANOS;
+                    while (System.nanoTime() < deadline) {
+                        role.run();
+                    }
+                }));
+            }
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        close(state, syncsEnded, closes, violations);
+
+        assertEquals(0, violations.get());
+        assertEquals(ConnectionState.DISCONNECTED, state.get());
+        assertEquals(opens.get(), closes.get());
+        assertEquals(syncs.get(), syncsEnded.get());
+        assertTrue("no link was ever opened", opens.get() > 0);
+        assertTrue("no sync ever ran", syncs.get() > 0);
+    }
+
+    // closeConnection(): one winner takes the link to CLOSING and then DISCONNECTED
+    private static void close(ConnectionStateMachine state, AtomicInteger syncsEnded,
+                              AtomicInteger closes, AtomicInteger violations) {
+        ConnectionState previous = state.beginClose();
+        if (previous == null || previous == ConnectionState.CONNECTING) {
+            return;
+        }
+        if (previous == ConnectionState.SYNCING) {
+            syncsEnded.incrementAndGet();
+        }
+        closes.incrementAndGet();
+        if (!state.transition(ConnectionState.CLOSING, ConnectionState.DISCONNECTED)) {
+            violations.incrementAndGet();
+        }
+    }
+}
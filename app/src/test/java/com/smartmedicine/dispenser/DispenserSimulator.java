@@ -0,0 +1,65 @@
+package com.smartmedicine.dispenser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Stands in for the dispenser on the other end of the link: every connect gets a fresh fake
+// socket, the link can be dropped mid-session, and reconnects can be refused to model a device
+// that is out of range for a while.
+class DispenserSimulator implements BluetoothManager.LinkConnector {
+    private final List<FakeLinkSocket> sockets = new ArrayList<>();
+    private final Runnable onConnect;
+    private int refuseNext;
+    private String greeting;
+
+    DispenserSimulator() {
+        this(null);
+    }
+
+    // onConnect runs inside each successful connect(), e.g. to advance a fake clock
+    DispenserSimulator(Runnable onConnect) {
+        this.onConnect = onConnect;
+    }
+
+    @Override
+    public synchronized BluetoothManager.LinkSocket create(String address) {
+        FakeLinkSocket socket;
+        if (refuseNext > 0) {
+            refuseNext--;
+            socket = FakeLinkSocket.refusing();
+        } else {
+            socket = FakeLinkSocket.connectingImmediately(onConnect);
+            if (greeting != null) {
+                socket.deliver(greeting);
+            }
+        }
+        sockets.add(socket);
+        return socket;
+    }
+
+    // Frames the device sends on every new link, e.g. its CAPS; null for legacy firmware
+    synchronized void greetWith(String frames) {
+        greeting = frames;
+    }
+
+    synchronized void refuseNext(int connects) {
+        refuseNext = connects;
+    }
+
+    // Link loss: the current socket dies under the reader
+    void drop() {
+        current().close();
+    }
+
+    synchronized FakeLinkSocket current() {
+        return sockets.get(sockets.size() - 1);
+    }
+
+    synchronized int connectAttempts() {
+        return sockets.size();
+    }
+
+    synchronized List<FakeLinkSocket> sockets() {
+        return new ArrayList<>(sockets);
+    }
+}
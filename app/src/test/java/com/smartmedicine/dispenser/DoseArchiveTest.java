@@ -0,0 +1,165 @@
+package com.smartmedicine.dispenser;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DoseArchiveTest {
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long DAY_MS = 24 * 60 * MINUTE_MS;
+    private static final long START = 1704067200000L; // 2024-01-01T00:00Z
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File archiveFile() {
+        return new File(folder.getRoot(), "dose_history.archive");
+    }
+
+    // Three doses a day of the given medicines at 08:00, 14:00 and 20:00
+    private static List<MedicineLogEntry> history(int days, String... medicines) {
+        List<MedicineLogEntry> entries = new ArrayList<>();
+        for (int day = 0; day < days; day++) {
+            for (int hour : new int[]{8, 14, 20}) {
+                for (int i = 0; i < medicines.length; i++) {
+                    entries.add(new MedicineLogEntry(medicines[i], i + 1, START + day * DAY_MS + hour * 60 * MINUTE_MS));
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static void assertSameEntries(List<MedicineLogEntry> expected, List<MedicineLogEntry> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getMedicineName(), actual.get(i).getMedicineName());
+            assertEquals(expected.get(i).getTimestamp(), actual.get(i).getTimestamp());
+        }
+    }
+
+    private static void appendBytes(File file, byte[] bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(bytes);
+        }
+    }
+
+    @Test
+    public void varLong_roundTripsAndMatchesSize() throws IOException {
+        long[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, 1L << 56, Long.MAX_VALUE, -1};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int expectedSize = 0;
+        for (long value : values) {
+            int before = out.size();
+            DoseArchive.writeVarLong(out, value);
+            assertEquals("size of " + value, DoseArchive.varLongSize(value), out.size() - before);
+            expectedSize += DoseArchive.varLongSize(value);
+        }
+        assertEquals(expectedSize, out.size());
+        assertEquals(1, DoseArchive.varLongSize(127));
+        assertEquals(2, DoseArchive.varLongSize(128));
+        assertEquals(10, DoseArchive.varLongSize(-1));
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        for (long value : values) {
+            assertEquals(value, DoseArchive.readVarLong(in));
+        }
+        assertEquals(-1, in.read());
+    }
+
+    @Test(expected = DoseArchive.MalformedVarintException.class)
+    public void readVarLong_rejectsOverlongEncoding() throws IOException {
+        byte[] bytes = new byte[11];
+        Arrays.fill(bytes, (byte) 0x80);
+        DoseArchive.readVarLong(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void append_readsBackRanges() throws IOException {
+        DoseArchive archive = new DoseArchive(archiveFile());
+        List<MedicineLogEntry> entries = history(30, "Aspirin", "Vitamin D");
+        archive.append(entries.subList(0, 100));
+        archive.append(entries.subList(100, entries.size()));
+
+        assertSameEntries(entries, archive.read(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        List<MedicineLogEntry> secondWeek = archive.read(START + 7 * DAY_MS, START + 14 * DAY_MS - 1);
+        assertEquals(7 * 3 * 2, secondWeek.size());
+        assertEquals(START + 7 * DAY_MS + 8 * 60 * MINUTE_MS, secondWeek.get(0).getTimestamp());
+    }
+
+    @Test
+    public void tornTail_isIgnoredAndCutOnNextAppend() throws IOException {
+        File file = archiveFile();
+        DoseArchive archive = new DoseArchive(file);
+        List<MedicineLogEntry> entries = history(10, "Aspirin");
+        archive.append(entries.subList(0, 15));
+        long intact = file.length();
+
+        // A second segment cut short, as if the process died mid-append
+        archive.append(entries.subList(15, 30));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(intact + (file.length() - intact) / 2);
+        }
+        assertSameEntries(entries.subList(0, 15), archive.read(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        // Torn inside the header of the next segment
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(intact + 3);
+        }
+        assertSameEntries(entries.subList(0, 15), archive.read(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        archive.append(entries.subList(15, 30));
+        assertSameEntries(entries, archive.read(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void corruptSegment_isQuarantinedInsteadOfFailingEveryAppend() throws IOException {
+        File file = archiveFile();
+        DoseArchive archive = new DoseArchive(file);
+        List<MedicineLogEntry> entries = history(10, "Aspirin");
+        archive.append(entries.subList(0, 15));
+
+        byte[] garbage = "not a segment header".getBytes(StandardCharsets.US_ASCII);
+        appendBytes(file, garbage);
+        assertSameEntries(entries.subList(0, 15), archive.read(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        archive.append(entries.subList(15, 30));
+        assertSameEntries(entries, archive.read(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        File corrupt = new File(file.getPath() + ".corrupt");
+        assertTrue(corrupt.exists());
+        assertEquals(garbage.length, corrupt.length());
+    }
+
+    // Three years of three doses a day: the archive is more than ten times smaller than the
+    // Gson JSON MedicineManager keeps in SharedPreferences for the same entries
+    @Test
+    public void threeYearHistory_isAnOrderOfMagnitudeSmallerThanJson() throws IOException {
+        List<MedicineLogEntry> entries = history(3 * 365, "Aspirin");
+        DoseArchive archive = new DoseArchive(archiveFile());
+        archive.append(entries);
+
+        String json = new Gson().toJson(entries, new TypeToken<List<MedicineLogEntry>>(){}.getType());
+        long jsonBytes = json.getBytes(StandardCharsets.UTF_8).length;
+        long archiveBytes = archive.getSizeBytes();
+
+        assertTrue("archive " + archiveBytes + " B vs JSON " + jsonBytes + " B", archiveBytes * 10 < jsonBytes);
+        assertEquals(entries.size(), archive.read(Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+}
@@ -0,0 +1,21 @@
+package com.smartmedicine.dispenser;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Test clock that only moves when told to
+class FakeClock implements Clock {
+    private final AtomicLong now;
+
+    FakeClock(long start) {
+        now = new AtomicLong(start);
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return now.get();
+    }
+
+    void advance(long millis) {
+        now.addAndGet(millis);
+    }
+}
@@ -0,0 +1,170 @@
+package com.smartmedicine.dispenser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// In-memory stand-in for the RFCOMM socket. connect() blocks until released or closed, bytes
+// queued with deliver() are what the device "sends", and writes are captured as text.
+class FakeLinkSocket implements BluetoothManager.LinkSocket {
+    private final CountDownLatch connectEntered = new CountDownLatch(1);
+    private final CountDownLatch connectReleased = new CountDownLatch(1);
+    private final CountDownLatch connectExited = new CountDownLatch(1);
+    private final LinkedBlockingQueue<Byte> incoming = new LinkedBlockingQueue<>();
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private final AtomicInteger writesWhileDown = new AtomicInteger();
+    private final Runnable onConnect;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private volatile boolean refused;
+    private volatile boolean failWrites;
+
+    FakeLinkSocket() {
+        this(null);
+    }
+
+    // onConnect runs inside connect(), e.g. to advance a fake clock by the connect latency
+    FakeLinkSocket(Runnable onConnect) {
+        this.onConnect = onConnect;
+    }
+
+    static FakeLinkSocket connectingImmediately(Runnable onConnect) {
+        FakeLinkSocket socket = new FakeLinkSocket(onConnect);
+        socket.releaseConnect();
+        return socket;
+    }
+
+    // A device that is out of range: connect() fails at once
+    static FakeLinkSocket refusing() {
+        FakeLinkSocket socket = new FakeLinkSocket();
+        socket.refused = true;
+        socket.releaseConnect();
+        return socket;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        connectEntered.countDown();
+        try {
+            connectReleased.await();
+            if (closed || refused) {
+                throw new IOException(refused ? "Connection refused" : "Socket closed");
+            }
+            if (onConnect != null) {
+                onConnect.run();
+            }
+            connected = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } finally {
+            connectExited.countDown();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected && !closed;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                Byte next = incoming.poll();
+                return next != null ? next & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (closed) {
+                    throw new IOException("Socket closed");
+                }
+                int count = 0;
+                Byte next;
+                while (count < length && (next = incoming.poll()) != null) {
+                    buffer[offset + count++] = next;
+                }
+                return count;
+            }
+
+            @Override
+            public int available() throws IOException {
+                if (closed) {
+                    throw new IOException("Socket closed");
+                }
+                return incoming.size();
+            }
+        };
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                if (!connected || closed) {
+                    writesWhileDown.incrementAndGet();
+                    throw new IOException("Socket closed");
+                }
+                if (failWrites) {
+                    throw new IOException("Broken pipe");
+                }
+                synchronized (written) {
+                    written.write(b);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        connectReleased.countDown();
+    }
+
+    // The link connects but every write fails, as when the device resets mid-handshake
+    void failWrites() {
+        failWrites = true;
+    }
+
+    void releaseConnect() {
+        connectReleased.countDown();
+    }
+
+    boolean awaitConnectEntered() throws InterruptedException {
+        return connectEntered.await(2, TimeUnit.SECONDS);
+    }
+
+    boolean awaitConnectExited() throws InterruptedException {
+        return connectExited.await(2, TimeUnit.SECONDS);
+    }
+
+    void deliver(String data) {
+        for (byte b : data.getBytes(StandardCharsets.UTF_8)) {
+            incoming.add(b);
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // Bytes the app tried to write before connect() finished or after close()
+    int writesWhileDown() {
+        return writesWhileDown.get();
+    }
+
+    String written() {
+        synchronized (written) {
+            return new String(written.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.smartmedicine.dispenser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs posts inline on the posting thread and holds delayed posts until the test runs them
+class FakeMainThread implements MainThread {
+    private final List<Runnable> delayed = new ArrayList<>();
+    private final List<Long> delays = new ArrayList<>();
+    private final List<Runnable> everDelayed = new ArrayList<>();
+
+    @Override
+    public void post(Runnable runnable) {
+        runnable.run();
+    }
+
+    @Override
+    public synchronized void postDelayed(Runnable runnable, long delayMs) {
+        delayed.add(runnable);
+        delays.add(delayMs);
+        everDelayed.add(runnable);
+    }
+
+    @Override
+    public synchronized void removeCallbacks(Runnable runnable) {
+        for (int i = delayed.size() - 1; i >= 0; i--) {
+            if (delayed.get(i) == runnable) {
+                delayed.remove(i);
+                delays.remove(i);
+            }
+        }
+    }
+
+    // Runs the delayed posts still pending, as if their delay had passed
+    void runDelayed() {
+        List<Runnable> due;
+        synchronized (this) {
+            due = new ArrayList<>(delayed);
+            delayed.clear();
+            delays.clear();
+        }
+        for (Runnable runnable : due) {
+            runnable.run();
+        }
+    }
+
+    // Runs the delayed posts of at most delayMs, as if that much time had passed
+    void runDelayed(long delayMs) {
+        List<Runnable> due = new ArrayList<>();
+        synchronized (this) {
+            for (int i = 0; i < delayed.size(); ) {
+                if (delays.get(i) <= delayMs) {
+                    due.add(delayed.remove(i));
+                    delays.remove(i);
+                } else {
+                    i++;
+                }
+            }
+        }
+        for (Runnable runnable : due) {
+            runnable.run();
+        }
+    }
+
+    // Pending delays longer than a UI frame tick, leaving out UiEventCoalescer's batch flushes
+    synchronized List<Long> pendingTimers() {
+        List<Long> timers = new ArrayList<>();
+        for (long delay : delays) {
+            if (delay > UiEventCoalescer.TICK_MS) {
+                timers.add(delay);
+            }
+        }
+        return timers;
+    }
+
+    // Every runnable ever passed to postDelayed, removed or not, for replaying races
+    synchronized List<Runnable> everDelayed() {
+        return new ArrayList<>(everDelayed);
+    }
+}
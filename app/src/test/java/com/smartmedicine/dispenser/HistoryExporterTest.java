@@ -0,0 +1,230 @@
+package com.smartmedicine.dispenser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class HistoryExporterTest {
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long DAY_MS = 24 * 60 * MINUTE_MS;
+    private static final long START = 1704067200000L; // 2024-01-01T00:00Z
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TimeZone savedZone;
+
+    // The manager's side of an export: an archive on disk, a live log and the id table
+    private static class FakeHistory implements HistoryExporter.HistorySource {
+        final DoseLog log = new DoseLog();
+        final DoseArchive archive;
+        final List<String> names = new ArrayList<>();
+        int exportsInProgress;
+
+        FakeHistory(File archiveFile, String... medicines) {
+            archive = new DoseArchive(archiveFile);
+            names.addAll(Arrays.asList(medicines));
+        }
+
+        void log(String medicineName, long timestamp) {
+            log.add(timestamp, findMedicineId(medicineName));
+        }
+
+        @Override
+        public void beginExport() {
+            exportsInProgress++;
+        }
+
+        @Override
+        public void endExport() {
+            exportsInProgress--;
+        }
+
+        @Override
+        public DoseArchive getDoseArchive() {
+            return archive;
+        }
+
+        @Override
+        public int readLogChunk(long fromMillis, int skip, long[] timestamps, int[] medicineIds) {
+            return log.read(fromMillis, skip, timestamps, medicineIds);
+        }
+
+        @Override
+        public String getMedicineNameById(int medicineId) {
+            return medicineId > 0 && medicineId <= names.size() ? names.get(medicineId - 1) : null;
+        }
+
+        @Override
+        public int findMedicineId(String medicineName) {
+            return names.indexOf(medicineName) + 1;
+        }
+    }
+
+    // Discards output, counting bytes
+    private static class CountingStream extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        savedZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(savedZone);
+    }
+
+    private FakeHistory newHistory(String... medicines) {
+        return new FakeHistory(new File(folder.getRoot(), "dose_history.archive"), medicines);
+    }
+
+    // Output lines; checks the returned row count against them
+    private static List<String> export(HistoryExporter exporter) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = exporter.export(out);
+        List<String> lines = Arrays.asList(new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+        int header = lines.get(0).equals("medicine,date,time,timestamp") ? 1 : 0;
+        assertEquals(lines.size() - header, rows);
+        return lines;
+    }
+
+    @Test
+    public void csv_archiveThenLiveLogInTimeOrder() throws IOException {
+        FakeHistory history = newHistory("Aspirin", "Vitamin D");
+        history.archive.append(Arrays.asList(
+                new MedicineLogEntry("Aspirin", START + 8 * 60 * MINUTE_MS),
+                new MedicineLogEntry("Vitamin D", START + 9 * 60 * MINUTE_MS + 5 * MINUTE_MS)));
+        history.log("Aspirin", START + DAY_MS + 20 * 60 * MINUTE_MS);
+
+        HistoryExporter exporter = new HistoryExporter(null, history);
+        assertEquals(Arrays.asList(
+                "medicine,date,time,timestamp",
+                "Aspirin,01/01/2024,08:00," + (START + 8 * 60 * MINUTE_MS),
+                "Vitamin D,01/01/2024,09:05," + (START + 9 * 60 * MINUTE_MS + 5 * MINUTE_MS),
+                "Aspirin,02/01/2024,20:00," + (START + DAY_MS + 20 * 60 * MINUTE_MS)), export(exporter));
+        assertEquals(0, history.exportsInProgress);
+    }
+
+    @Test
+    public void csv_quotesNamesWithSeparators() throws IOException {
+        FakeHistory history = newHistory("Iron, \"slow\" release");
+        history.log("Iron, \"slow\" release", START);
+
+        List<String> lines = export(new HistoryExporter(null, history));
+        assertEquals("\"Iron, \"\"slow\"\" release\",01/01/2024,00:00," + START, lines.get(1));
+    }
+
+    @Test
+    public void filter_appliesToArchiveAndLiveLog() throws IOException {
+        FakeHistory history = newHistory("Aspirin", "Vitamin D");
+        history.archive.append(Arrays.asList(
+                new MedicineLogEntry("Aspirin", START),
+                new MedicineLogEntry("Vitamin D", START + MINUTE_MS)));
+        history.log("Vitamin D", START + DAY_MS);
+        history.log("Aspirin", START + DAY_MS + MINUTE_MS);
+
+        HistoryExporter exporter = new HistoryExporter(null, history);
+        exporter.setMedicineFilter("Vitamin D");
+        List<String> lines = export(exporter);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(1).startsWith("Vitamin D,01/01/2024"));
+        assertTrue(lines.get(2).startsWith("Vitamin D,02/01/2024"));
+    }
+
+    @Test
+    public void filter_unknownMedicineExportsNothing() throws IOException {
+        FakeHistory history = newHistory("Aspirin");
+        history.log("Aspirin", START);
+
+        HistoryExporter exporter = new HistoryExporter(null, history);
+        exporter.setMedicineFilter("Ibuprofen");
+        assertEquals(Arrays.asList("medicine,date,time,timestamp"), export(exporter));
+        assertEquals(1, history.names.size());
+    }
+
+    @Test
+    public void dateRange_isInclusive() throws IOException {
+        FakeHistory history = newHistory("Aspirin");
+        for (int day = 0; day < 5; day++) {
+            history.log("Aspirin", START + day * DAY_MS);
+        }
+
+        HistoryExporter exporter = new HistoryExporter(null, history);
+        exporter.setDateRange(START + DAY_MS, START + 3 * DAY_MS);
+        List<String> lines = export(exporter);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(1).contains("02/01/2024"));
+        assertTrue(lines.get(3).contains("04/01/2024"));
+    }
+
+    @Test
+    public void jsonl_escapesNamesAndCarriesIds() throws IOException {
+        FakeHistory history = newHistory("Tab\t\"B\"");
+        history.archive.append(Arrays.asList(new MedicineLogEntry("Tab\t\"B\"", START)));
+        history.log("Tab\t\"B\"", START + MINUTE_MS);
+
+        HistoryExporter exporter = new HistoryExporter(null, history);
+        exporter.setFormat(HistoryExporter.Format.JSONL);
+        assertEquals(Arrays.asList(
+                "{\"medicineName\":\"Tab\\t\\\"B\\\"\",\"timestamp\":" + START + ",\"date\":\"01/01/2024\",\"time\":\"00:00\"}",
+                "{\"medicineName\":\"Tab\\t\\\"B\\\"\",\"medicineId\":1,\"timestamp\":" + (START + MINUTE_MS) +
+                        ",\"date\":\"01/01/2024\",\"time\":\"00:01\"}"), export(exporter));
+    }
+
+    // One million rows, half archived and half live, in both formats. The floor is far below what
+    // the streaming path reaches, so it only fails if rows start being buffered or re-read.
+    @Test
+    public void throughput_millionRows() throws IOException {
+        FakeHistory history = newHistory("Aspirin", "Vitamin D", "Metformin");
+        int total = 1_000_000;
+        List<MedicineLogEntry> archived = new ArrayList<>();
+        for (int i = 0; i < total / 2; i++) {
+            archived.add(new MedicineLogEntry(history.names.get(i % 3), START + i * MINUTE_MS));
+        }
+        history.archive.append(archived);
+        for (int i = total / 2; i < total; i++) {
+            history.log(history.names.get(i % 3), START + i * MINUTE_MS);
+        }
+
+        for (HistoryExporter.Format format : HistoryExporter.Format.values()) {
+            HistoryExporter exporter = new HistoryExporter(null, history);
+            exporter.setFormat(format);
+            CountingStream out = new CountingStream();
+
+            long started = System.nanoTime();
+            long rows = exporter.export(out);
+            long elapsedMs = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+            long rowsPerSecond = rows * 1000 / elapsedMs;
+
+            assertEquals(total, rows);
+            assertTrue(format + ": " + rowsPerSecond + " rows/s", rowsPerSecond > 100_000);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.smartmedicine.dispenser;
+
+import com.smartmedicine.dispenser.OutboundScheduler.Pending;
+import com.smartmedicine.dispenser.OutboundScheduler.Priority;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboundSchedulerTest {
+    private static final long TIMEOUT_MS = 2000;
+
+    private final FakeClock clock = new FakeClock(0);
+    private final OutboundScheduler scheduler = new OutboundScheduler(clock);
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    private List<String> writtenLines() {
+        synchronized (written) {
+            return Arrays.asList(new String(written.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+        }
+    }
+
+    private void start() {
+        scheduler.start(line -> {
+            written.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            return true;
+        }, e -> fail("write failed: " + e.getMessage()));
+    }
+
+    @Test
+    public void classify_mapsLinesToClasses() {
+        assertEquals(Priority.CRITICAL, OutboundScheduler.classify("DISPENSE:Aspirin:3"));
+        assertEquals(Priority.KEEP_ALIVE, OutboundScheduler.classify("PING"));
+        assertEquals(Priority.BULK, OutboundScheduler.classify("SET_ALARM_MAP:Aspirin:29B1:S000"));
+        assertEquals(Priority.USER, OutboundScheduler.classify("STATUS"));
+    }
+
+    @Test
+    public void submit_withoutLinkReturnsNull() {
+        assertNull(scheduler.submit("STATUS", Priority.USER));
+    }
+
+    @Test
+    public void creditWindow_holdsLinesBackUntilGranted() throws InterruptedException {
+        start();
+        scheduler.setCredits(2);
+
+        Pending first = scheduler.submit("STATUS", Priority.USER);
+        Pending second = scheduler.submit("HISTORY", Priority.USER);
+        Pending third = scheduler.submit("SYNC_START", Priority.BULK);
+
+        assertTrue(first.await(TIMEOUT_MS));
+        assertTrue(second.await(TIMEOUT_MS));
+        assertFalse(third.await(200));
+
+        scheduler.addCredits(1);
+        assertTrue(third.await(TIMEOUT_MS));
+        assertEquals(Arrays.asList("STATUS", "HISTORY", "SYNC_START"), writtenLines());
+    }
+
+    @Test
+    public void creditWait_letsHigherPriorityOvertake() throws InterruptedException {
+        start();
+        scheduler.setCredits(0);
+
+        Pending bulk = scheduler.submit("SET_ALARMS:Aspirin:0800", Priority.BULK);
+        Pending user = scheduler.submit("STATUS", Priority.USER);
+        Pending critical = scheduler.submit("DISPENSE:Aspirin:1", Priority.CRITICAL);
+
+        scheduler.addCredits(3);
+        assertTrue(bulk.await(TIMEOUT_MS));
+        assertTrue(user.await(TIMEOUT_MS));
+        assertTrue(critical.await(TIMEOUT_MS));
+        assertEquals(Arrays.asList("DISPENSE:Aspirin:1", "STATUS", "SET_ALARMS:Aspirin:0800"), writtenLines());
+    }
+
+    @Test
+    public void creditStall_sendsOneLineAsProbe() throws InterruptedException {
+        start();
+        scheduler.setCredits(0);
+        Pending first = scheduler.submit("STATUS", Priority.USER);
+        Pending second = scheduler.submit("HISTORY", Priority.USER);
+
+        assertFalse(first.await(300));
+        clock.advance(OutboundScheduler.CREDIT_STALL_MS - 1);
+        assertFalse(first.await(300));
+
+        clock.advance(1);
+        assertTrue(first.await(TIMEOUT_MS));
+        assertEquals(1, scheduler.getCreditStalls());
+        assertEquals(OutboundScheduler.CREDIT_STALL_MS, scheduler.getCreditWaitMs());
+
+        // Still no credit: the next line waits for its own stall
+        assertFalse(second.await(300));
+        clock.advance(OutboundScheduler.CREDIT_STALL_MS);
+        assertTrue(second.await(TIMEOUT_MS));
+        assertEquals(2, scheduler.getCreditStalls());
+        assertEquals(Arrays.asList("STATUS", "HISTORY"), writtenLines());
+    }
+
+    @Test
+    public void creditGrantedDuringStall_endsWaitWithoutProbe() throws InterruptedException {
+        start();
+        scheduler.setCredits(0);
+        Pending pending = scheduler.submit("STATUS", Priority.USER);
+
+        assertFalse(pending.await(300));
+        clock.advance(OutboundScheduler.CREDIT_STALL_MS / 2);
+        scheduler.addCredits(1);
+
+        assertTrue(pending.await(TIMEOUT_MS));
+        assertEquals(0, scheduler.getCreditStalls());
+        assertEquals(OutboundScheduler.CREDIT_STALL_MS / 2, scheduler.getCreditWaitMs());
+    }
+
+    @Test
+    public void stop_dropsQueuedLines() throws InterruptedException {
+        start();
+        scheduler.setCredits(0);
+        Pending pending = scheduler.submit("STATUS", Priority.USER);
+
+        scheduler.stop();
+        assertFalse(pending.await(TIMEOUT_MS));
+        assertNull(scheduler.submit("STATUS", Priority.USER));
+    }
+}
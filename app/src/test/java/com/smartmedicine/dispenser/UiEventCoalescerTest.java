@@ -0,0 +1,97 @@
+package com.smartmedicine.dispenser;
+
+import com.smartmedicine.dispenser.UiEventCoalescer.UiEvent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UiEventCoalescerTest {
+    private final FakeMainThread mainThread = new FakeMainThread();
+    private final List<List<UiEvent>> batches = new ArrayList<>();
+    private final UiEventCoalescer coalescer = new UiEventCoalescer(mainThread, batches::add);
+
+    private static List<String> texts(List<UiEvent> batch) {
+        List<String> texts = new ArrayList<>();
+        for (UiEvent event : batch) {
+            texts.add(event.getType() == UiEvent.Type.STATUS ? event.getText() + "=" + event.getQuantity() : event.getText());
+        }
+        return texts;
+    }
+
+    @Test
+    public void eventsWithinOneTick_goOutAsOneMessage() {
+        coalescer.postConnection(true, "HC-05");
+        coalescer.postData("STATUS_OK");
+        coalescer.postError("Sync error");
+        assertEquals(1, mainThread.everDelayed().size());
+
+        mainThread.runDelayed(UiEventCoalescer.TICK_MS - 1);
+        assertTrue(batches.isEmpty());
+
+        mainThread.runDelayed(UiEventCoalescer.TICK_MS);
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList("HC-05", "STATUS_OK", "Sync error"), texts(batches.get(0)));
+        assertEquals(1, coalescer.getDispatchCount());
+
+        // The next event starts a new tick
+        coalescer.postData("PONG");
+        assertEquals(2, mainThread.everDelayed().size());
+        mainThread.runDelayed(UiEventCoalescer.TICK_MS);
+        assertEquals(Arrays.asList("PONG"), texts(batches.get(1)));
+        assertEquals(2, coalescer.getDispatchCount());
+    }
+
+    @Test
+    public void newerProgressAndStatus_replaceOlderInPlace() {
+        coalescer.postData("SYNC_PROGRESS:1:10");
+        coalescer.postStatus("Aspirin", 5);
+        coalescer.postData("ALARM_SET");
+        coalescer.postStatus("Vitamin D", 3);
+        coalescer.postData("SYNC_PROGRESS:2:10");
+        coalescer.postStatus("Aspirin", 4);
+
+        mainThread.runDelayed(UiEventCoalescer.TICK_MS);
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList("SYNC_PROGRESS:2:10", "Aspirin=4", "ALARM_SET", "Vitamin D=3"), texts(batches.get(0)));
+        assertEquals(6, coalescer.getEventsPosted());
+        assertEquals(2, coalescer.getEventsCollapsed());
+    }
+
+    @Test
+    public void otherEvents_neverCollapse() {
+        coalescer.postData("ALARM_SET");
+        coalescer.postData("ALARM_SET");
+        coalescer.postAck("DISPENSED");
+        coalescer.postAck("DISPENSED");
+
+        mainThread.runDelayed(UiEventCoalescer.TICK_MS);
+        assertEquals(Arrays.asList("ALARM_SET", "ALARM_SET", "DISPENSED", "DISPENSED"), texts(batches.get(0)));
+        assertEquals(0, coalescer.getEventsCollapsed());
+    }
+
+    @Test
+    public void tasks_stayInPostingOrder() {
+        List<String> order = new ArrayList<>();
+        UiEventCoalescer coalescer = new UiEventCoalescer(mainThread, batch -> {
+            for (UiEvent event : batch) {
+                if (event.getType() == UiEvent.Type.TASK) {
+                    event.getTask().run();
+                } else {
+                    order.add(event.getText());
+                }
+            }
+        });
+
+        coalescer.postData("HISTORY_START");
+        coalescer.postTask(() -> order.add("record"));
+        coalescer.postData("HISTORY_END");
+
+        mainThread.runDelayed(UiEventCoalescer.TICK_MS);
+        assertEquals(Arrays.asList("HISTORY_START", "record", "HISTORY_END"), order);
+    }
+}